@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.benchmark;
+
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.analysis.Dominators;
+import com.android.tools.perflib.heap.analysis.TopologicalSort;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.google.common.collect.ImmutableList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the analyses run on a parsed {@link Snapshot}: reading instance field values,
+ * topological sort and dominators.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AnalysisBenchmark {
+
+    @Param({"100000"})
+    int nodes;
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    private List<Instance> mNodes;
+
+    private ImmutableList<Instance> mTopSort;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = SyntheticDumps.create(nodes, 42);
+        mSnapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        mNodes = mSnapshot.findClass("synthetic.Node").getInstancesList();
+        // Also builds the reference graph the analyses below walk.
+        mSnapshot.computeDominators();
+        mTopSort = mSnapshot.getTopologicalOrdering();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public void getValues(Blackhole blackhole) {
+        for (Instance node : mNodes) {
+            blackhole.consume(((ClassInstance) node).getValues());
+        }
+    }
+
+    @Benchmark
+    public ImmutableList<Instance> topologicalSort() {
+        return TopologicalSort.compute(mSnapshot.getGCRoots());
+    }
+
+    @Benchmark
+    public long dominators(DominatorsCleared cleared) {
+        new Dominators(mSnapshot, mTopSort).computeRetainedSizes();
+        return mNodes.get(0).getTotalRetainedSize();
+    }
+
+    /**
+     * Forgets the dominators found by the previous run, which would otherwise let the next one
+     * converge immediately.
+     */
+    @State(Scope.Benchmark)
+    public static class DominatorsCleared {
+
+        @Setup(Level.Invocation)
+        public void clear(AnalysisBenchmark benchmark) {
+            for (Instance instance : benchmark.mTopSort) {
+                instance.setImmediateDominator(null);
+            }
+        }
+    }
+}
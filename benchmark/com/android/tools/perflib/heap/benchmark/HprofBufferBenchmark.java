@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.benchmark;
+
+import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.android.tools.perflib.heap.io.InstrumentedHprofBuffer;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.NativeHprofBuffer;
+import com.android.tools.perflib.heap.io.StreamingHprofBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link HprofBuffer} implementations on sequential and random reads.
+ *
+ * {@code native} needs libnativeHprofBuffer on {@code java.library.path}, so it is not run by
+ * default; select it with {@code -p buffer=native}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HprofBufferBenchmark {
+
+    private static final int RANDOM_READS = 1 << 16;
+
+    @Param({"100000"})
+    int nodes;
+
+    @Param({"mmap", "instrumented", "streaming"})
+    String buffer;
+
+    private File mFile;
+
+    private HprofBuffer mBuffer;
+
+    private long[] mRandomPositions;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = SyntheticDumps.create(nodes, 42);
+        mBuffer = open();
+
+        Random random = new Random(42);
+        mRandomPositions = new long[RANDOM_READS];
+        for (int i = 0; i < RANDOM_READS; i++) {
+            mRandomPositions[i] = (long) (random.nextDouble() * (mFile.length() - 8));
+        }
+        if (buffer.equals("streaming")) {
+            // A stream can only move forward, past the previous read.
+            Arrays.sort(mRandomPositions);
+            for (int i = 1; i < RANDOM_READS; i++) {
+                mRandomPositions[i] = Math.max(mRandomPositions[i], mRandomPositions[i - 1] + 8);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long sequentialInts() throws IOException {
+        HprofBuffer buffer = rewind();
+        long sum = 0;
+        while (buffer.remaining() >= 4) {
+            sum += buffer.readInt();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void sequentialChunks(Blackhole blackhole) throws IOException {
+        HprofBuffer buffer = rewind();
+        byte[] chunk = new byte[4096];
+        while (buffer.remaining() >= chunk.length) {
+            buffer.read(chunk);
+            blackhole.consume(chunk);
+        }
+    }
+
+    @Benchmark
+    public long randomLongs() throws IOException {
+        HprofBuffer buffer = rewind();
+        long sum = 0;
+        for (long position : mRandomPositions) {
+            buffer.setPosition(position);
+            sum += buffer.readLong();
+        }
+        return sum;
+    }
+
+    private HprofBuffer rewind() throws IOException {
+        if (mBuffer instanceof StreamingHprofBuffer) {
+            ((StreamingHprofBuffer) mBuffer).close();
+            mBuffer = open();
+            return mBuffer;
+        }
+        mBuffer.setPosition(0);
+        return mBuffer;
+    }
+
+    private HprofBuffer open() throws IOException {
+        if (buffer.equals("mmap")) {
+            return new MemoryMappedFileBuffer(mFile);
+        } else if (buffer.equals("instrumented")) {
+            return new InstrumentedHprofBuffer(new MemoryMappedFileBuffer(mFile));
+        } else if (buffer.equals("streaming")) {
+            return new StreamingHprofBuffer(new FileInputStream(mFile), mFile.length());
+        } else if (buffer.equals("native")) {
+            return new NativeHprofBuffer(mFile);
+        }
+        throw new IllegalArgumentException("Unknown buffer " + buffer);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.benchmark;
+
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.StreamingHprofBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link HprofParser#parse()}, from a memory-mapped file and from a stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParseBenchmark {
+
+    @Param({"100000", "1000000"})
+    int nodes;
+
+    private File mFile;
+
+    private File mSpillFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = SyntheticDumps.create(nodes, 42);
+        mSpillFile = File.createTempFile("benchmark", ".spill");
+        mSpillFile.deleteOnExit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+        mSpillFile.delete();
+    }
+
+    @Benchmark
+    public Snapshot parseMappedFile() throws IOException {
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        return new HprofParser(buffer).parse();
+    }
+
+    @Benchmark
+    public Snapshot parseStream() throws IOException {
+        StreamingHprofBuffer stream =
+                new StreamingHprofBuffer(new FileInputStream(mFile), mFile.length());
+        try {
+            return new HprofParser(stream, mSpillFile).parse();
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.benchmark;
+
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the heap dumps the benchmarks run on, so that they don't depend on a dump lying around.
+ *
+ * A dump holds a single {@link SyntheticHprofGenerator.Shape#RANDOM} graph of {@code nodes}
+ * instances of {@code synthetic.Node}, each pointing to a 16 byte {@code byte[]}, to the following
+ * node and to a random one, which gives the dominator computation some work.
+ */
+public final class SyntheticDumps {
+
+    private SyntheticDumps() {
+    }
+
+    /**
+     * Returns a generator for a dump with {@code nodes} nodes, in graph 0.
+     */
+    public static SyntheticHprofGenerator generator(int nodes, long seed) {
+        SyntheticHprofGenerator generator = new SyntheticHprofGenerator(seed);
+        generator.addGraph(SyntheticHprofGenerator.Shape.RANDOM, nodes);
+        return generator;
+    }
+
+    /**
+     * Writes a dump with {@code nodes} nodes to a temporary file, deleted when the VM exits.
+     */
+    public static File create(int nodes, long seed) throws IOException {
+        return create(generator(nodes, seed));
+    }
+
+    public static File create(SyntheticHprofGenerator generator) throws IOException {
+        File file = generator.writeTempFile("synthetic");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for the parser, the buffers and the analyses, run on synthetic dumps written by
+ * {@link com.android.tools.perflib.heap.SyntheticHprofGenerator}.
+ *
+ * Compile the {@code benchmark} source folder with jmh-core and jmh-generator-annprocess on the
+ * class path (annotation processing must be enabled), then run e.g.
+ * {@code java -cp <classes>:<libs> org.openjdk.jmh.Main ParseBenchmark -p nodes=1000000}. The
+ * dump size is controlled by the {@code nodes} parameter of each benchmark.
+ *
+ * The JMH jars are not checked in. The IDE libraries expect them in {@code lib/}, next to guava
+ * and trove4j; fetch them and their dependencies from Maven Central with e.g.
+ * <pre>
+ * for a in org.openjdk.jmh:jmh-core:1.12 org.openjdk.jmh:jmh-generator-annprocess:1.12 \
+ *         net.sf.jopt-simple:jopt-simple:4.6 org.apache.commons:commons-math3:3.2; do
+ *     mvn dependency:copy -Dartifact=$a -DoutputDirectory=lib
+ * done
+ * </pre>
+ * or let IntelliJ download the {@code org.openjdk.jmh} repository libraries into {@code lib/}.
+ */
+package com.android.tools.perflib.heap.benchmark;
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import com.android.tools.perflib.heap.benchmark.SyntheticDumps;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ShortestPathFinder#findPath(Snapshot, Instance)} to the last node of a
+ * synthetic dump, which the breadth-first search reaches after visiting most of the graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ShortestPathFinderBenchmark {
+
+  @Param({ "100000" })
+  int nodes;
+
+  private File file;
+  private Snapshot snapshot;
+  private Instance leakingRef;
+  private ExcludedRefs excludedRefs;
+
+  @Setup public void setUp() throws IOException {
+    SyntheticHprofGenerator generator = SyntheticDumps.generator(nodes, 42);
+    file = SyntheticDumps.create(generator);
+    snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+    leakingRef = snapshot.findInstance(generator.getNodeId(0, nodes - 1));
+    excludedRefs = ExcludedRefs.builder().instanceField("synthetic.Node", "next").build();
+  }
+
+  @TearDown public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark public ShortestPathFinder.Result findPath() {
+    return new ShortestPathFinder(excludedRefs).findPath(snapshot, leakingRef);
+  }
+}
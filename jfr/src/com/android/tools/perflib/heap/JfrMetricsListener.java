@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records {@link HeapMetrics} as Java Flight Recorder events: one {@code
+ * com.android.tools.perflib.HeapPhase} event per completed phase and one {@code
+ * com.android.tools.perflib.HprofRecords} event per record and sub-record tag seen by the
+ * parser.
+ *
+ * JFR is only available on Java 11 and later, and on OpenJDK 8 from update 262. This class is
+ * kept out of the main sources, in the optional {@code jfr} module, so that the parser still
+ * builds with a Java 8 toolchain. Check {@link #isAvailable()} before creating a listener; the
+ * event classes are never loaded otherwise.
+ */
+public class JfrMetricsListener implements HeapMetrics.Listener {
+
+    private final HeapMetrics.Listener mDelegate;
+
+    public JfrMetricsListener() {
+        this(null);
+    }
+
+    /**
+     * @param delegate another listener to forward all callbacks to, or null.
+     */
+    public JfrMetricsListener(HeapMetrics.Listener delegate) {
+        mDelegate = delegate;
+    }
+
+    public static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    @Override
+    public void onPhaseCompleted(HeapMetrics.Phase phase, long durationNanos,
+            long allocatedBytes) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.phaseDuration = durationNanos;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+        if (mDelegate != null) {
+            mDelegate.onPhaseCompleted(phase, durationNanos, allocatedBytes);
+        }
+    }
+
+    @Override
+    public void onParseCompleted(HeapMetrics metrics) {
+        if (new RecordsEvent().isEnabled()) {
+            for (int tag = 0; tag < 256; tag++) {
+                if (metrics.getRecordCount(tag) > 0) {
+                    commitRecords(tag, false, metrics.getRecordCount(tag),
+                            metrics.getRecordBytes(tag));
+                }
+                if (metrics.getSubRecordCount(tag) > 0) {
+                    commitRecords(tag, true, metrics.getSubRecordCount(tag), 0);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onParseCompleted(metrics);
+        }
+    }
+
+    private static void commitRecords(int tag, boolean subRecord, long count, long bytes) {
+        RecordsEvent event = new RecordsEvent();
+        event.tag = tag;
+        event.subRecord = subRecord;
+        event.count = count;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    @Name("com.android.tools.perflib.HeapPhase")
+    @Label("Heap Dump Phase")
+    @Category({"Heap Dump Analysis"})
+    static class PhaseEvent extends jdk.jfr.Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Phase Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseDuration;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("com.android.tools.perflib.HprofRecords")
+    @Label("HPROF Records")
+    @Category({"Heap Dump Analysis"})
+    static class RecordsEvent extends jdk.jfr.Event {
+
+        @Label("Tag")
+        int tag;
+
+        @Label("Heap Dump Sub-record")
+        boolean subRecord;
+
+        @Label("Count")
+        long count;
+
+        @Label("Record Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -49,7 +49,7 @@ public class ArrayInstance extends Instance {
     }
 
 
-    private byte[] asRawByteArray(int start, int elementCount) {
+    byte[] asRawByteArray(int start, int elementCount) {
         getBuffer().setPosition(mValuesOffset);
         assert mType != Type.OBJECT;
         assert start + elementCount <= mLength;
@@ -96,7 +96,10 @@ public class ArrayInstance extends Instance {
             return super.getClassObj();
         } else {
             // Primitive arrays don't set their classId, we need to do the lookup manually.
-            return mHeap.mSnapshot.findClass(Type.getClassNameOfPrimitiveArray(mType));
+            if (mClassObj == null) {
+                mClassObj = mHeap.mSnapshot.findPrimitiveArrayClass(mType);
+            }
+            return mClassObj;
         }
     }
 
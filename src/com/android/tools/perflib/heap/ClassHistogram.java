@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Instance counts and shallow sizes per class and per heap, computed in a single pass over an
+ * HPROF stream without building a {@link Snapshot}.
+ *
+ * No {@link Instance} is ever created: instance and array dumps are only counted, and their
+ * values skipped. Besides the counters, which are primitive arrays indexed by class, only the
+ * class and heap names are kept from the string table when reading a file, see {@link
+ * HprofNames}; a stream has all of its strings kept while it is read. Shallow sizes follow
+ * {@link ClassObj#getShallowSize(int)}: the instance size from the class dump for class instances,
+ * and the size of the elements for arrays.
+ *
+ * Classes are referred to by index, from 0 to {@link #getClassCount()}, in the order they were
+ * first seen; heaps likewise, the default heap being 0.
+ */
+public final class ClassHistogram {
+
+    //  The names HotSpot gives to primitive array classes, by type id.
+    private static final String[] VM_PRIMITIVE_ARRAY_NAMES =
+            new String[Type.LONG.getTypeId() + 1];
+
+    static {
+        VM_PRIMITIVE_ARRAY_NAMES[Type.BOOLEAN.getTypeId()] = "[Z";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.CHAR.getTypeId()] = "[C";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.FLOAT.getTypeId()] = "[F";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.DOUBLE.getTypeId()] = "[D";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.BYTE.getTypeId()] = "[B";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.SHORT.getTypeId()] = "[S";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.INT.getTypeId()] = "[I";
+        VM_PRIMITIVE_ARRAY_NAMES[Type.LONG.getTypeId()] = "[J";
+    }
+
+    private final TLongIntHashMap mClassIndices = new TLongIntHashMap();
+
+    private long[] mClassIds = new long[1024];
+
+    private String[] mClassNames = new String[1024];
+
+    private int[] mInstanceSizes = new int[1024];
+
+    private int mClassCount;
+
+    //  The class of the arrays of each primitive type, by type id, or -1.
+    private final int[] mPrimitiveArrayClasses = new int[Type.LONG.getTypeId() + 1];
+
+    private final TIntIntHashMap mHeapIndices = new TIntIntHashMap();
+
+    private final List<String> mHeapNames = new ArrayList<String>();
+
+    //  The string ids of the heap names, until they are looked up, or 0 for the default heap.
+    private final List<Long> mHeapNameIds = new ArrayList<Long>();
+
+    private final List<Integer> mHeapIds = new ArrayList<Integer>();
+
+    //  Counters by heap index, then by class index.
+    private final List<long[]> mInstanceCounts = new ArrayList<long[]>();
+
+    private final List<long[]> mArrayCounts = new ArrayList<long[]>();
+
+    private final List<long[]> mArrayBytes = new ArrayList<long[]>();
+
+    private ClassHistogram() {
+        Arrays.fill(mPrimitiveArrayClasses, -1);
+        getHeapIndex(Snapshot.DEFAULT_HEAP_ID, 0);
+        mHeapNames.set(0, "default");
+    }
+
+    /**
+     * Computes the histogram of {@code file}. A truncated dump is counted up to where it ends.
+     */
+    public static ClassHistogram compute(File file) throws IOException {
+        ClassHistogram histogram = new ClassHistogram();
+        histogram.nameHeaps(HprofNames.read(file, histogram.newHandler()));
+        return histogram;
+    }
+
+    /**
+     * Computes the histogram of the dump read from {@code in}, then closes it. A truncated
+     * dump is counted up to where it ends.
+     */
+    public static ClassHistogram compute(InputStream in) throws IOException {
+        ClassHistogram histogram = new ClassHistogram();
+        histogram.nameHeaps(HprofNames.read(in, histogram.newHandler()));
+        return histogram;
+    }
+
+    public int getClassCount() {
+        return mClassCount;
+    }
+
+    public long getClassId(int classIndex) {
+        return mClassIds[classIndex];
+    }
+
+    /**
+     * Returns the name of a class, as written in the dump, or null if the dump did not name it.
+     */
+    public String getClassName(int classIndex) {
+        return mClassNames[classIndex];
+    }
+
+    public int getInstanceSize(int classIndex) {
+        return mInstanceSizes[classIndex];
+    }
+
+    /**
+     * Returns the index of the first class called {@code name}, or -1.
+     */
+    public int findClass(String name) {
+        for (int i = 0; i < mClassCount; i++) {
+            if (name.equals(mClassNames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getHeapCount() {
+        return mHeapIds.size();
+    }
+
+    public int getHeapId(int heapIndex) {
+        return mHeapIds.get(heapIndex);
+    }
+
+    public String getHeapName(int heapIndex) {
+        return mHeapNames.get(heapIndex);
+    }
+
+    public long getInstanceCount(int classIndex, int heapIndex) {
+        return get(mInstanceCounts, heapIndex, classIndex)
+                + get(mArrayCounts, heapIndex, classIndex);
+    }
+
+    public long getInstanceCount(int classIndex) {
+        long count = 0;
+        for (int heap = 0; heap < getHeapCount(); heap++) {
+            count += getInstanceCount(classIndex, heap);
+        }
+        return count;
+    }
+
+    public long getShallowSize(int classIndex, int heapIndex) {
+        return get(mInstanceCounts, heapIndex, classIndex) * mInstanceSizes[classIndex]
+                + get(mArrayBytes, heapIndex, classIndex);
+    }
+
+    public long getShallowSize(int classIndex) {
+        long size = 0;
+        for (int heap = 0; heap < getHeapCount(); heap++) {
+            size += getShallowSize(classIndex, heap);
+        }
+        return size;
+    }
+
+    /**
+     * Prints the instance count of each class that has instances, as {@link
+     * Heap#dumpInstanceCounts()} does for a parsed heap.
+     */
+    public void dumpInstanceCounts() {
+        for (int i = 0; i < mClassCount; i++) {
+            long count = getInstanceCount(i);
+            if (count > 0) {
+                String name = mClassNames[i] != null ? mClassNames[i].replace('/', '.')
+                        : String.format("0x%x", mClassIds[i]);
+                System.out.println(name + ": " + count + " (" + getShallowSize(i) + " bytes)");
+            }
+        }
+    }
+
+    private HprofNames.Handler newHandler() {
+        return new HprofNames.Handler() {
+            @Override
+            public void loadClass(long id, String name) {
+                ClassHistogram.this.loadClass(id, name);
+            }
+
+            @Override
+            public void readHeapDump(HprofRecordReader reader, HprofNames names)
+                    throws IOException {
+                ClassHistogram.this.readHeapDump(reader, names);
+            }
+        };
+    }
+
+    private void nameHeaps(HprofNames names) {
+        for (int i = 0; i < mHeapNames.size(); i++) {
+            if (mHeapNames.get(i) == null) {
+                mHeapNames.set(i, names.getString(mHeapNameIds.get(i)));
+            }
+        }
+    }
+
+    private void readHeapDump(HprofRecordReader reader, HprofNames names) throws IOException {
+        int idSize = reader.getIdSize();
+        int heap = 0;
+        for (int tag = reader.nextSubRecord(); tag >= 0; tag = reader.nextSubRecord()) {
+            switch (tag) {
+                case HprofParser.ROOT_HEAP_DUMP_INFO:
+                    heap = getHeapIndex(reader.getInt(0), reader.getId(4));
+                    if (mHeapNames.get(heap) == null) {
+                        names.keep(mHeapNameIds.get(heap));
+                    }
+                    break;
+
+                case HprofParser.ROOT_CLASS_DUMP:
+                    // Id, stack serial, super class, class loader, signers, protection domain
+                    // and 2 reserved ids, then the instance size.
+                    mInstanceSizes[getClassIndex(reader.getId(0))] =
+                            reader.getInt(idSize + 4 + 6 * idSize);
+                    break;
+
+                case HprofParser.ROOT_INSTANCE_DUMP:
+                    increment(mInstanceCounts, heap, getClassIndex(reader.getId(idSize + 4)), 1);
+                    break;
+
+                case HprofParser.ROOT_OBJECT_ARRAY_DUMP: {
+                    int classIndex = getClassIndex(reader.getId(idSize + 4 + 4));
+                    increment(mArrayCounts, heap, classIndex, 1);
+                    increment(mArrayBytes, heap, classIndex,
+                            (long) reader.getInt(idSize + 4) * idSize);
+                    break;
+                }
+
+                case HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP: {
+                    Type type = reader.getArrayType();
+                    int classIndex = getPrimitiveArrayClass(type);
+                    increment(mArrayCounts, heap, classIndex, 1);
+                    increment(mArrayBytes, heap, classIndex,
+                            (long) reader.getInt(idSize + 4) * type.getSize());
+                    break;
+                }
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void loadClass(long id, String name) {
+        int type = getPrimitiveArrayType(name);
+        if (type >= 0 && mPrimitiveArrayClasses[type] >= 0
+                && mClassNames[mPrimitiveArrayClasses[type]] == null) {
+            // Arrays of this type were seen before their class, give it its id.
+            int index = mPrimitiveArrayClasses[type];
+            mClassIds[index] = id;
+            mClassNames[index] = name;
+            mClassIndices.put(id, index);
+            return;
+        }
+        int index = getClassIndex(id);
+        mClassNames[index] = name;
+        if (type >= 0 && mPrimitiveArrayClasses[type] < 0) {
+            mPrimitiveArrayClasses[type] = index;
+        }
+    }
+
+    private int getClassIndex(long id) {
+        if (mClassIndices.containsKey(id)) {
+            return mClassIndices.get(id);
+        }
+        int index = addClass(id);
+        mClassIndices.put(id, index);
+        return index;
+    }
+
+    private int getPrimitiveArrayClass(Type type) {
+        int index = mPrimitiveArrayClasses[type.getTypeId()];
+        if (index < 0) {
+            // The class has not been loaded (yet), use a nameless one.
+            index = addClass(0);
+            mPrimitiveArrayClasses[type.getTypeId()] = index;
+        }
+        return index;
+    }
+
+    private int addClass(long id) {
+        if (mClassCount == mClassIds.length) {
+            int capacity = mClassCount * 2;
+            mClassIds = Arrays.copyOf(mClassIds, capacity);
+            mClassNames = Arrays.copyOf(mClassNames, capacity);
+            mInstanceSizes = Arrays.copyOf(mInstanceSizes, capacity);
+        }
+        mClassIds[mClassCount] = id;
+        return mClassCount++;
+    }
+
+    private int getHeapIndex(int id, long nameId) {
+        if (mHeapIndices.containsKey(id)) {
+            return mHeapIndices.get(id);
+        }
+        int index = mHeapIds.size();
+        mHeapIndices.put(id, index);
+        mHeapIds.add(id);
+        mHeapNames.add(null);
+        mHeapNameIds.add(nameId);
+        mInstanceCounts.add(new long[0]);
+        mArrayCounts.add(new long[0]);
+        mArrayBytes.add(new long[0]);
+        return index;
+    }
+
+    /**
+     * Returns the name HotSpot gives to the class of arrays of {@code type}, such as "[B".
+     */
+    static String getVmPrimitiveArrayName(Type type) {
+        return VM_PRIMITIVE_ARRAY_NAMES[type.getTypeId()];
+    }
+
+    private static int getPrimitiveArrayType(String name) {
+        if (name == null) {
+            return -1;
+        }
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT && (name.equals(Type.getClassNameOfPrimitiveArray(type))
+                    || name.equals(VM_PRIMITIVE_ARRAY_NAMES[type.getTypeId()]))) {
+                return type.getTypeId();
+            }
+        }
+        return -1;
+    }
+
+    private static void increment(List<long[]> counters, int heap, int classIndex, long delta) {
+        long[] values = counters.get(heap);
+        if (classIndex >= values.length) {
+            values = Arrays.copyOf(values, Math.max(classIndex + 1, values.length * 2));
+            counters.set(heap, values);
+        }
+        values[classIndex] += delta;
+    }
+
+    private static long get(List<long[]> counters, int heap, int classIndex) {
+        long[] values = counters.get(heap);
+        return classIndex < values.length ? values[classIndex] : 0;
+    }
+}
@@ -0,0 +1,84 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ClassHistogramTest {
+
+    private File mFile;
+
+    @Before
+    public void runBefore() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 500);
+        generator.addLeak("some-key", false);
+        mFile = generator.writeTempFile("histogram");
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testMatchesSnapshot() throws Exception {
+        ClassHistogram histogram = ClassHistogram.compute(mFile);
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+
+        assertEquals(snapshot.getHeaps().size(), histogram.getHeapCount());
+        for (Heap heap : snapshot.getHeaps()) {
+            for (ClassObj classObj : heap.getClasses()) {
+                int index = histogram.findClass(classObj.getClassName());
+                assertEquals(classObj.getId(), histogram.getClassId(index));
+                assertEquals(classObj.getInstanceCount(), histogram.getInstanceCount(index));
+                assertEquals(classObj.getShallowSize(), histogram.getShallowSize(index));
+                for (int i = 0; i < histogram.getHeapCount(); i++) {
+                    int heapId = histogram.getHeapId(i);
+                    assertEquals(classObj.getHeapInstancesCount(heapId),
+                            histogram.getInstanceCount(index, i));
+                    assertEquals(classObj.getShallowSize(heapId),
+                            histogram.getShallowSize(index, i));
+                }
+            }
+        }
+        int nodes = histogram.findClass("synthetic.Node");
+        assertEquals("app", histogram.getHeapName(2));
+        assertEquals(2500, histogram.getInstanceCount(nodes, 2));
+    }
+
+    @org.junit.Test
+    public void testFileMatchesStream() throws Exception {
+        ClassHistogram fromFile = ClassHistogram.compute(mFile);
+        ClassHistogram fromStream = ClassHistogram.compute(
+                new ByteArrayInputStream(Files.readAllBytes(mFile.toPath())));
+
+        assertEquals(fromStream.getClassCount(), fromFile.getClassCount());
+        for (int i = 0; i < fromFile.getClassCount(); i++) {
+            assertEquals(fromStream.getClassName(i), fromFile.getClassName(i));
+            assertEquals(fromStream.getInstanceCount(i), fromFile.getInstanceCount(i));
+        }
+        assertEquals(fromStream.getHeapCount(), fromFile.getHeapCount());
+        for (int i = 0; i < fromFile.getHeapCount(); i++) {
+            assertNotNull(fromFile.getHeapName(i));
+            assertEquals(fromStream.getHeapName(i), fromFile.getHeapName(i));
+        }
+    }
+
+    @org.junit.Test
+    public void testTruncatedDump() throws Exception {
+        byte[] bytes = Files.readAllBytes(mFile.toPath());
+        ClassHistogram histogram = ClassHistogram.compute(
+                new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length / 2)));
+
+        long nodes = histogram.getInstanceCount(histogram.findClass("synthetic.Node"));
+        assertTrue(nodes > 0 && nodes < 2500);
+    }
+}
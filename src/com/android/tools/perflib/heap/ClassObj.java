@@ -36,6 +36,9 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     long mClassLoaderId;
 
+    //  The super class, once resolved
+    private ClassObj mSuperClassObj;
+
     Field[] mFields;
 
     Field[] mStaticFields;
@@ -93,6 +96,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     public final void setSuperClassId(long superClass) {
         mSuperClassId = superClass;
+        mSuperClassObj = null;
     }
 
     public final void setClassLoaderId(long classLoader) {
@@ -233,7 +237,10 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public ClassObj getSuperClassObj() {
-        return mHeap.mSnapshot.findClass(mSuperClassId);
+        if (mSuperClassObj == null && mSuperClassId != 0) {
+            mSuperClassObj = mHeap.mSnapshot.findClass(mSuperClassId);
+        }
+        return mSuperClassObj;
     }
 
     public Instance getClassLoader() {
@@ -22,8 +22,6 @@ import java.util.Collection;
 
 import com.google.common.collect.*;
 import gnu.trove.TIntObjectHashMap;
-import gnu.trove.TLongObjectHashMap;
-import gnu.trove.TObjectProcedure;
 
 public class Heap {
 
@@ -34,7 +32,7 @@ public class Heap {
 
     //  List of individual stack frames
 
-    TLongObjectHashMap<StackFrame> mFrames = new TLongObjectHashMap<StackFrame>();
+    IdMap<StackFrame> mFrames = IdMap.create(8);
 
     //  List stack traces, which are lists of stack frames
 
@@ -50,12 +48,13 @@ public class Heap {
 
     //  Class definitions
 
-    TLongObjectHashMap<ClassObj> mClassesById = new TLongObjectHashMap<ClassObj>();
+    IdMap<ClassObj> mClassesById = IdMap.create(8);
 
     Multimap<String, ClassObj> mClassesByName = ArrayListMultimap.create();
 
-    //  List of instances of above class definitions
-    private final TLongObjectHashMap<Instance> mInstances = new TLongObjectHashMap<Instance>();
+    //  List of instances of above class definitions. They are looked up by id in the index of
+    //  the snapshot, which covers all heaps.
+    final ArrayList<Instance> mInstances = new ArrayList<Instance>();
 
     //  The snapshot that this heap is part of
     public Snapshot mSnapshot;
@@ -74,6 +73,18 @@ public class Heap {
         return mName;
     }
 
+    /**
+     * Keys the id maps of this heap, which must still be empty, with ints for ids of up to 4
+     * bytes.
+     */
+    final void setIdSize(int idSize) {
+        if (mFrames.size() > 0 || mClassesById.size() > 0 || mInstances.size() > 0) {
+            throw new IllegalStateException("The id size must be set before adding objects");
+        }
+        mFrames = IdMap.create(idSize);
+        mClassesById = IdMap.create(idSize);
+    }
+
     public final void addStackFrame(StackFrame theFrame) {
         mFrames.put(theFrame.mId, theFrame);
     }
@@ -115,16 +126,32 @@ public class Heap {
     }
 
     public final void addInstance(long id, Instance instance) {
-        mInstances.put(id, instance);
+        mInstances.add(instance);
+        if (mSnapshot != null) {
+            mSnapshot.indexObject(id, instance);
+        }
     }
 
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        if (mSnapshot == null) {
+            for (Instance instance : mInstances) {
+                if (instance.getId() == id) {
+                    return instance;
+                }
+            }
+            return null;
+        }
+        Instance instance = mSnapshot.findInstance(id);
+        return instance != null && instance.mHeap == this && !(instance instanceof ClassObj)
+                ? instance : null;
     }
 
     public final void addClass(long id, ClassObj theClass) {
         mClassesById.put(id, theClass);
         mClassesByName.put(theClass.mClassName, theClass);
+        if (mSnapshot != null) {
+            mSnapshot.indexObject(id, theClass);
+        }
     }
 
     public final ClassObj getClass(long id) {
@@ -190,15 +217,7 @@ public class Heap {
 
 
     public Collection<Instance> getInstances() {
-        final ArrayList<Instance> result = new ArrayList<Instance>(mInstances.size());
-        mInstances.forEachValue(new TObjectProcedure<Instance>() {
-            @Override
-            public boolean execute(Instance instance) {
-                result.add(instance);
-                return true;
-            }
-        });
-        return result;
+        return new ArrayList<Instance>(mInstances);
     }
 
     public int getInstancesCount() {
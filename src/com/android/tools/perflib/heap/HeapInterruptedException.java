@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+/**
+ * Thrown by the parser and the analyses of a {@link Snapshot} when the thread running them has
+ * been interrupted, so that a cancelled analysis stops instead of running to completion. The
+ * interrupt status of the thread is left set.
+ */
+public class HeapInterruptedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How many nodes or sub-records loops that check per chunk go through between two checks. A
+     * power of two.
+     */
+    public static final int CHECK_INTERVAL = 1024;
+
+    public HeapInterruptedException() {
+        super("Interrupted");
+    }
+
+    /**
+     * Throws if the current thread has been interrupted. Cheap enough to be called for every
+     * record or every node of a search.
+     */
+    public static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new HeapInterruptedException();
+        }
+    }
+}
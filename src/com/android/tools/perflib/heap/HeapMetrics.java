@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Time and allocation spent in each phase of parsing and analyzing a heap dump, along with the
+ * number of HPROF records and heap dump sub-records seen per tag.
+ *
+ * Every {@link Snapshot} owns one, see {@link Snapshot#getMetrics()}. Phases are timed on the
+ * thread that runs them; a phase ends when the next one starts or on {@link #endPhase()}. A
+ * {@link Listener} can be attached to follow the phases as they complete, e.g. the {@code
+ * JfrMetricsListener} of the optional {@code jfr} source folder to record them as JFR events.
+ *
+ * The phases of the parser's record loop, one per kind of record, are interleaved as the records
+ * are, so they are only timed while the loop runs, with no allocation query, and reported once
+ * each when it ends. Allocations are measured for the record loop as a whole, see {@link
+ * #getRecordsAllocatedBytes()}.
+ */
+public class HeapMetrics {
+
+    public enum Phase {
+        HEADER,
+        STRINGS,
+        CLASSES,
+        STACK_TRACES,
+        HEAP_DUMP_SEGMENTS,
+        OTHER_RECORDS,
+        RESOLVE_CLASSES,
+        RESOLVE_REFERENCES,
+        TOPOLOGICAL_SORT,
+        DOMINATORS,
+        RETAINED_SIZES,
+        GC_ROOT_DISTANCES,
+        SHORTEST_PATH
+    }
+
+    public interface Listener {
+
+        /**
+         * Called each time a phase ends. A phase of the record loop is reported once, when the
+         * loop ends, with the total time spent in records of its kind.
+         *
+         * @param allocatedBytes bytes allocated by the current thread during the phase, or -1 if
+         *                       the runtime cannot tell or the phase is one of the record loop.
+         */
+        void onPhaseCompleted(Phase phase, long durationNanos, long allocatedBytes);
+
+        /**
+         * Called once the parser has read the whole dump, with the final record counts.
+         */
+        void onParseCompleted(HeapMetrics metrics);
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final int TAG_COUNT = 256;
+
+    private final long[] mPhaseNanos = new long[PHASES.length];
+
+    private final long[] mPhaseAllocatedBytes = new long[PHASES.length];
+
+    private final long[] mRecordCounts = new long[TAG_COUNT];
+
+    private final long[] mRecordBytes = new long[TAG_COUNT];
+
+    private final long[] mSubRecordCounts = new long[TAG_COUNT];
+
+    private Listener mListener;
+
+    private Phase mCurrentPhase;
+
+    private long mPhaseStartNanos;
+
+    private long mPhaseStartAllocatedBytes;
+
+    private final long[] mRecordPhaseNanos = new long[PHASES.length];
+
+    // Whether the phase was timed in the record loop, and so has no allocations of its own.
+    private final boolean[] mRecordLoopPhases = new boolean[PHASES.length];
+
+    private boolean mInRecords;
+
+    // The phase of the record being read, null before the first record.
+    private Phase mRecordPhase;
+
+    private long mRecordPhaseStartNanos;
+
+    private long mRecordsStartAllocatedBytes;
+
+    private long mRecordsAllocatedBytes = -1;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Ends the current phase, if any, and starts timing {@code phase}. Does nothing if {@code
+     * phase} is already the current phase.
+     */
+    public void startPhase(Phase phase) {
+        if (phase == mCurrentPhase) {
+            return;
+        }
+        endPhase();
+        mCurrentPhase = phase;
+        mPhaseStartAllocatedBytes = AllocationCounter.currentThreadAllocatedBytes();
+        mPhaseStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase, if any.
+     */
+    public void endPhase() {
+        if (mCurrentPhase == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - mPhaseStartNanos;
+        long allocated = -1;
+        if (mPhaseStartAllocatedBytes >= 0) {
+            allocated = AllocationCounter.currentThreadAllocatedBytes() - mPhaseStartAllocatedBytes;
+        }
+        Phase phase = mCurrentPhase;
+        mCurrentPhase = null;
+
+        mPhaseNanos[phase.ordinal()] += nanos;
+        if (allocated >= 0) {
+            mPhaseAllocatedBytes[phase.ordinal()] += allocated;
+        }
+        if (mListener != null) {
+            mListener.onPhaseCompleted(phase, nanos, allocated);
+        }
+    }
+
+    /**
+     * Ends the current phase, if any, and starts the record loop.
+     */
+    void startRecords() {
+        endPhase();
+        mInRecords = true;
+        mRecordPhase = null;
+        mRecordsStartAllocatedBytes = AllocationCounter.currentThreadAllocatedBytes();
+    }
+
+    /**
+     * Charges the time from now on to {@code phase}, until the next record of another phase or
+     * the end of the record loop. Only reads the clock when the phase changes.
+     */
+    void recordPhase(Phase phase) {
+        if (phase == mRecordPhase) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (mRecordPhase != null) {
+            mRecordPhaseNanos[mRecordPhase.ordinal()] += now - mRecordPhaseStartNanos;
+        }
+        mRecordPhase = phase;
+        mRecordPhaseStartNanos = now;
+    }
+
+    /**
+     * Ends the record loop, if it is running, and reports each of its phases once.
+     */
+    void endRecords() {
+        if (!mInRecords) {
+            return;
+        }
+        recordPhase(null);
+        mInRecords = false;
+        if (mRecordsStartAllocatedBytes >= 0) {
+            mRecordsAllocatedBytes =
+                    AllocationCounter.currentThreadAllocatedBytes() - mRecordsStartAllocatedBytes;
+        }
+        for (Phase phase : PHASES) {
+            long nanos = mRecordPhaseNanos[phase.ordinal()];
+            if (nanos == 0) {
+                continue;
+            }
+            mRecordPhaseNanos[phase.ordinal()] = 0;
+            mRecordLoopPhases[phase.ordinal()] = true;
+            mPhaseNanos[phase.ordinal()] += nanos;
+            if (mListener != null) {
+                mListener.onPhaseCompleted(phase, nanos, -1);
+            }
+        }
+    }
+
+    void countRecord(int tag, long length) {
+        mRecordCounts[tag]++;
+        mRecordBytes[tag] += length;
+    }
+
+    void countSubRecord(int tag) {
+        mSubRecordCounts[tag]++;
+    }
+
+    void parseCompleted() {
+        endRecords();
+        endPhase();
+        if (mListener != null) {
+            mListener.onParseCompleted(this);
+        }
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return mPhaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the bytes allocated during all runs of {@code phase}, or -1 if the runtime cannot
+     * measure allocations or {@code phase} is one of the record loop, whose allocations only count
+     * in {@link #getRecordsAllocatedBytes()}.
+     */
+    public long getPhaseAllocatedBytes(Phase phase) {
+        if (!AllocationCounter.isSupported() || mRecordLoopPhases[phase.ordinal()]) {
+            return -1;
+        }
+        return mPhaseAllocatedBytes[phase.ordinal()];
+    }
+
+    /**
+     * Returns the bytes allocated while reading the records of the dump, or -1 if the runtime
+     * cannot measure allocations or the records have not been read.
+     */
+    public long getRecordsAllocatedBytes() {
+        return mRecordsAllocatedBytes;
+    }
+
+    /**
+     * Returns the number of top-level records with the given tag, e.g. 0x1c for heap dump segments.
+     */
+    public long getRecordCount(int tag) {
+        return mRecordCounts[tag];
+    }
+
+    /**
+     * Returns the total length of the bodies of the top-level records with the given tag.
+     */
+    public long getRecordBytes(int tag) {
+        return mRecordBytes[tag];
+    }
+
+    /**
+     * Returns the number of heap dump sub-records with the given tag, e.g. 0x21 for instances.
+     */
+    public long getSubRecordCount(int tag) {
+        return mSubRecordCounts[tag];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Phase phase : PHASES) {
+            long nanos = mPhaseNanos[phase.ordinal()];
+            if (nanos == 0) {
+                continue;
+            }
+            s.append(phase).append(": ").append(nanos / 1000000).append("ms");
+            long allocated = getPhaseAllocatedBytes(phase);
+            if (allocated >= 0) {
+                s.append(", ").append(allocated / 1024).append("KB allocated");
+            }
+            s.append('\n');
+        }
+        if (mRecordsAllocatedBytes >= 0) {
+            s.append("records: ").append(mRecordsAllocatedBytes / 1024).append("KB allocated\n");
+        }
+        for (int tag = 0; tag < TAG_COUNT; tag++) {
+            if (mRecordCounts[tag] > 0) {
+                s.append(String.format("record 0x%02x: %d (%d bytes)%n", tag, mRecordCounts[tag],
+                        mRecordBytes[tag]));
+            }
+        }
+        for (int tag = 0; tag < TAG_COUNT; tag++) {
+            if (mSubRecordCounts[tag] > 0) {
+                s.append(String.format("sub-record 0x%02x: %d%n", tag, mSubRecordCounts[tag]));
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Per-thread allocation counter of HotSpot based VMs. Kept in its own class so that runtimes
+     * without {@code com.sun.management}, such as Android, never load it.
+     */
+    private static class AllocationCounter {
+
+        private static final boolean SUPPORTED = isThreadAllocatedMemorySupported();
+
+        static boolean isSupported() {
+            return SUPPORTED;
+        }
+
+        /**
+         * Returns the bytes allocated so far by the current thread, or -1 if unsupported.
+         */
+        static long currentThreadAllocatedBytes() {
+            return SUPPORTED ? Bean.currentThreadAllocatedBytes() : -1;
+        }
+
+        private static boolean isThreadAllocatedMemorySupported() {
+            try {
+                Class.forName("com.sun.management.ThreadMXBean");
+                return Bean.isSupported();
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+
+        private static class Bean {
+
+            private static final com.sun.management.ThreadMXBean THREADS =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+            static boolean isSupported() {
+                if (!THREADS.isThreadAllocatedMemorySupported()) {
+                    return false;
+                }
+                THREADS.setThreadAllocatedMemoryEnabled(true);
+                return THREADS.isThreadAllocatedMemoryEnabled();
+            }
+
+            static long currentThreadAllocatedBytes() {
+                return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+    }
+}
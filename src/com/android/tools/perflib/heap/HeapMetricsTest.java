@@ -0,0 +1,118 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeapMetricsTest {
+
+    private static final int NODES = 100;
+
+    private File mFile;
+
+    private final List<HeapMetrics.Phase> mPhases = new ArrayList<HeapMetrics.Phase>();
+
+    private final List<HeapMetrics> mParsed = new ArrayList<HeapMetrics>();
+
+    private final HeapMetrics.Listener mListener = new HeapMetrics.Listener() {
+        @Override
+        public void onPhaseCompleted(HeapMetrics.Phase phase, long durationNanos,
+                long allocatedBytes) {
+            assertTrue(durationNanos > 0);
+            mPhases.add(phase);
+        }
+
+        @Override
+        public void onParseCompleted(HeapMetrics metrics) {
+            mParsed.add(metrics);
+        }
+    };
+
+    @Before
+    public void runBefore() throws Exception {
+        SyntheticHprofGenerator generator = new SyntheticHprofGenerator(1);
+        generator.addGraph(SyntheticHprofGenerator.Shape.CHAIN, NODES);
+        mFile = generator.writeTempFile("metrics");
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testReportsEachParsePhaseOnceInOrder() throws Exception {
+        Snapshot snapshot = parse();
+
+        assertEquals(Arrays.asList(
+                HeapMetrics.Phase.HEADER,
+                HeapMetrics.Phase.STRINGS,
+                HeapMetrics.Phase.CLASSES,
+                HeapMetrics.Phase.STACK_TRACES,
+                HeapMetrics.Phase.HEAP_DUMP_SEGMENTS,
+                HeapMetrics.Phase.OTHER_RECORDS,
+                HeapMetrics.Phase.RESOLVE_CLASSES,
+                HeapMetrics.Phase.RESOLVE_REFERENCES), mPhases);
+        assertEquals(1, mParsed.size());
+        assertSame(snapshot.getMetrics(), mParsed.get(0));
+        for (HeapMetrics.Phase phase : mPhases) {
+            assertTrue(phase.toString(), snapshot.getMetrics().getPhaseNanos(phase) > 0);
+        }
+    }
+
+    @org.junit.Test
+    public void testCountsTheRecordsOfTheGenerator() throws Exception {
+        HeapMetrics metrics = parse().getMetrics();
+
+        // 15 class names, 13 distinct field names, 3 static field names and the stack frame's
+        // method name, signature and source file.
+        assertEquals(34, metrics.getRecordCount(HprofParser.STRING_IN_UTF8));
+        assertEquals(15, metrics.getRecordCount(HprofParser.LOAD_CLASS));
+        assertEquals(1, metrics.getRecordCount(HprofParser.STACK_FRAME));
+        assertEquals(1, metrics.getRecordCount(HprofParser.STACK_TRACE));
+        assertEquals(1, metrics.getRecordCount(HprofParser.HEAP_DUMP_SEGMENT));
+        assertEquals(1, metrics.getRecordCount(HprofParser.HEAP_DUMP_END));
+        assertEquals(0, metrics.getRecordBytes(HprofParser.HEAP_DUMP_END));
+
+        // Roots: every class, the main thread and the local that holds the graph.
+        assertEquals(15, metrics.getSubRecordCount(0x05));
+        assertEquals(1, metrics.getSubRecordCount(0x08));
+        assertEquals(1, metrics.getSubRecordCount(0x03));
+        assertEquals(15, metrics.getSubRecordCount(0x20));
+        // The nodes, the thread and its name.
+        assertEquals(NODES + 2, metrics.getSubRecordCount(0x21));
+        // The graph anchor, and the empty leaks and refs arrays.
+        assertEquals(3, metrics.getSubRecordCount(0x22));
+        // The payloads of the nodes and the chars of the thread name.
+        assertEquals(NODES + 1, metrics.getSubRecordCount(0x23));
+    }
+
+    @org.junit.Test
+    public void testReportsAnalysisPhases() throws Exception {
+        Snapshot snapshot = parse();
+        mPhases.clear();
+
+        snapshot.computeDominators();
+
+        assertEquals(Arrays.asList(
+                HeapMetrics.Phase.TOPOLOGICAL_SORT,
+                HeapMetrics.Phase.DOMINATORS,
+                HeapMetrics.Phase.RETAINED_SIZES,
+                HeapMetrics.Phase.GC_ROOT_DISTANCES), mPhases);
+        assertEquals(1, mParsed.size());
+    }
+
+    private Snapshot parse() throws Exception {
+        HprofParser parser = new HprofParser(new MemoryMappedFileBuffer(mFile));
+        parser.setMetricsListener(mListener);
+        return parser.parse();
+    }
+}
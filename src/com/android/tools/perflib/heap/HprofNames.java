@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongProcedure;
+
+/**
+ * Reads the top-level records of an HPROF stream for readers that only need the names of its
+ * classes and heaps from the string table, such as {@link ClassHistogram} and {@link
+ * LargestObjects}.
+ *
+ * Strings come before the records that refer to them. Reading a file therefore starts with a
+ * pass over its top-level records, which seeks over heap dumps, to find the ids of the class
+ * names, so that only those strings are kept. Heap names, only known once heap dumps are read,
+ * are looked up in a last pass of the same kind. A stream can only be read once, so all of its
+ * strings are kept.
+ */
+final class HprofNames {
+
+    /**
+     * Gets the records that are not part of the string table.
+     */
+    interface Handler {
+        void loadClass(long id, String name);
+
+        /**
+         * Reads a heap dump record with {@link HprofRecordReader#nextSubRecord()}. Ids of the
+         * strings needed once reading is done, such as heap names, are given to {@link
+         * HprofNames#keep(long)}.
+         */
+        void readHeapDump(HprofRecordReader reader, HprofNames names) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //  The ids of the strings to keep, or null to keep them all.
+    private final TLongHashSet mKeptIds;
+
+    private final TLongObjectHashMap<String> mStrings = new TLongObjectHashMap<String>();
+
+    private final byte[] mIdBytes = new byte[8];
+
+    private HprofNames(TLongHashSet keptIds) {
+        mKeptIds = keptIds;
+    }
+
+    /**
+     * Reads {@code file} through {@code handler}.
+     */
+    static HprofNames read(File file, Handler handler) throws IOException {
+        HprofNames names = new HprofNames(readClassNameIds(file));
+        names.readRecords(open(file), handler);
+        names.readMissing(file);
+        return names;
+    }
+
+    /**
+     * Reads {@code in} through {@code handler}, then closes it. A truncated stream is read up to
+     * where it ends.
+     */
+    static HprofNames read(InputStream in, Handler handler) throws IOException {
+        HprofNames names = new HprofNames(null);
+        names.readRecords(in, handler);
+        return names;
+    }
+
+    /**
+     * Makes sure the string {@code id} is available from {@link #getString(long)} once reading is
+     * done.
+     */
+    void keep(long id) {
+        if (mKeptIds != null) {
+            mKeptIds.add(id);
+        }
+    }
+
+    /**
+     * Returns a class name, or a string given to {@link #keep(long)} once reading is done, or
+     * null if the dump does not have it.
+     */
+    String getString(long id) {
+        return mStrings.get(id);
+    }
+
+    private void readRecords(InputStream in, Handler handler) throws IOException {
+        HprofRecordReader reader = new HprofRecordReader(in);
+        reader.setSkipValues(true);
+        try {
+            reader.readHeader();
+            int idSize = reader.getIdSize();
+            for (int tag = reader.nextRecord(); tag >= 0; tag = reader.nextRecord()) {
+                switch (tag) {
+                    case HprofParser.STRING_IN_UTF8:
+                        readString(reader, mKeptIds);
+                        break;
+
+                    case HprofParser.LOAD_CLASS:
+                        reader.readRecordBody();
+                        handler.loadClass(reader.getId(4),
+                                mStrings.get(reader.getId(4 + idSize + 4)));
+                        break;
+
+                    case HprofParser.HEAP_DUMP:
+                    case HprofParser.HEAP_DUMP_SEGMENT:
+                        handler.readHeapDump(reader, this);
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        } catch (EOFException e) {
+            //  this is fine
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the strings given to {@link #keep(long)} after they went by.
+     */
+    private void readMissing(File file) throws IOException {
+        final TLongHashSet missing = new TLongHashSet();
+        mKeptIds.forEach(new TLongProcedure() {
+            @Override
+            public boolean execute(long id) {
+                if (!mStrings.containsKey(id)) {
+                    missing.add(id);
+                }
+                return true;
+            }
+        });
+        if (missing.isEmpty()) {
+            return;
+        }
+        HprofRecordReader reader = new HprofRecordReader(open(file));
+        try {
+            reader.readHeader();
+            for (int tag = reader.nextRecord(); tag >= 0; tag = reader.nextRecord()) {
+                if (tag == HprofParser.STRING_IN_UTF8) {
+                    readString(reader, missing);
+                }
+            }
+        } catch (EOFException e) {
+            //  this is fine
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the current string record, if its id is in {@code ids} or {@code ids} is null. Only
+     * the id is read otherwise.
+     */
+    private void readString(HprofRecordReader reader, TLongHashSet ids) throws IOException {
+        int idSize = reader.getIdSize();
+        reader.readRecordBytes(mIdBytes, idSize);
+        long id = HprofRecordReader.getId(mIdBytes, 0, idSize);
+        if (ids == null || ids.contains(id)) {
+            reader.readRecordBody();
+            mStrings.put(id, new String(reader.getBody(), 0, reader.getBodyLength(), "UTF-8"));
+        }
+    }
+
+    /**
+     * Returns the ids of the names of the classes loaded in {@code file}, skipping everything
+     * else.
+     */
+    private static TLongHashSet readClassNameIds(File file) throws IOException {
+        TLongHashSet ids = new TLongHashSet();
+        HprofRecordReader reader = new HprofRecordReader(open(file));
+        try {
+            reader.readHeader();
+            int idSize = reader.getIdSize();
+            for (int tag = reader.nextRecord(); tag >= 0; tag = reader.nextRecord()) {
+                if (tag == HprofParser.LOAD_CLASS) {
+                    reader.readRecordBody();
+                    ids.add(reader.getId(4 + idSize + 4));
+                }
+            }
+        } catch (EOFException e) {
+            //  this is fine
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+
+    private static InputStream open(File file) throws IOException {
+        return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+}
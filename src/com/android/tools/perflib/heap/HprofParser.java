@@ -16,78 +16,85 @@
 
 package com.android.tools.perflib.heap;
 
+import com.android.tools.perflib.heap.io.GrowingFileInputStream;
 import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.StreamingHprofBuffer;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 
-import gnu.trove.TLongObjectHashMap;
 
 public class HprofParser {
 
-    private static final int STRING_IN_UTF8 = 0x01;
+    static final int STRING_IN_UTF8 = 0x01;
 
-    private static final int LOAD_CLASS = 0x02;
+    static final int LOAD_CLASS = 0x02;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int UNLOAD_CLASS = 0x03;
+    static final int UNLOAD_CLASS = 0x03;
 
-    private static final int STACK_FRAME = 0x04;
+    static final int STACK_FRAME = 0x04;
 
-    private static final int STACK_TRACE = 0x05;
+    static final int STACK_TRACE = 0x05;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int ALLOC_SITES = 0x06;
+    static final int ALLOC_SITES = 0x06;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_SUMMARY = 0x07;
+    static final int HEAP_SUMMARY = 0x07;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int START_THREAD = 0x0a;
+    static final int START_THREAD = 0x0a;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int END_THREAD = 0x0b;
+    static final int END_THREAD = 0x0b;
 
-    private static final int HEAP_DUMP = 0x0c;
+    static final int HEAP_DUMP = 0x0c;
 
-    private static final int HEAP_DUMP_SEGMENT = 0x1c;
+    static final int HEAP_DUMP_SEGMENT = 0x1c;
 
-    @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_DUMP_END = 0x2c;
+    static final int HEAP_DUMP_END = 0x2c;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int CPU_SAMPLES = 0x0d;
+    static final int CPU_SAMPLES = 0x0d;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int CONTROL_SETTINGS = 0x0e;
+    static final int CONTROL_SETTINGS = 0x0e;
 
-    private static final int ROOT_UNKNOWN = 0xff;
+    static final int ROOT_UNKNOWN = 0xff;
 
-    private static final int ROOT_JNI_GLOBAL = 0x01;
+    static final int ROOT_JNI_GLOBAL = 0x01;
 
-    private static final int ROOT_JNI_LOCAL = 0x02;
+    static final int ROOT_JNI_LOCAL = 0x02;
 
-    private static final int ROOT_JAVA_FRAME = 0x03;
+    static final int ROOT_JAVA_FRAME = 0x03;
 
-    private static final int ROOT_NATIVE_STACK = 0x04;
+    static final int ROOT_NATIVE_STACK = 0x04;
 
-    private static final int ROOT_STICKY_CLASS = 0x05;
+    static final int ROOT_STICKY_CLASS = 0x05;
 
-    private static final int ROOT_THREAD_BLOCK = 0x06;
+    static final int ROOT_THREAD_BLOCK = 0x06;
 
-    private static final int ROOT_MONITOR_USED = 0x07;
+    static final int ROOT_MONITOR_USED = 0x07;
 
-    private static final int ROOT_THREAD_OBJECT = 0x08;
+    static final int ROOT_THREAD_OBJECT = 0x08;
 
-    private static final int ROOT_CLASS_DUMP = 0x20;
+    static final int ROOT_CLASS_DUMP = 0x20;
 
-    private static final int ROOT_INSTANCE_DUMP = 0x21;
+    static final int ROOT_INSTANCE_DUMP = 0x21;
 
-    private static final int ROOT_OBJECT_ARRAY_DUMP = 0x22;
+    static final int ROOT_OBJECT_ARRAY_DUMP = 0x22;
 
-    private static final int ROOT_PRIMITIVE_ARRAY_DUMP = 0x23;
+    static final int ROOT_PRIMITIVE_ARRAY_DUMP = 0x23;
 
     /**
      * Android format addition
@@ -100,64 +107,143 @@ public class HprofParser {
      *
      * Format: u1: Tag value (0xFE) u4: heap ID ID: heap name string ID
      */
-    private static final int ROOT_HEAP_DUMP_INFO = 0xfe;
+    static final int ROOT_HEAP_DUMP_INFO = 0xfe;
 
-    private static final int ROOT_INTERNED_STRING = 0x89;
+    static final int ROOT_INTERNED_STRING = 0x89;
 
-    private static final int ROOT_FINALIZING = 0x8a;
+    static final int ROOT_FINALIZING = 0x8a;
 
-    private static final int ROOT_DEBUGGER = 0x8b;
+    static final int ROOT_DEBUGGER = 0x8b;
 
-    private static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+    static final int ROOT_REFERENCE_CLEANUP = 0x8c;
 
-    private static final int ROOT_VM_INTERNAL = 0x8d;
+    static final int ROOT_VM_INTERNAL = 0x8d;
 
-    private static final int ROOT_JNI_MONITOR = 0x8e;
+    static final int ROOT_JNI_MONITOR = 0x8e;
 
-    private static final int ROOT_UNREACHABLE = 0x90;
+    static final int ROOT_UNREACHABLE = 0x90;
 
-    private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
+    static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
 
     private final HprofBuffer mInput;
 
+    //  Set when parsing a forward-only stream, see HprofParser(StreamingHprofBuffer, File).
+    private final StreamingHprofBuffer mStream;
+
+    //  The file that backs the snapshot once a stream has been parsed.
+    private final File mPayloadFile;
+
+    //  Whether payloads are copied to mPayloadFile, rather than already being there.
+    private final boolean mSpillPayloads;
+
+    private OutputStream mSpill;
+
+    private long mSpillPosition;
+
+    private HeapMetrics.Listener mMetricsListener;
+
     int mIdSize;
 
     Snapshot mSnapshot;
 
+    HeapMetrics mMetrics;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
      */
 
-    TLongObjectHashMap<String> mStrings = new TLongObjectHashMap<String>();
+    IdMap<String> mStrings = IdMap.create(8);
 
 
-    TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
+    IdMap<String> mClassNames = IdMap.create(8);
 
     public HprofParser(HprofBuffer buffer) {
+        this(buffer, null, null, false);
+    }
+
+    /**
+     * Creates a parser that consumes a forward-only stream strictly in order, never seeking back.
+     *
+     * Roots, classes and instances are built as their records go by. The payloads that are read
+     * again after parsing (instance field values, array elements and class statics) are copied
+     * back-to-back into {@code spillFile}, which is then memory-mapped to back the returned
+     * {@link Snapshot}. Everything else in the stream is discarded as soon as it has been read.
+     */
+    public HprofParser(StreamingHprofBuffer stream, File spillFile) {
+        this(stream, stream, spillFile, true);
+    }
+
+    private HprofParser(HprofBuffer buffer, StreamingHprofBuffer stream, File payloadFile,
+            boolean spillPayloads) {
         mInput = buffer;
+        mStream = stream;
+        mPayloadFile = payloadFile;
+        mSpillPayloads = spillPayloads;
+    }
+
+    /**
+     * Creates a parser that follows a dump while it is still being written, so that parsing
+     * overlaps with dumping.
+     *
+     * Complete records are processed as soon as they have been appended; a partially written
+     * record blocks until the rest of it arrives. Parsing finishes at the HEAP_DUMP_END record, or
+     * once the file has not grown for {@code quietPeriodMs}. The completed file then backs the
+     * returned {@link Snapshot} directly, nothing is spilled.
+     *
+     * An interrupt while waiting for the file to grow makes {@link #parse()} throw a
+     * {@link HeapInterruptedException}, and any other I/O failure an {@link UncheckedIOException}.
+     */
+    public static HprofParser followGrowingFile(File dumpFile, long quietPeriodMs)
+            throws IOException {
+        StreamingHprofBuffer stream =
+                new StreamingHprofBuffer(new GrowingFileInputStream(dumpFile, quietPeriodMs));
+        return new HprofParser(stream, stream, dumpFile, false);
     }
 
 
+    /**
+     * Sets a listener that follows the parse phases as they complete, and any later analysis of
+     * the returned {@link Snapshot}.
+     */
+    public void setMetricsListener(HeapMetrics.Listener listener) {
+        mMetricsListener = listener;
+    }
+
     public final Snapshot parse() {
         Snapshot snapshot = new Snapshot(mInput);
         mSnapshot = snapshot;
+        mMetrics = snapshot.getMetrics();
+        mMetrics.setListener(mMetricsListener);
+        mMetrics.startPhase(HeapMetrics.Phase.HEADER);
 
         try {
+            if (mSpillPayloads) {
+                mSpill = new BufferedOutputStream(new FileOutputStream(mPayloadFile), 64 * 1024);
+            }
             try {
                 readNullTerminatedString();  // Version, ignored for now.
 
                 mIdSize = mInput.readInt();
                 mSnapshot.setIdSize(mIdSize);
+                mStrings = IdMap.create(mIdSize);
+                mClassNames = IdMap.create(mIdSize);
 
                 mInput.readLong();  // Timestamp, ignored for now.
 
+                mMetrics.startRecords();
+
+                records:
                 while (mInput.hasRemaining()) {
+                    HeapInterruptedException.checkInterrupted();
                     int tag = readUnsignedByte();
                     mInput.readInt(); // Ignored: timestamp
                     long length = readUnsignedInt();
 
+                    mMetrics.recordPhase(getPhase(tag));
+                    mMetrics.countRecord(tag, length);
+
                     switch (tag) {
                         case STRING_IN_UTF8:
                             // String length is limited by Int.MAX_VALUE anyway.
@@ -186,6 +272,14 @@ public class HprofParser {
                             mSnapshot.setToDefaultHeap();
                             break;
 
+                        case HEAP_DUMP_END:
+                            if (mStream != null) {
+                                // Nothing of interest follows, don't wait for the stream to end.
+                                break records;
+                            }
+                            skipFully(length);
+                            break;
+
                         default:
                             skipFully(length);
                     }
@@ -193,14 +287,46 @@ public class HprofParser {
                 }
             } catch (EOFException eof) {
                 //  this is fine
+            } catch (UncheckedIOException e) {
+                if (e.getCause() instanceof InterruptedIOException) {
+                    throw new HeapInterruptedException();
+                }
+                //  A truncated stream ends the same way.
+                if (!(e.getCause() instanceof EOFException)) {
+                    throw e;
+                }
             }
+            mMetrics.endRecords();
+            if (mStream != null) {
+                if (mSpillPayloads) {
+                    mSpill.close();
+                    mSpill = null;
+                } else {
+                    // We opened the stream ourselves in followGrowingFile().
+                    mStream.close();
+                }
+                mSnapshot.setBuffer(new MemoryMappedFileBuffer(mPayloadFile));
+            }
+            mMetrics.startPhase(HeapMetrics.Phase.RESOLVE_CLASSES);
             mSnapshot.resolveClasses();
+            mMetrics.startPhase(HeapMetrics.Phase.RESOLVE_REFERENCES);
             mSnapshot.resolveReferences();
             // TODO: enable this after the dominators computation is also optimized.
             // mSnapshot.computeRetainedSizes();
+        } catch (HeapInterruptedException e) {
+            closeFollowedStream();
+            throw e;
+        } catch (UncheckedIOException e) {
+            // Only thrown by streams: the snapshot would be incomplete, and still backed by the
+            // stream.
+            closeFollowedStream();
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            closeSpill();
         }
+        mMetrics.parseCompleted();
 
         mClassNames.clear();
         mStrings.clear();
@@ -208,6 +334,51 @@ public class HprofParser {
     }
 
 
+    /**
+     * Closes the spill file if parsing failed before it was completed.
+     */
+    private void closeSpill() {
+        if (mSpill == null) {
+            return;
+        }
+        try {
+            mSpill.close();
+        } catch (IOException ignored) {
+        }
+        mSpill = null;
+    }
+
+    /**
+     * Closes the stream opened by {@link #followGrowingFile} if parsing failed before it was
+     * completed.
+     */
+    private void closeFollowedStream() {
+        if (mStream == null || mSpillPayloads) {
+            return;
+        }
+        try {
+            mStream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static HeapMetrics.Phase getPhase(int tag) {
+        switch (tag) {
+            case STRING_IN_UTF8:
+                return HeapMetrics.Phase.STRINGS;
+            case LOAD_CLASS:
+                return HeapMetrics.Phase.CLASSES;
+            case STACK_FRAME:
+            case STACK_TRACE:
+                return HeapMetrics.Phase.STACK_TRACES;
+            case HEAP_DUMP:
+            case HEAP_DUMP_SEGMENT:
+                return HeapMetrics.Phase.HEAP_DUMP_SEGMENTS;
+            default:
+                return HeapMetrics.Phase.OTHER_RECORDS;
+        }
+    }
+
     private String readNullTerminatedString() throws IOException {
         StringBuilder s = new StringBuilder();
         for (byte c = mInput.readByte(); c != 0; c = mInput.readByte()) {
@@ -299,9 +470,15 @@ public class HprofParser {
     }
 
     private void loadHeapDump(long length) throws IOException {
+        int subRecords = 0;
         while (length > 0) {
+            // A single heap dump record can hold the whole heap.
+            if ((++subRecords & (HeapInterruptedException.CHECK_INTERVAL - 1)) == 0) {
+                HeapInterruptedException.checkInterrupted();
+            }
             int tag = readUnsignedByte();
             length--;
+            mMetrics.countSubRecord(tag);
 
             switch (tag) {
                 case ROOT_UNKNOWN:
@@ -504,9 +681,7 @@ public class HprofParser {
             bytesRead += 2 + skipValue();
         }
 
-        final ClassObj theClass = new ClassObj(id, stack, mClassNames.get(id), mInput.position());
-        theClass.setSuperClassId(superClassId);
-        theClass.setClassLoaderId(classLoaderId);
+        long staticFieldsOffset = startPayload();
 
         //  Skip over static fields
         numEntries = readUnsignedShort();
@@ -523,7 +698,11 @@ public class HprofParser {
 
             bytesRead += mIdSize + 1 + mSnapshot.getTypeSize(type);
         }
+        endPayload();
 
+        final ClassObj theClass = new ClassObj(id, stack, mClassNames.get(id), staticFieldsOffset);
+        theClass.setSuperClassId(superClassId);
+        theClass.setClassLoaderId(classLoaderId);
         theClass.setStaticFields(staticFields);
 
         //  Instance fields
@@ -556,12 +735,14 @@ public class HprofParser {
         long classId = readId();
         int remaining = mInput.readInt();
 
-        long position = mInput.position();
+        long position = startPayload();
+        skipFully(remaining);
+        endPayload();
+
         ClassInstance instance = new ClassInstance(id, stack, position);
         instance.setClassId(classId);
         mSnapshot.addInstance(id, instance);
 
-        skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
     }
 
@@ -571,13 +752,16 @@ public class HprofParser {
         StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
+        int remaining = numElements * mIdSize;
+
+        long position = startPayload();
+        skipFully(remaining);
+        endPayload();
+
+        ArrayInstance array = new ArrayInstance(id, stack, Type.OBJECT, numElements, position);
         array.setClassId(classId);
         mSnapshot.addInstance(id, array);
 
-        int remaining = numElements * mIdSize;
-        skipFully(remaining);
         return mIdSize + 4 + 4 + mIdSize + remaining;
     }
 
@@ -588,11 +772,15 @@ public class HprofParser {
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
-
         int remaining = numElements * size;
+
+        long position = startPayload();
         skipFully(remaining);
+        endPayload();
+
+        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, position);
+        mSnapshot.addInstance(id, array);
+
         return mIdSize + 4 + 4 + 1 + remaining;
     }
 
@@ -618,6 +806,25 @@ public class HprofParser {
         return size + 1;
     }
 
+    /**
+     * Marks the start of bytes that instances read again after parsing.
+     *
+     * @return the offset of these bytes in the buffer that will back the snapshot.
+     */
+    private long startPayload() {
+        if (mSpill == null) {
+            return mInput.position();
+        }
+        mStream.startCopy(mSpill);
+        return mSpillPosition;
+    }
+
+    private void endPayload() {
+        if (mSpill != null) {
+            mSpillPosition += mStream.stopCopy();
+        }
+    }
+
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an HPROF stream record by record, and heap dump records sub-record by sub-record, without
+ * interpreting them. Each sub-record is read whole into a reusable buffer, so that it can be
+ * inspected with {@link #getId(int)} and friends, then copied or dropped.
+ */
+class HprofRecordReader implements Closeable {
+
+    private final DataInputStream mIn;
+
+    private int mIdSize;
+
+    private long mTimestamp;
+
+    private long mRecordRemaining;
+
+    private byte[] mBody = new byte[1024];
+
+    private int mBodyLength;
+
+    //  For class dumps, where the instance fields start in the body.
+    private int mInstanceFieldsOffset;
+
+    private boolean mSkipValues;
+
+    private long mPosition;
+
+    private long mSubRecordPosition;
+
+    HprofRecordReader(InputStream in) {
+        mIn = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the file header. Must be called first.
+     */
+    void readHeader() throws IOException {
+        while (mIn.readByte() != 0) {
+            // Version, ignored.
+            mPosition++;
+        }
+        mIdSize = mIn.readInt();
+        if (mIdSize != 1 && mIdSize != 2 && mIdSize != 4 && mIdSize != 8) {
+            throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+        }
+        mTimestamp = mIn.readLong();
+        mPosition += 1 + 4 + 8;
+    }
+
+    int getIdSize() {
+        return mIdSize;
+    }
+
+    /**
+     * Whether to skip the field values of instance dumps and the elements of array dumps, rather
+     * than read them into the body buffer, for readers that only need their headers. The body
+     * buffer then stays as small as the largest class dump.
+     */
+    void setSkipValues(boolean skipValues) {
+        mSkipValues = skipValues;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the offset in the stream of the tag of the sub-record last read by {@link
+     * #nextSubRecord()}.
+     */
+    long getSubRecordPosition() {
+        return mSubRecordPosition;
+    }
+
+    /**
+     * Skips what is left of the current record and reads the header of the next one.
+     *
+     * @return the tag of the record, or -1 at the end of the stream.
+     */
+    int nextRecord() throws IOException {
+        skip(mRecordRemaining);
+        mRecordRemaining = 0;
+        int tag = mIn.read();
+        if (tag < 0) {
+            return -1;
+        }
+        mIn.readInt();  // Timestamp.
+        mRecordRemaining = mIn.readInt() & 0xffffffffL;
+        mPosition += 1 + 4 + 4;
+        return tag;
+    }
+
+    /**
+     * Returns the number of bytes of the current record that have not been read yet.
+     */
+    long getRecordRemaining() {
+        return mRecordRemaining;
+    }
+
+    /**
+     * Reads the rest of the current record, up to {@code Integer.MAX_VALUE} bytes, into the body
+     * buffer.
+     */
+    void readRecordBody() throws IOException {
+        mBodyLength = 0;
+        readBody((int) mRecordRemaining);
+    }
+
+    /**
+     * Copies the next {@code length} bytes of the current record to {@code buffer}.
+     */
+    void readRecordBytes(byte[] buffer, int length) throws IOException {
+        mIn.readFully(buffer, 0, length);
+        mRecordRemaining -= length;
+        mPosition += length;
+    }
+
+    /**
+     * Reads the next sub-record of the current heap dump record into the body buffer.
+     *
+     * @return its tag, or -1 at the end of the record.
+     */
+    int nextSubRecord() throws IOException {
+        if (mRecordRemaining == 0) {
+            return -1;
+        }
+        mSubRecordPosition = mPosition;
+        int tag = mIn.readUnsignedByte();
+        mRecordRemaining--;
+        mPosition++;
+        mBodyLength = 0;
+        switch (tag) {
+            case HprofParser.ROOT_UNKNOWN:
+            case HprofParser.ROOT_STICKY_CLASS:
+            case HprofParser.ROOT_MONITOR_USED:
+            case HprofParser.ROOT_INTERNED_STRING:
+            case HprofParser.ROOT_FINALIZING:
+            case HprofParser.ROOT_DEBUGGER:
+            case HprofParser.ROOT_REFERENCE_CLEANUP:
+            case HprofParser.ROOT_VM_INTERNAL:
+            case HprofParser.ROOT_UNREACHABLE:
+                readBody(mIdSize);
+                break;
+
+            case HprofParser.ROOT_JNI_GLOBAL:
+                readBody(mIdSize + mIdSize);
+                break;
+
+            case HprofParser.ROOT_JNI_LOCAL:
+            case HprofParser.ROOT_JAVA_FRAME:
+            case HprofParser.ROOT_THREAD_OBJECT:
+            case HprofParser.ROOT_JNI_MONITOR:
+                readBody(mIdSize + 4 + 4);
+                break;
+
+            case HprofParser.ROOT_NATIVE_STACK:
+            case HprofParser.ROOT_THREAD_BLOCK:
+                readBody(mIdSize + 4);
+                break;
+
+            case HprofParser.ROOT_HEAP_DUMP_INFO:
+                readBody(4 + mIdSize);
+                break;
+
+            case HprofParser.ROOT_CLASS_DUMP:
+                readClassDump();
+                break;
+
+            case HprofParser.ROOT_INSTANCE_DUMP:
+                readBody(mIdSize + 4 + mIdSize + 4);
+                readValues(getInt(mIdSize + 4 + mIdSize));
+                break;
+
+            case HprofParser.ROOT_OBJECT_ARRAY_DUMP:
+                readBody(mIdSize + 4 + 4 + mIdSize);
+                readValues(getInt(mIdSize + 4) * mIdSize);
+                break;
+
+            case HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP:
+                readBody(mIdSize + 4 + 4 + 1);
+                readValues(getInt(mIdSize + 4) * getArrayType().getSize());
+                break;
+
+            case HprofParser.ROOT_PRIMITIVE_ARRAY_NODATA:
+                readBody(mIdSize + 4 + 4 + 1);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown heap dump sub-record tag " + tag);
+        }
+        return tag;
+    }
+
+    byte[] getBody() {
+        return mBody;
+    }
+
+    int getBodyLength() {
+        return mBodyLength;
+    }
+
+    /**
+     * For a class dump, returns the offset in the body of the instance field count, followed by
+     * the name id and type of each field.
+     */
+    int getInstanceFieldsOffset() {
+        return mInstanceFieldsOffset;
+    }
+
+    /**
+     * For a primitive array dump, returns the type of its elements.
+     */
+    Type getArrayType() {
+        return Type.getType(mBody[mIdSize + 4 + 4] & 0xff);
+    }
+
+    int getTypeSize(Type type) {
+        return type == Type.OBJECT ? mIdSize : type.getSize();
+    }
+
+    long getId(int offset) {
+        return getId(mBody, offset, mIdSize);
+    }
+
+    int getInt(int offset) {
+        return getInt(mBody, offset);
+    }
+
+    int getUnsignedShort(int offset) {
+        return ((mBody[offset] & 0xff) << 8) | (mBody[offset + 1] & 0xff);
+    }
+
+    static long getId(byte[] bytes, int offset, int idSize) {
+        switch (idSize) {
+            case 1:
+                return bytes[offset];
+            case 2:
+                return (short) (((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff));
+            case 4:
+                return getInt(bytes, offset);
+            default:
+                return ((long) getInt(bytes, offset) << 32)
+                        | (getInt(bytes, offset + 4) & 0xffffffffL);
+        }
+    }
+
+    static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void readClassDump() throws IOException {
+        // Id, stack serial, super class, class loader, signers, protection domain, 2 reserved
+        // and the instance size.
+        readBody(mIdSize + 4 + 6 * mIdSize + 4);
+
+        readBody(2);
+        int constants = getUnsignedShort(mBodyLength - 2);
+        for (int i = 0; i < constants; i++) {
+            readBody(2 + 1);
+            readBody(getTypeSize(Type.getType(mBody[mBodyLength - 1] & 0xff)));
+        }
+
+        readBody(2);
+        int statics = getUnsignedShort(mBodyLength - 2);
+        for (int i = 0; i < statics; i++) {
+            readBody(mIdSize + 1);
+            readBody(getTypeSize(Type.getType(mBody[mBodyLength - 1] & 0xff)));
+        }
+
+        mInstanceFieldsOffset = mBodyLength;
+        readBody(2);
+        readBody(getUnsignedShort(mBodyLength - 2) * (mIdSize + 1));
+    }
+
+    private void readValues(int length) throws IOException {
+        if (!mSkipValues) {
+            readBody(length);
+            return;
+        }
+        if (length > mRecordRemaining) {
+            throw new EOFException("Sub-record overflows its heap dump record");
+        }
+        skip(length);
+        mRecordRemaining -= length;
+    }
+
+    private void readBody(int length) throws IOException {
+        if (length > mRecordRemaining) {
+            throw new EOFException("Sub-record overflows its heap dump record");
+        }
+        if (mBodyLength + length > mBody.length) {
+            byte[] body = new byte[Math.max(mBody.length * 2, mBodyLength + length)];
+            System.arraycopy(mBody, 0, body, 0, mBodyLength);
+            mBody = body;
+        }
+        mIn.readFully(mBody, mBodyLength, length);
+        mBodyLength += length;
+        mRecordRemaining -= length;
+        mPosition += length;
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            int skipped = mIn.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+            mPosition += skipped;
+        }
+    }
+}
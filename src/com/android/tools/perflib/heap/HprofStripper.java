@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Copies an HPROF file record by record with the contents of primitive arrays (bitmap pixels,
+ * buffers...) removed. These make up most of a typical Android dump, and nothing but string
+ * values is ever read from them, so the copy compresses much better and parses faster, and still
+ * works with {@link HprofParser} and LeakCanary's HeapAnalyzer.
+ *
+ * By default, the arrays that back {@code java.lang.String} instances are kept as they are, which
+ * takes a first pass over the input to find them.
+ */
+public class HprofStripper {
+
+    public enum Mode {
+        /**
+         * Array elements are overwritten with zeros. The copy has the same size as the input, but
+         * compresses to almost nothing, and arrays keep their length and shallow size.
+         */
+        ZERO,
+        /**
+         * Arrays are emptied. The copy is smaller, but arrays have a length and shallow size of
+         * 0, which lowers retained sizes accordingly.
+         */
+        TRUNCATE
+    }
+
+    private static final String[] STRING_CLASS_NAMES = {"java.lang.String", "java/lang/String"};
+
+    private final Mode mMode;
+
+    private boolean mKeepStringValues = true;
+
+    private long mStrippedArrays;
+
+    private long mStrippedBytes;
+
+    public HprofStripper(Mode mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Whether to keep the arrays that back {@code java.lang.String} instances, true by default.
+     * Without them strings read as zeros or as empty strings, including the keys LeakCanary looks
+     * up its references with.
+     */
+    public void setKeepStringValues(boolean keepStringValues) {
+        mKeepStringValues = keepStringValues;
+    }
+
+    public void strip(File input, File output) throws IOException {
+        strip(input, new BufferedOutputStream(new FileOutputStream(output), 64 * 1024));
+    }
+
+    /**
+     * Writes the stripped copy of {@code input} to {@code output}, then closes it.
+     */
+    public void strip(File input, OutputStream output) throws IOException {
+        mStrippedArrays = 0;
+        mStrippedBytes = 0;
+        TLongHashSet kept = mKeepStringValues ? findStringValues(input) : new TLongHashSet();
+
+        HprofRecordReader reader = open(input);
+        HprofWriter writer = null;
+        try {
+            reader.readHeader();
+            writer = new HprofWriter(output, reader.getIdSize(),
+                    HprofWriter.DEFAULT_SEGMENT_SIZE, reader.getTimestamp());
+            int idSize = reader.getIdSize();
+            for (int tag = reader.nextRecord(); tag >= 0; tag = reader.nextRecord()) {
+                switch (tag) {
+                    case HprofParser.HEAP_DUMP:
+                    case HprofParser.HEAP_DUMP_SEGMENT:
+                        for (int subTag = reader.nextSubRecord(); subTag >= 0;
+                                subTag = reader.nextSubRecord()) {
+                            byte[] body = reader.getBody();
+                            int length = reader.getBodyLength();
+                            if (subTag == HprofParser.ROOT_HEAP_DUMP_INFO) {
+                                writer.writeHeapDumpInfo(reader.getInt(0), reader.getId(4));
+                                continue;
+                            }
+                            if (subTag == HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP
+                                    && !kept.contains(reader.getId(0))) {
+                                length = stripArray(body, length, idSize);
+                            }
+                            writer.writeSubRecord(subTag, body, length);
+                        }
+                        writer.endSegment();
+                        break;
+
+                    case HprofParser.HEAP_DUMP_END:
+                        // Written when the writer is closed.
+                        break;
+
+                    default:
+                        writer.copyRecord(tag, reader);
+                }
+            }
+        } finally {
+            reader.close();
+            if (writer != null) {
+                writer.close();
+            } else {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Returns how many arrays the last call to {@code strip} emptied or zeroed.
+     */
+    public long getStrippedArrays() {
+        return mStrippedArrays;
+    }
+
+    /**
+     * Returns how many bytes of array elements the last call to {@code strip} emptied or zeroed.
+     */
+    public long getStrippedBytes() {
+        return mStrippedBytes;
+    }
+
+    private int stripArray(byte[] body, int length, int idSize) {
+        int header = idSize + 4 + 4 + 1;
+        if (length == header) {
+            return length;
+        }
+        mStrippedArrays++;
+        mStrippedBytes += length - header;
+        if (mMode == Mode.ZERO) {
+            Arrays.fill(body, header, length, (byte) 0);
+            return length;
+        }
+        Arrays.fill(body, idSize + 4, idSize + 8, (byte) 0);  // Element count.
+        return header;
+    }
+
+    /**
+     * Returns the ids of the objects the {@code value} field of {@code java.lang.String}
+     * instances point to.
+     */
+    private static TLongHashSet findStringValues(File input) throws IOException {
+        TLongHashSet stringNameIds = new TLongHashSet();
+        TLongHashSet valueNameIds = new TLongHashSet();
+        TLongHashSet stringClassIds = new TLongHashSet();
+        //  The offset of the value field in the instance data, by String class.
+        TLongIntHashMap valueOffsets = new TLongIntHashMap();
+        //  The String instances read before their class dump, usually none.
+        List<byte[]> pending = new ArrayList<byte[]>();
+        TLongHashSet values = new TLongHashSet();
+
+        HprofRecordReader reader = open(input);
+        int idSize;
+        try {
+            reader.readHeader();
+            idSize = reader.getIdSize();
+            for (int tag = reader.nextRecord(); tag >= 0; tag = reader.nextRecord()) {
+                switch (tag) {
+                    case HprofParser.STRING_IN_UTF8:
+                        reader.readRecordBody();
+                        String value = new String(reader.getBody(), idSize,
+                                reader.getBodyLength() - idSize, "UTF-8");
+                        if (value.equals("value")) {
+                            valueNameIds.add(reader.getId(0));
+                        } else if (Arrays.asList(STRING_CLASS_NAMES).contains(value)) {
+                            stringNameIds.add(reader.getId(0));
+                        }
+                        break;
+
+                    case HprofParser.LOAD_CLASS:
+                        reader.readRecordBody();
+                        if (stringNameIds.contains(reader.getId(4 + idSize + 4))) {
+                            stringClassIds.add(reader.getId(4));
+                        }
+                        break;
+
+                    case HprofParser.HEAP_DUMP:
+                    case HprofParser.HEAP_DUMP_SEGMENT:
+                        for (int subTag = reader.nextSubRecord(); subTag >= 0;
+                                subTag = reader.nextSubRecord()) {
+                            if (subTag == HprofParser.ROOT_CLASS_DUMP
+                                    && stringClassIds.contains(reader.getId(0))) {
+                                int offset = findValueOffset(reader, valueNameIds);
+                                if (offset >= 0) {
+                                    valueOffsets.put(reader.getId(0), offset);
+                                }
+                            } else if (subTag == HprofParser.ROOT_INSTANCE_DUMP) {
+                                long classId = reader.getId(idSize + 4);
+                                if (!stringClassIds.contains(classId)) {
+                                    continue;
+                                }
+                                // Id, stack serial, class id, then the length of the values.
+                                int start = idSize + 4 + idSize + 4;
+                                if (valueOffsets.containsKey(classId)) {
+                                    values.add(reader.getId(start + valueOffsets.get(classId)));
+                                } else {
+                                    pending.add(Arrays.copyOf(reader.getBody(),
+                                            reader.getBodyLength()));
+                                }
+                            }
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        for (byte[] body : pending) {
+            long classId = HprofRecordReader.getId(body, idSize + 4, idSize);
+            if (valueOffsets.containsKey(classId)) {
+                int start = idSize + 4 + idSize + 4 + valueOffsets.get(classId);
+                values.add(HprofRecordReader.getId(body, start, idSize));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the offset of the {@code value} object field in the instance data of the class
+     * dump just read, or -1. The fields of a class come before those of its super classes.
+     */
+    private static int findValueOffset(HprofRecordReader reader, TLongHashSet valueNameIds) {
+        int idSize = reader.getIdSize();
+        int position = reader.getInstanceFieldsOffset();
+        int fields = reader.getUnsignedShort(position);
+        position += 2;
+        int offset = 0;
+        for (int i = 0; i < fields; i++) {
+            Type type = Type.getType(reader.getBody()[position + idSize] & 0xff);
+            if (type == Type.OBJECT && valueNameIds.contains(reader.getId(position))) {
+                return offset;
+            }
+            offset += reader.getTypeSize(type);
+            position += idSize + 1;
+        }
+        return -1;
+    }
+
+    private static HprofRecordReader open(File file) throws IOException {
+        return new HprofRecordReader(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+}
@@ -0,0 +1,99 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class HprofStripperTest {
+
+    private static final int NODES = 1000;
+
+    private static final int PAYLOAD_SIZE = 100;
+
+    private SyntheticHprofGenerator mGenerator;
+
+    private File mInput;
+
+    private File mOutput;
+
+    @Before
+    public void runBefore() throws Exception {
+        mGenerator = new SyntheticHprofGenerator(42);
+        mGenerator.setAndroidHeaps(true);
+        mGenerator.setPayloadSize(PAYLOAD_SIZE);
+        mGenerator.addGraph(SyntheticHprofGenerator.Shape.RANDOM, NODES);
+        mGenerator.addLeak("some-key", true);
+        mInput = File.createTempFile("input", ".hprof");
+        mOutput = File.createTempFile("output", ".hprof");
+        mGenerator.write(mInput);
+    }
+
+    @After
+    public void runAfter() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @org.junit.Test
+    public void testZero() throws Exception {
+        HprofStripper stripper = new HprofStripper(HprofStripper.Mode.ZERO);
+        stripper.strip(mInput, mOutput);
+        assertEquals(mInput.length(), mOutput.length());
+
+        Snapshot snapshot = parse();
+        ArrayInstance payload = getPayload(snapshot);
+        assertEquals(PAYLOAD_SIZE, payload.getValues().length);
+        assertEquals((byte) 0, payload.getValues()[0]);
+        assertEquals("some-key", getKey(snapshot));
+        assertEquals(NODES, snapshot.findClass("synthetic.Node").getInstanceCount());
+    }
+
+    @org.junit.Test
+    public void testTruncate() throws Exception {
+        HprofStripper stripper = new HprofStripper(HprofStripper.Mode.TRUNCATE);
+        stripper.strip(mInput, mOutput);
+        assertEquals(mInput.length() - stripper.getStrippedBytes(), mOutput.length());
+        // The node payloads, the leaked payload and its bitmap buffer.
+        assertEquals(NODES + 2, stripper.getStrippedArrays());
+
+        Snapshot snapshot = parse();
+        assertEquals(0, getPayload(snapshot).getValues().length);
+        assertEquals("some-key", getKey(snapshot));
+        assertEquals("app", snapshot.findInstance(mGenerator.getNodeId(0, 0)).getHeap().getName());
+    }
+
+    @org.junit.Test
+    public void testStripStrings() throws Exception {
+        HprofStripper stripper = new HprofStripper(HprofStripper.Mode.TRUNCATE);
+        stripper.setKeepStringValues(false);
+        stripper.strip(mInput, mOutput);
+
+        assertEquals("", getKey(parse()));
+    }
+
+    private Snapshot parse() throws Exception {
+        return new HprofParser(new MemoryMappedFileBuffer(mOutput)).parse();
+    }
+
+    private ArrayInstance getPayload(Snapshot snapshot) {
+        ClassInstance node = (ClassInstance) snapshot.findInstance(mGenerator.getNodeId(0, 0));
+        return (ArrayInstance) node.getValues().get(2).getValue();
+    }
+
+    private static String getKey(Snapshot snapshot) {
+        ClassInstance reference = (ClassInstance) snapshot.findClass(
+                "com.squareup.leakcanary.KeyedWeakReference").getInstancesList().get(0);
+        ClassInstance key = (ClassInstance) reference.getValues().get(0).getValue();
+        ArrayInstance chars = (ArrayInstance) key.getValues().get(0).getValue();
+        StringBuilder builder = new StringBuilder();
+        for (Object c : chars.getValues()) {
+            builder.append((char) (Character) c);
+        }
+        return builder.toString();
+    }
+}
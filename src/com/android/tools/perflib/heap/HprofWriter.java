@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes HPROF files that {@link HprofParser} can read.
+ *
+ * Records are written in the order of the calls. Heap dump sub-records (roots, classes, instances
+ * and arrays) are gathered into HEAP_DUMP_SEGMENT records of about {@code segmentSize} bytes; any
+ * top-level record ends the current segment first. The parser resolves some references as it
+ * reads, so callers must write:
+ * <ul>
+ * <li>strings before the records that use their ids,</li>
+ * <li>the LOAD_CLASS record of a class before its class dump,</li>
+ * <li>stack frames before the stack traces that contain them,</li>
+ * <li>a thread object before the thread-bound roots that refer to it, in the same heap.</li>
+ * </ul>
+ *
+ * Values are passed as raw bits in a {@code long}: object ids, integers, or the bits returned by
+ * {@link Float#floatToRawIntBits(float)} and {@link Double#doubleToRawLongBits(double)}.
+ */
+public class HprofWriter implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final String FORMAT = "JAVA PROFILE 1.0.3";
+
+    private final DataOutputStream mOut;
+
+    private final int mIdSize;
+
+    private final int mSegmentSize;
+
+    private final ByteArrayOutputStream mSegmentBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream mSegment = new DataOutputStream(mSegmentBytes);
+
+    //  The heap set by the last HEAP_DUMP_INFO, repeated at the start of every following segment.
+    private boolean mHeapSet;
+
+    private int mHeapId;
+
+    private long mHeapNameId;
+
+    public HprofWriter(OutputStream out, int idSize) throws IOException {
+        this(out, idSize, DEFAULT_SEGMENT_SIZE, System.currentTimeMillis());
+    }
+
+    public HprofWriter(OutputStream out, int idSize, int segmentSize, long timestamp)
+            throws IOException {
+        if (idSize != 1 && idSize != 2 && idSize != 4 && idSize != 8) {
+            throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+        }
+        mOut = new DataOutputStream(out);
+        mIdSize = idSize;
+        mSegmentSize = segmentSize;
+
+        mOut.write(FORMAT.getBytes("US-ASCII"));
+        mOut.write(0);
+        mOut.writeInt(idSize);
+        mOut.writeLong(timestamp);
+    }
+
+    public int getIdSize() {
+        return mIdSize;
+    }
+
+    public void writeString(long id, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        startRecord(HprofParser.STRING_IN_UTF8, mIdSize + bytes.length);
+        writeId(mOut, id);
+        mOut.write(bytes);
+    }
+
+    public void writeLoadClass(int classSerial, long classId, int stackSerial, long nameId)
+            throws IOException {
+        startRecord(HprofParser.LOAD_CLASS, 4 + mIdSize + 4 + mIdSize);
+        mOut.writeInt(classSerial);
+        writeId(mOut, classId);
+        mOut.writeInt(stackSerial);
+        writeId(mOut, nameId);
+    }
+
+    public void writeStackFrame(long id, long methodNameId, long signatureId, long sourceFileId,
+            int classSerial, int lineNumber) throws IOException {
+        startRecord(HprofParser.STACK_FRAME, 4 * mIdSize + 4 + 4);
+        writeId(mOut, id);
+        writeId(mOut, methodNameId);
+        writeId(mOut, signatureId);
+        writeId(mOut, sourceFileId);
+        mOut.writeInt(classSerial);
+        mOut.writeInt(lineNumber);
+    }
+
+    public void writeStackTrace(int serial, int threadSerial, long[] frameIds)
+            throws IOException {
+        startRecord(HprofParser.STACK_TRACE, 4 + 4 + 4 + frameIds.length * mIdSize);
+        mOut.writeInt(serial);
+        mOut.writeInt(threadSerial);
+        mOut.writeInt(frameIds.length);
+        for (long frameId : frameIds) {
+            writeId(mOut, frameId);
+        }
+    }
+
+    /**
+     * Writes a root that is not bound to a thread.
+     *
+     * @throws IllegalArgumentException for the thread-bound root types, see {@link
+     *                                  #writeRoot(RootType, long, int, int)}.
+     */
+    public void writeRoot(RootType type, long id) throws IOException {
+        switch (type) {
+            case UNKNOWN:
+                startSubRecord(HprofParser.ROOT_UNKNOWN);
+                break;
+            case NATIVE_STATIC:
+                startSubRecord(HprofParser.ROOT_JNI_GLOBAL);
+                writeId(mSegment, id);
+                // The JNI global ref id, ignored by the parser.
+                writeId(mSegment, 0);
+                endSubRecord();
+                return;
+            case SYSTEM_CLASS:
+                startSubRecord(HprofParser.ROOT_STICKY_CLASS);
+                break;
+            case BUSY_MONITOR:
+                startSubRecord(HprofParser.ROOT_MONITOR_USED);
+                break;
+            case INTERNED_STRING:
+                startSubRecord(HprofParser.ROOT_INTERNED_STRING);
+                break;
+            case FINALIZING:
+                startSubRecord(HprofParser.ROOT_FINALIZING);
+                break;
+            case DEBUGGER:
+                startSubRecord(HprofParser.ROOT_DEBUGGER);
+                break;
+            case REFERENCE_CLEANUP:
+                startSubRecord(HprofParser.ROOT_REFERENCE_CLEANUP);
+                break;
+            case VM_INTERNAL:
+                startSubRecord(HprofParser.ROOT_VM_INTERNAL);
+                break;
+            case UNREACHABLE:
+                startSubRecord(HprofParser.ROOT_UNREACHABLE);
+                break;
+            default:
+                throw new IllegalArgumentException(type + " roots are bound to a thread");
+        }
+        writeId(mSegment, id);
+        endSubRecord();
+    }
+
+    /**
+     * Writes a root bound to a thread, which must have been written with {@link
+     * #writeThreadObject(long, int, int)}.
+     *
+     * @param frameNumber the depth in the thread's stack trace, ignored for {@link
+     *                    RootType#NATIVE_STACK} and {@link RootType#THREAD_BLOCK} roots.
+     */
+    public void writeRoot(RootType type, long id, int threadSerial, int frameNumber)
+            throws IOException {
+        boolean hasFrame = true;
+        switch (type) {
+            case NATIVE_LOCAL:
+                startSubRecord(HprofParser.ROOT_JNI_LOCAL);
+                break;
+            case JAVA_LOCAL:
+                startSubRecord(HprofParser.ROOT_JAVA_FRAME);
+                break;
+            case NATIVE_MONITOR:
+                startSubRecord(HprofParser.ROOT_JNI_MONITOR);
+                break;
+            case NATIVE_STACK:
+                startSubRecord(HprofParser.ROOT_NATIVE_STACK);
+                hasFrame = false;
+                break;
+            case THREAD_BLOCK:
+                startSubRecord(HprofParser.ROOT_THREAD_BLOCK);
+                hasFrame = false;
+                break;
+            default:
+                throw new IllegalArgumentException(type + " roots are not bound to a thread");
+        }
+        writeId(mSegment, id);
+        mSegment.writeInt(threadSerial);
+        if (hasFrame) {
+            mSegment.writeInt(frameNumber);
+        }
+        endSubRecord();
+    }
+
+    public void writeThreadObject(long id, int threadSerial, int stackSerial)
+            throws IOException {
+        startSubRecord(HprofParser.ROOT_THREAD_OBJECT);
+        writeId(mSegment, id);
+        mSegment.writeInt(threadSerial);
+        mSegment.writeInt(stackSerial);
+        endSubRecord();
+    }
+
+    /**
+     * Writes the Android specific HEAP_DUMP_INFO sub-record, which assigns the following classes,
+     * instances and roots to the given heap.
+     */
+    public void writeHeapDumpInfo(int heapId, long heapNameId) throws IOException {
+        mHeapSet = true;
+        mHeapId = heapId;
+        mHeapNameId = heapNameId;
+        startSubRecord(HprofParser.ROOT_HEAP_DUMP_INFO);
+        writeHeapDumpInfoBody();
+        endSubRecord();
+    }
+
+    /**
+     * Writes a class dump. The constant pool is always empty.
+     *
+     * @param staticValues the raw bits of each static field value, see the class comment.
+     */
+    public void writeClassDump(long id, int stackSerial, long superClassId, long classLoaderId,
+            int instanceSize, long[] staticNameIds, Type[] staticTypes, long[] staticValues,
+            long[] fieldNameIds, Type[] fieldTypes) throws IOException {
+        startSubRecord(HprofParser.ROOT_CLASS_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        writeId(mSegment, superClassId);
+        writeId(mSegment, classLoaderId);
+        writeId(mSegment, 0);  // Signers.
+        writeId(mSegment, 0);  // Protection domain.
+        writeId(mSegment, 0);  // Reserved.
+        writeId(mSegment, 0);  // Reserved.
+        mSegment.writeInt(instanceSize);
+        mSegment.writeShort(0);  // Constant pool.
+
+        mSegment.writeShort(staticNameIds.length);
+        for (int i = 0; i < staticNameIds.length; i++) {
+            writeId(mSegment, staticNameIds[i]);
+            mSegment.writeByte(staticTypes[i].getTypeId());
+            writeValue(staticTypes[i], staticValues[i]);
+        }
+
+        mSegment.writeShort(fieldNameIds.length);
+        for (int i = 0; i < fieldNameIds.length; i++) {
+            writeId(mSegment, fieldNameIds[i]);
+            mSegment.writeByte(fieldTypes[i].getTypeId());
+        }
+        endSubRecord();
+    }
+
+    /**
+     * Writes an instance dump whose field values are already encoded, fields of the class first,
+     * then those of each superclass.
+     */
+    public void writeInstanceDump(long id, int stackSerial, long classId, byte[] values)
+            throws IOException {
+        startSubRecord(HprofParser.ROOT_INSTANCE_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        writeId(mSegment, classId);
+        mSegment.writeInt(values.length);
+        mSegment.write(values);
+        endSubRecord();
+    }
+
+    /**
+     * Writes an instance dump, encoding {@code values} in order: fields of the class first, then
+     * those of each superclass.
+     */
+    public void writeInstanceDump(long id, int stackSerial, long classId, Type[] types,
+            long[] values) throws IOException {
+        int length = 0;
+        for (Type type : types) {
+            length += getTypeSize(type);
+        }
+        startSubRecord(HprofParser.ROOT_INSTANCE_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        writeId(mSegment, classId);
+        mSegment.writeInt(length);
+        for (int i = 0; i < types.length; i++) {
+            writeValue(types[i], values[i]);
+        }
+        endSubRecord();
+    }
+
+    public void writeObjectArrayDump(long id, int stackSerial, long arrayClassId,
+            long[] elements) throws IOException {
+        startSubRecord(HprofParser.ROOT_OBJECT_ARRAY_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        mSegment.writeInt(elements.length);
+        writeId(mSegment, arrayClassId);
+        for (long element : elements) {
+            writeId(mSegment, element);
+        }
+        endSubRecord();
+    }
+
+    /**
+     * Writes a primitive array dump.
+     *
+     * @param elements the big-endian encoding of the elements, a multiple of the size of {@code
+     *                 type}.
+     */
+    public void writePrimitiveArrayDump(long id, int stackSerial, Type type, byte[] elements)
+            throws IOException {
+        if (type == Type.OBJECT) {
+            throw new IllegalArgumentException("OBJECT type is not a primitive type");
+        }
+        startSubRecord(HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        mSegment.writeInt(elements.length / type.getSize());
+        mSegment.writeByte(type.getTypeId());
+        mSegment.write(elements);
+        endSubRecord();
+    }
+
+    public void writePrimitiveArrayDump(long id, int stackSerial, char[] elements)
+            throws IOException {
+        startSubRecord(HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP);
+        writeId(mSegment, id);
+        mSegment.writeInt(stackSerial);
+        mSegment.writeInt(elements.length);
+        mSegment.writeByte(Type.CHAR.getTypeId());
+        for (char c : elements) {
+            mSegment.writeChar(c);
+        }
+        endSubRecord();
+    }
+
+    /**
+     * Copies the rest of the current record of {@code reader} as a top-level record.
+     */
+    void copyRecord(int tag, HprofRecordReader reader) throws IOException {
+        startRecord(tag, (int) reader.getRecordRemaining());
+        byte[] buffer = new byte[(int) Math.min(reader.getRecordRemaining(), 64 * 1024)];
+        while (reader.getRecordRemaining() > 0) {
+            int length = (int) Math.min(reader.getRecordRemaining(), buffer.length);
+            reader.readRecordBytes(buffer, length);
+            mOut.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Writes a heap dump sub-record whose body is already encoded. HEAP_DUMP_INFO sub-records must
+     * go through {@link #writeHeapDumpInfo(int, long)} instead.
+     */
+    void writeSubRecord(int tag, byte[] body, int length) throws IOException {
+        startSubRecord(tag);
+        mSegment.write(body, 0, length);
+        endSubRecord();
+    }
+
+    /**
+     * Ends the current heap dump segment, after which sub-records go to the default heap again,
+     * as they do at the end of a heap dump record read by the parser.
+     */
+    void endSegment() throws IOException {
+        flushSegment();
+        mHeapSet = false;
+    }
+
+    /**
+     * Ends the current heap dump segment, writes the HEAP_DUMP_END record and closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushSegment();
+            startRecord(HprofParser.HEAP_DUMP_END, 0);
+        } finally {
+            mOut.close();
+        }
+    }
+
+    public int getTypeSize(Type type) {
+        return type == Type.OBJECT ? mIdSize : type.getSize();
+    }
+
+    private void startRecord(int tag, int length) throws IOException {
+        flushSegment();
+        mOut.writeByte(tag);
+        mOut.writeInt(0);  // Timestamp.
+        mOut.writeInt(length);
+    }
+
+    private void startSubRecord(int tag) throws IOException {
+        if (mSegmentBytes.size() == 0 && mHeapSet && tag != HprofParser.ROOT_HEAP_DUMP_INFO) {
+            // The parser goes back to the default heap at the end of every segment.
+            mSegment.writeByte(HprofParser.ROOT_HEAP_DUMP_INFO);
+            writeHeapDumpInfoBody();
+        }
+        mSegment.writeByte(tag);
+    }
+
+    private void endSubRecord() throws IOException {
+        if (mSegmentBytes.size() >= mSegmentSize) {
+            flushSegment();
+        }
+    }
+
+    private void flushSegment() throws IOException {
+        if (mSegmentBytes.size() == 0) {
+            return;
+        }
+        mOut.writeByte(HprofParser.HEAP_DUMP_SEGMENT);
+        mOut.writeInt(0);  // Timestamp.
+        mOut.writeInt(mSegmentBytes.size());
+        mSegmentBytes.writeTo(mOut);
+        mSegmentBytes.reset();
+    }
+
+    private void writeHeapDumpInfoBody() throws IOException {
+        mSegment.writeInt(mHeapId);
+        writeId(mSegment, mHeapNameId);
+    }
+
+    private void writeValue(Type type, long bits) throws IOException {
+        switch (type) {
+            case OBJECT:
+                writeId(mSegment, bits);
+                break;
+            case BOOLEAN:
+            case BYTE:
+                mSegment.writeByte((int) bits);
+                break;
+            case CHAR:
+            case SHORT:
+                mSegment.writeShort((int) bits);
+                break;
+            case FLOAT:
+            case INT:
+                mSegment.writeInt((int) bits);
+                break;
+            case DOUBLE:
+            case LONG:
+                mSegment.writeLong(bits);
+                break;
+        }
+    }
+
+    private void writeId(DataOutputStream out, long id) throws IOException {
+        switch (mIdSize) {
+            case 1:
+                out.writeByte((int) id);
+                break;
+            case 2:
+                out.writeShort((int) id);
+                break;
+            case 4:
+                out.writeInt((int) id);
+                break;
+            default:
+                out.writeLong(id);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HprofWriterTest {
+
+    private File mFile;
+
+    @Before
+    public void runBefore() throws Exception {
+        mFile = File.createTempFile("writer", ".hprof");
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testRoundTrip() throws Exception {
+        // A tiny segment size so that records span several segments.
+        HprofWriter writer = new HprofWriter(new FileOutputStream(mFile), 4, 64, 0);
+        writer.writeString(1, "java.lang.Object");
+        writer.writeString(2, "Foo");
+        writer.writeString(3, "bar");
+        writer.writeString(4, "sCount");
+        writer.writeString(5, "app");
+        writer.writeString(6, "java.lang.Thread");
+        writer.writeString(7, "run");
+        writer.writeLoadClass(1, 0x100, 0, 1);
+        writer.writeLoadClass(2, 0x108, 0, 2);
+        writer.writeLoadClass(3, 0x110, 0, 6);
+        writer.writeStackFrame(0x500, 7, 7, 7, 3, 12);
+        writer.writeStackTrace(1, 1, new long[]{0x500});
+
+        writer.writeRoot(RootType.SYSTEM_CLASS, 0x100);
+        writer.writeRoot(RootType.NATIVE_STATIC, 0x200);
+        writer.writeThreadObject(0x300, 1, 1);
+        writer.writeRoot(RootType.JAVA_LOCAL, 0x208, 1, 0);
+
+        writer.writeHeapDumpInfo('A', 5);
+        writer.writeClassDump(0x100, 0, 0, 0, 0, new long[0], new Type[0], new long[0],
+                new long[0], new Type[0]);
+        writer.writeClassDump(0x110, 0, 0x100, 0, 0, new long[0], new Type[0], new long[0],
+                new long[0], new Type[0]);
+        writer.writeClassDump(0x108, 0, 0x100, 0, 12, new long[]{4}, new Type[]{Type.INT},
+                new long[]{42}, new long[]{3, 3}, new Type[]{Type.OBJECT, Type.LONG});
+        writer.writeInstanceDump(0x200, 1, 0x108, new Type[]{Type.OBJECT, Type.LONG},
+                new long[]{0x208, -1L});
+        writer.writeInstanceDump(0x300, 1, 0x110, new byte[0]);
+        writer.writeObjectArrayDump(0x208, 1, 0x100, new long[]{0x200, 0x210});
+        writer.writePrimitiveArrayDump(0x210, 1, "h\u00e9llo".toCharArray());
+        writer.writePrimitiveArrayDump(0x218, 1, Type.SHORT, new byte[]{0, 1, (byte) 0xff, 0});
+        writer.close();
+
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+
+        ClassObj foo = snapshot.findClass("Foo");
+        assertNotNull(foo);
+        assertEquals(snapshot.findClass("java.lang.Object"), foo.getSuperClassObj());
+        assertEquals(12, foo.getInstanceSize());
+        Map<Field, Object> statics = foo.getStaticFieldValues();
+        assertEquals(1, statics.size());
+        assertEquals(42, statics.values().iterator().next());
+
+        ClassInstance instance = (ClassInstance) snapshot.findInstance(0x200);
+        assertEquals("app", instance.getHeap().getName());
+        List<ClassInstance.FieldValue> values = instance.getValues();
+        assertEquals(2, values.size());
+        assertEquals(snapshot.findInstance(0x208), values.get(0).getValue());
+        assertEquals(-1L, values.get(1).getValue());
+
+        ArrayInstance array = (ArrayInstance) snapshot.findInstance(0x208);
+        assertArrayEquals(new Object[]{instance, snapshot.findInstance(0x210)},
+                array.getValues());
+        ArrayInstance chars = (ArrayInstance) snapshot.findInstance(0x210);
+        assertArrayEquals(new Object[]{'h', '\u00e9', 'l', 'l', 'o'}, chars.getValues());
+        ArrayInstance shorts = (ArrayInstance) snapshot.findInstance(0x218);
+        assertArrayEquals(new Object[]{(short) 1, (short) 0xff00}, shorts.getValues());
+
+        Set<RootType> rootTypes = EnumSet.noneOf(RootType.class);
+        for (RootObj root : snapshot.getGCRoots()) {
+            rootTypes.add(root.getRootType());
+        }
+        assertEquals(EnumSet.of(RootType.SYSTEM_CLASS, RootType.NATIVE_STATIC,
+                RootType.JAVA_LOCAL), rootTypes);
+        assertEquals(12, snapshot.getStackFrame(0x500).mLineNumber);
+    }
+
+    @org.junit.Test
+    public void testGeneratedShapes() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 100);
+        generator.setIdSize(8);
+        generator.addLeak("retained-key", true);
+        generator.addLeak("collected-key", false);
+        generator.write(mFile);
+
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+
+        assertEquals(100 * SyntheticHprofGenerator.Shape.values().length,
+                snapshot.findClass("synthetic.Node").getInstanceCount());
+        assertEquals(100, snapshot.findClass("java.lang.ref.WeakReference").getInstanceCount());
+        assertEquals("app", snapshot.findInstance(generator.getNodeId(0, 0)).getHeap().getName());
+        assertEquals("zygote", snapshot.findClass("synthetic.Node").getHeap().getName());
+
+        ClassInstance last = (ClassInstance) snapshot.findInstance(generator.getNodeId(0, 99));
+        assertEquals(99, last.getValues().get(3).getValue());
+        ClassInstance ringEnd = (ClassInstance) snapshot.findInstance(
+                generator.getNodeId(2, SyntheticHprofGenerator.CYCLE_LENGTH - 1));
+        assertEquals(snapshot.findInstance(generator.getNodeId(2, 0)),
+                ringEnd.getValues().get(0).getValue());
+
+        List<Instance> refs = snapshot.findClass("com.squareup.leakcanary.KeyedWeakReference")
+                .getInstancesList();
+        assertEquals(2, refs.size());
+        ClassInstance ref = (ClassInstance) refs.get(0);
+        ClassInstance key = (ClassInstance) ref.getValues().get(0).getValue();
+        ArrayInstance keyChars = (ArrayInstance) key.getValues().get(0).getValue();
+        assertEquals("retained-key".length(), keyChars.getValues().length);
+        assertEquals(snapshot.findInstance(generator.getLeakedId(0)),
+                ref.getValues().get(2).getValue());
+    }
+}
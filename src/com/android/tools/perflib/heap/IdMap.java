@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TObjectProcedure;
+
+/**
+ * A map keyed by object id, whose keys take 4 bytes rather than 8 when the dump's ids do, as
+ * Android's always do.
+ *
+ * Ids of up to 4 bytes are read sign-extended, so they are stored truncated to an int, and looked
+ * up either sign-extended or unsigned; any other id is absent from such a map.
+ */
+abstract class IdMap<V> {
+
+    static <V> IdMap<V> create(int idSize) {
+        return idSize <= 4 ? new IntKeys<V>() : new LongKeys<V>();
+    }
+
+    abstract V put(long id, V value);
+
+    abstract V get(long id);
+
+    abstract boolean containsKey(long id);
+
+    abstract int size();
+
+    abstract void clear();
+
+    abstract boolean forEachValue(TObjectProcedure<V> procedure);
+
+    abstract Object[] getValues();
+
+    private static final class LongKeys<V> extends IdMap<V> {
+
+        private final TLongObjectHashMap<V> mMap = new TLongObjectHashMap<V>();
+
+        @Override
+        V put(long id, V value) {
+            return mMap.put(id, value);
+        }
+
+        @Override
+        V get(long id) {
+            return mMap.get(id);
+        }
+
+        @Override
+        boolean containsKey(long id) {
+            return mMap.containsKey(id);
+        }
+
+        @Override
+        int size() {
+            return mMap.size();
+        }
+
+        @Override
+        void clear() {
+            mMap.clear();
+        }
+
+        @Override
+        boolean forEachValue(TObjectProcedure<V> procedure) {
+            return mMap.forEachValue(procedure);
+        }
+
+        @Override
+        Object[] getValues() {
+            return mMap.getValues();
+        }
+    }
+
+    private static final class IntKeys<V> extends IdMap<V> {
+
+        private final TIntObjectHashMap<V> mMap = new TIntObjectHashMap<V>();
+
+        @Override
+        V put(long id, V value) {
+            return mMap.put((int) id, value);
+        }
+
+        @Override
+        V get(long id) {
+            return fits(id) ? mMap.get((int) id) : null;
+        }
+
+        @Override
+        boolean containsKey(long id) {
+            return fits(id) && mMap.containsKey((int) id);
+        }
+
+        @Override
+        int size() {
+            return mMap.size();
+        }
+
+        @Override
+        void clear() {
+            mMap.clear();
+        }
+
+        @Override
+        boolean forEachValue(TObjectProcedure<V> procedure) {
+            return mMap.forEachValue(procedure);
+        }
+
+        @Override
+        Object[] getValues() {
+            return mMap.getValues();
+        }
+
+        private static boolean fits(long id) {
+            return id == (int) id || id == (id & 0xffffffffL);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class IdMapTest {
+
+    @org.junit.Test
+    public void testIntKeys() {
+        IdMap<String> map = IdMap.create(4);
+        map.put(0xf0000000L, "unsigned");
+        map.put(-2, "signed");
+        map.put(7, "small");
+
+        assertEquals(3, map.size());
+        assertEquals("unsigned", map.get(0xf0000000L));
+        assertEquals("unsigned", map.get((int) 0xf0000000L));
+        assertEquals("signed", map.get(0xfffffffeL));
+        assertEquals("small", map.get(7));
+        assertNull(map.get(7 + (1L << 32)));
+        assertFalse(map.containsKey(0x1f0000000L));
+    }
+
+    @org.junit.Test
+    public void testLongKeys() {
+        IdMap<String> map = IdMap.create(8);
+        map.put(7 + (1L << 32), "large");
+
+        assertEquals("large", map.get(7 + (1L << 32)));
+        assertNull(map.get(7));
+    }
+
+    @org.junit.Test
+    public void testHighIdsInSnapshot() throws Exception {
+        File file = File.createTempFile("ids", ".hprof");
+        HprofWriter writer = new HprofWriter(new FileOutputStream(file), 4);
+        writer.writeString(1, "java.lang.Object");
+        writer.writeLoadClass(1, 0x80000000L, 0, 1);
+        writer.writeRoot(RootType.NATIVE_STATIC, 0xfffffff0L);
+        writer.writeClassDump(0x80000000L, 0, 0, 0, 0, new long[0], new Type[0], new long[0],
+                new long[0], new Type[0]);
+        writer.writeInstanceDump(0xfffffff0L, 0, 0x80000000L, new byte[0]);
+        writer.close();
+
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+        Instance instance = snapshot.findInstance(0xfffffff0L);
+        assertNotNull(instance);
+        assertEquals(0xfffffff0L, instance.getUniqueId());
+        assertEquals("java.lang.Object", instance.getClassObj().getClassName());
+        assertEquals(instance, snapshot.getGCRoots().iterator().next().getReferredInstance());
+        file.delete();
+    }
+}
@@ -16,13 +16,12 @@
 
 package com.android.tools.perflib.heap;
 
+import com.android.tools.perflib.heap.io.ColumnStorage;
 import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.UnsignedBytes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 public abstract class Instance {
 
@@ -35,16 +34,18 @@ public abstract class Instance {
     //  Id of the ClassObj of which this object is an instance
     long mClassId;
 
+    //  The ClassObj of which this object is an instance, once resolved
+    ClassObj mClassObj;
+
     //  The heap in which this object was allocated (app, zygote, etc)
     public Heap mHeap;
 
     //  The size of this object
     int mSize;
 
-    //  Another identifier for this Instance, that we computed during the analysis phase.
-    int mTopologicalOrder;
-
-    int mDistanceToGcRoot = Integer.MAX_VALUE;
+    //  The row of this Instance in the analysis columns of its snapshot (topological order,
+    //  distance to the GC roots and retained sizes), or -1 if it has none.
+    int mStorageIndex = -1;
 
     boolean mReferencesAdded = false;
 
@@ -53,14 +54,9 @@ public abstract class Instance {
     //  The immediate dominator of this instance, or null if not reachable from any GC roots.
     private Instance mImmediateDominator;
 
-    //  The retained size of this object, indexed by heap (default, image, app, zygote).
-    //  Intuitively, this represents the amount of memory that could be reclaimed in each heap if
-    //  the instance were removed.
-    //  To save space, we only keep a primitive array here following the order in mSnapshot.mHeaps.
-    private long[] mRetainedSizes;
-
-    //  List of all objects that hold a live reference to this object
-    private final ArrayList<Instance> mHardReferences = new ArrayList<Instance>();
+    //  List of all objects that hold a live reference to this object, unless the snapshot spills
+    //  them. Don't create an actual list until we need to.
+    private ArrayList<Instance> mHardReferences = null;
 
     //  List of all objects that hold a soft/weak/phantom reference to this object.
     //  Don't create an actual list until we need to.
@@ -83,10 +79,14 @@ public abstract class Instance {
 
     public void setClassId(long classId) {
         mClassId = classId;
+        mClassObj = null;
     }
 
     public ClassObj getClassObj() {
-        return mHeap.mSnapshot.findClass(mClassId);
+        if (mClassObj == null) {
+            mClassObj = mHeap.mSnapshot.findClass(mClassId);
+        }
+        return mClassObj;
     }
 
     public final int getCompositeSize() {
@@ -112,12 +112,26 @@ public abstract class Instance {
         return mHeap;
     }
 
+    /**
+     * Returns the index of this object among the instances and classes of its snapshot, from 0 to
+     * {@link Snapshot#getObjectCount()} excluded, or -1 if it was not added to a snapshot.
+     */
+    public int getObjectIndex() {
+        return mStorageIndex;
+    }
+
+    //  Another identifier for this Instance, that we computed during the analysis phase. Objects
+    //  that were not added to a snapshot, such as Snapshot.SENTINEL_ROOT, are always 0.
     public int getTopologicalOrder() {
-        return mTopologicalOrder;
+        ColumnStorage.IntColumn orders = mStorageIndex >= 0
+                ? mHeap.mSnapshot.mTopologicalOrders : null;
+        return orders != null && mStorageIndex < orders.size() ? orders.get(mStorageIndex) : 0;
     }
 
     public void setTopologicalOrder(int topologicalOrder) {
-        mTopologicalOrder = topologicalOrder;
+        checkStorageIndex();
+        mHeap.mSnapshot.ensureColumns();
+        mHeap.mSnapshot.mTopologicalOrders.set(mStorageIndex, topologicalOrder);
     }
 
     public Instance getImmediateDominator() {
@@ -129,7 +143,10 @@ public abstract class Instance {
     }
 
     public int getDistanceToGcRoot() {
-        return mDistanceToGcRoot;
+        ColumnStorage.IntColumn distances = mStorageIndex >= 0
+                ? mHeap.mSnapshot.mDistancesToGcRoot : null;
+        return distances != null && mStorageIndex < distances.size()
+                ? distances.get(mStorageIndex) : Integer.MAX_VALUE;
     }
 
     public Instance getNextInstanceToGcRoot() {
@@ -137,40 +154,64 @@ public abstract class Instance {
     }
 
     public void setDistanceToGcRoot(int newDistance) {
-        assert(newDistance < mDistanceToGcRoot);
-        mDistanceToGcRoot = newDistance;
+        assert(newDistance < getDistanceToGcRoot());
+        checkStorageIndex();
+        mHeap.mSnapshot.ensureColumns();
+        mHeap.mSnapshot.mDistancesToGcRoot.set(mStorageIndex, newDistance);
     }
 
     public void setNextInstanceToGcRoot(Instance instance) {
         mNextInstanceToGcRoot = instance;
     }
 
+    //  The retained size of this object, indexed by heap (default, image, app, zygote).
+    //  Intuitively, this represents the amount of memory that could be reclaimed in each heap if
+    //  the instance were removed.
+    //  To save space, sizes are kept in a column of the snapshot, with a row per instance
+    //  following the order in mSnapshot.mHeaps.
     public void resetRetainedSize() {
-        List<Heap> allHeaps = mHeap.mSnapshot.mHeaps;
-        if (mRetainedSizes == null) {
-            mRetainedSizes = new long[allHeaps.size()];
-        } else {
-            Arrays.fill(mRetainedSizes, 0);
-        }
-        mRetainedSizes[allHeaps.indexOf(mHeap)] = getSize();
+        checkStorageIndex();
+        Snapshot snapshot = mHeap.mSnapshot;
+        snapshot.ensureColumns();
+        long row = (long) mStorageIndex * snapshot.mRetainedSizesWidth;
+        snapshot.mRetainedSizes.fill(row, row + snapshot.mRetainedSizesWidth, 0);
+        snapshot.mRetainedSizes.set(row + snapshot.getHeapIndex(mHeap), getSize());
     }
 
     public void addRetainedSize(int heapIndex, long size) {
-        mRetainedSizes[heapIndex] += size;
+        checkStorageIndex();
+        Snapshot snapshot = mHeap.mSnapshot;
+        snapshot.ensureColumns();
+        snapshot.mRetainedSizes.add((long) mStorageIndex * snapshot.mRetainedSizesWidth
+                + heapIndex, size);
     }
 
     public long getRetainedSize(int heapIndex) {
-        return mRetainedSizes[heapIndex];
+        Snapshot snapshot = mStorageIndex >= 0 ? mHeap.mSnapshot : null;
+        if (snapshot == null || snapshot.mRetainedSizes == null) {
+            return 0;
+        }
+
+        long row = (long) mStorageIndex * snapshot.mRetainedSizesWidth;
+        if (row >= snapshot.mRetainedSizes.size()) {
+            return 0;
+        }
+        return snapshot.mRetainedSizes.get(row + heapIndex);
     }
 
     public long getTotalRetainedSize() {
-        if (mRetainedSizes == null) {
+        Snapshot snapshot = mStorageIndex >= 0 ? mHeap.mSnapshot : null;
+        if (snapshot == null || snapshot.mRetainedSizes == null) {
             return 0;
         }
 
+        long row = (long) mStorageIndex * snapshot.mRetainedSizesWidth;
+        if (row >= snapshot.mRetainedSizes.size()) {
+            return 0;
+        }
         long totalSize = 0;
-        for (long mRetainedSize : mRetainedSizes) {
-            totalSize += mRetainedSize;
+        for (int i = 0; i < snapshot.mRetainedSizesWidth; i++) {
+            totalSize += snapshot.mRetainedSizes.get(row + i);
         }
         return totalSize;
     }
@@ -189,14 +230,64 @@ public abstract class Instance {
             }
             mSoftReferences.add(reference);
         }
-        else {
+        else if (mHeap == null || !mHeap.mSnapshot.spillReference(this, reference)) {
+            if (mHardReferences == null) {
+                mHardReferences = new ArrayList<Instance>();
+            }
             mHardReferences.add(reference);
         }
     }
 
-
+    /**
+     * Returns the objects that hold a live reference to this object. When the snapshot spills
+     * references, this is a copy, only complete once the dominators have been computed; prefer
+     * {@link #getHardReferenceCount()} and {@link #getHardReference(int)}.
+     */
     public ArrayList<Instance> getHardReferences() {
-        return mHardReferences;
+        SpilledReferences spilled = getSpilledReferences();
+        if (spilled == null) {
+            if (mHardReferences == null) {
+                mHardReferences = new ArrayList<Instance>();
+            }
+            return mHardReferences;
+        }
+        int count = getHardReferenceCount();
+        ArrayList<Instance> references = new ArrayList<Instance>(count);
+        for (int i = 0; i < count; i++) {
+            references.add(getHardReference(i));
+        }
+        return references;
+    }
+
+    public int getHardReferenceCount() {
+        int count = mHardReferences != null ? mHardReferences.size() : 0;
+        SpilledReferences spilled = getSpilledReferences();
+        return spilled != null ? count + spilled.getSourceCount(mStorageIndex) : count;
+    }
+
+    public Instance getHardReference(int index) {
+        int count = mHardReferences != null ? mHardReferences.size() : 0;
+        if (index < count) {
+            return mHardReferences.get(index);
+        }
+        int order = getSpilledReferences().getSource(mStorageIndex, index - count);
+        return mHeap.mSnapshot.getTopologicalOrdering().get(order - 1);
+    }
+
+    //  The analysis state is only kept for objects that have a row in the columns of a snapshot.
+    private void checkStorageIndex() {
+        if (mStorageIndex < 0) {
+            throw new IllegalStateException(
+                    "Instance " + this + " was not added to a snapshot and has no analysis state");
+        }
+    }
+
+    private SpilledReferences getSpilledReferences() {
+        if (mStorageIndex < 0 || mHeap.mSnapshot.mSpilledReferences == null
+                || !mHeap.mSnapshot.mSpilledReferences.isFinished()) {
+            return null;
+        }
+        return mHeap.mSnapshot.mSpilledReferences;
     }
 
     public ArrayList<Instance> getSoftReferences() {
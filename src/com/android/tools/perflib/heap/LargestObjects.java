@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TIntLongProcedure;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * The objects with the largest shallow size in an HPROF stream, overall, per class or per heap,
+ * found in a single pass without building a {@link Snapshot}.
+ *
+ * Each group keeps its {@code k} largest objects in a bounded min-heap of primitive arrays, so
+ * memory is proportional to {@code k} times the number of groups whatever the size of the dump.
+ * Only the id, class, heap, size and file offset of an object are kept; {@link
+ * Entry#resolve(Snapshot)} turns one into an {@link Instance} once a snapshot has been parsed,
+ * and {@link Entry#getOffset()} locates its record in the file for readers that do not parse it
+ * whole.
+ */
+public final class LargestObjects {
+
+    public enum GroupBy {
+        NONE,
+        CLASS,
+        HEAP
+    }
+
+    /**
+     * One of the objects found. Ties in size are in no particular order.
+     */
+    public static final class Entry {
+
+        private final long mId;
+
+        private final long mClassId;
+
+        private final String mClassName;
+
+        private final int mHeapId;
+
+        private final long mSize;
+
+        private final long mOffset;
+
+        private Entry(long id, long classId, String className, int heapId, long size,
+                long offset) {
+            mId = id;
+            mClassId = classId;
+            mClassName = className;
+            mHeapId = heapId;
+            mSize = size;
+            mOffset = offset;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the id of the class of the object, or 0 for a primitive array whose class the
+         * dump does not name.
+         */
+        public long getClassId() {
+            return mClassId;
+        }
+
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        /**
+         * Returns the size of the field values of an instance, or of the elements of an array,
+         * as in {@link Instance#getSize()}.
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * Returns the offset in the file of the tag of the instance or array dump sub-record.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public Instance resolve(Snapshot snapshot) {
+            return snapshot.findInstance(mId);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@0x%x (%d bytes)", mClassName, mId, mSize);
+        }
+    }
+
+    /**
+     * A min-heap on size of at most {@code capacity} objects, stored column by column.
+     */
+    private static final class Group {
+
+        private final long mKey;
+
+        private long[] mSizes = new long[4];
+
+        private long[] mIds = new long[4];
+
+        private long[] mClassIds = new long[4];
+
+        private long[] mOffsets = new long[4];
+
+        private int[] mHeapIds = new int[4];
+
+        private int mCount;
+
+        Group(long key) {
+            mKey = key;
+        }
+
+        void offer(int capacity, long size, long id, long classId, int heapId, long offset) {
+            if (mCount < capacity) {
+                if (mCount == mSizes.length) {
+                    int length = Math.min(capacity, mCount * 2);
+                    mSizes = Arrays.copyOf(mSizes, length);
+                    mIds = Arrays.copyOf(mIds, length);
+                    mClassIds = Arrays.copyOf(mClassIds, length);
+                    mOffsets = Arrays.copyOf(mOffsets, length);
+                    mHeapIds = Arrays.copyOf(mHeapIds, length);
+                }
+                set(mCount, size, id, classId, heapId, offset);
+                siftUp(mCount++);
+            } else if (size > mSizes[0]) {
+                set(0, size, id, classId, heapId, offset);
+                siftDown(0);
+            }
+        }
+
+        private void set(int i, long size, long id, long classId, int heapId, long offset) {
+            mSizes[i] = size;
+            mIds[i] = id;
+            mClassIds[i] = classId;
+            mHeapIds[i] = heapId;
+            mOffsets[i] = offset;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (mSizes[parent] <= mSizes[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < mCount && mSizes[left] < mSizes[smallest]) {
+                    smallest = left;
+                }
+                if (right < mCount && mSizes[right] < mSizes[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long size = mSizes[i];
+            long id = mIds[i];
+            long classId = mClassIds[i];
+            int heapId = mHeapIds[i];
+            long offset = mOffsets[i];
+            set(i, mSizes[j], mIds[j], mClassIds[j], mHeapIds[j], mOffsets[j]);
+            set(j, size, id, classId, heapId, offset);
+        }
+    }
+
+    private final int mCapacity;
+
+    private final GroupBy mGroupBy;
+
+    private final List<Group> mGroups = new ArrayList<Group>();
+
+    private final TLongObjectHashMap<Group> mGroupsByKey = new TLongObjectHashMap<Group>();
+
+    private final TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
+
+    private final TIntObjectHashMap<String> mHeapNames = new TIntObjectHashMap<String>();
+
+    //  The string ids of the heap names, until they are looked up.
+    private final TIntLongHashMap mHeapNameIds = new TIntLongHashMap();
+
+    //  The ids of the primitive array classes, by type id.
+    private final long[] mPrimitiveArrayClassIds = new long[Type.LONG.getTypeId() + 1];
+
+    private LargestObjects(int k, GroupBy groupBy) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        mCapacity = k;
+        mGroupBy = groupBy;
+        mHeapNames.put(Snapshot.DEFAULT_HEAP_ID, "default");
+    }
+
+    /**
+     * Finds the {@code k} largest objects of each group in {@code file}. A truncated dump is read
+     * up to where it ends.
+     */
+    public static LargestObjects compute(File file, int k, GroupBy groupBy) throws IOException {
+        LargestObjects largest = new LargestObjects(k, groupBy);
+        largest.nameHeaps(HprofNames.read(file, largest.newHandler()));
+        return largest;
+    }
+
+    /**
+     * Finds the {@code k} largest objects of each group in the dump read from {@code in}, then
+     * closes it. A truncated dump is read up to where it ends.
+     */
+    public static LargestObjects compute(InputStream in, int k, GroupBy groupBy)
+            throws IOException {
+        LargestObjects largest = new LargestObjects(k, groupBy);
+        largest.nameHeaps(HprofNames.read(in, largest.newHandler()));
+        return largest;
+    }
+
+    public int getGroupCount() {
+        return mGroups.size();
+    }
+
+    /**
+     * Returns the class id or the heap id the objects of a group share, or 0 when objects are not
+     * grouped.
+     */
+    public long getGroupKey(int group) {
+        return mGroups.get(group).mKey;
+    }
+
+    public String getGroupName(int group) {
+        long key = mGroups.get(group).mKey;
+        switch (mGroupBy) {
+            case CLASS:
+                return mClassNames.get(key);
+            case HEAP:
+                return mHeapNames.get((int) key);
+            default:
+                return "all";
+        }
+    }
+
+    /**
+     * Returns the largest objects of a group, the largest first.
+     */
+    public List<Entry> getEntries(int group) {
+        Group heap = mGroups.get(group);
+        Integer[] order = new Integer[heap.mCount];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] sizes = heap.mSizes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sizes[b], sizes[a]);
+            }
+        });
+        List<Entry> entries = new ArrayList<Entry>(order.length);
+        for (int i : order) {
+            entries.add(new Entry(heap.mIds[i], heap.mClassIds[i],
+                    mClassNames.get(heap.mClassIds[i]), heap.mHeapIds[i], heap.mSizes[i],
+                    heap.mOffsets[i]));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the largest objects of all groups, the largest first.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i = 0; i < mGroups.size(); i++) {
+            entries.addAll(getEntries(i));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.mSize, a.mSize);
+            }
+        });
+        return entries;
+    }
+
+    private HprofNames.Handler newHandler() {
+        return new HprofNames.Handler() {
+            @Override
+            public void loadClass(long id, String name) {
+                LargestObjects.this.loadClass(id, name);
+            }
+
+            @Override
+            public void readHeapDump(HprofRecordReader reader, HprofNames names)
+                    throws IOException {
+                LargestObjects.this.readHeapDump(reader, names);
+            }
+        };
+    }
+
+    private void nameHeaps(final HprofNames names) {
+        mHeapNameIds.forEachEntry(new TIntLongProcedure() {
+            @Override
+            public boolean execute(int heapId, long nameId) {
+                mHeapNames.put(heapId, names.getString(nameId));
+                return true;
+            }
+        });
+    }
+
+    private void readHeapDump(HprofRecordReader reader, HprofNames names) throws IOException {
+        int idSize = reader.getIdSize();
+        int heapId = Snapshot.DEFAULT_HEAP_ID;
+        for (int tag = reader.nextSubRecord(); tag >= 0; tag = reader.nextSubRecord()) {
+            switch (tag) {
+                case HprofParser.ROOT_HEAP_DUMP_INFO:
+                    heapId = reader.getInt(0);
+                    mHeapNameIds.put(heapId, reader.getId(4));
+                    names.keep(reader.getId(4));
+                    break;
+
+                case HprofParser.ROOT_INSTANCE_DUMP:
+                    // Id, stack serial, class id, then the length of the values.
+                    offer(reader.getInt(idSize + 4 + idSize), reader.getId(0),
+                            reader.getId(idSize + 4), heapId, reader.getSubRecordPosition());
+                    break;
+
+                case HprofParser.ROOT_OBJECT_ARRAY_DUMP:
+                    offer((long) reader.getInt(idSize + 4) * idSize, reader.getId(0),
+                            reader.getId(idSize + 4 + 4), heapId, reader.getSubRecordPosition());
+                    break;
+
+                case HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP: {
+                    Type type = reader.getArrayType();
+                    offer((long) reader.getInt(idSize + 4) * type.getSize(), reader.getId(0),
+                            mPrimitiveArrayClassIds[type.getTypeId()], heapId,
+                            reader.getSubRecordPosition());
+                    break;
+                }
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void offer(long size, long id, long classId, int heapId, long offset) {
+        long key;
+        switch (mGroupBy) {
+            case CLASS:
+                key = classId;
+                break;
+            case HEAP:
+                key = heapId;
+                break;
+            default:
+                key = 0;
+                break;
+        }
+        Group group = mGroupsByKey.get(key);
+        if (group == null) {
+            group = new Group(key);
+            mGroupsByKey.put(key, group);
+            mGroups.add(group);
+        }
+        group.offer(mCapacity, size, id, classId, heapId, offset);
+    }
+
+    private void loadClass(long id, String name) {
+        mClassNames.put(id, name);
+        if (name == null) {
+            return;
+        }
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT && mPrimitiveArrayClassIds[type.getTypeId()] == 0
+                    && (name.equals(Type.getClassNameOfPrimitiveArray(type))
+                    || name.equals(ClassHistogram.getVmPrimitiveArrayName(type)))) {
+                mPrimitiveArrayClassIds[type.getTypeId()] = id;
+            }
+        }
+    }
+}
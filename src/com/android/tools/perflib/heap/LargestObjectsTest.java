@@ -0,0 +1,90 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LargestObjectsTest {
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    @Before
+    public void runBefore() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 200);
+        generator.addLeak("retained-key", true);
+        mFile = generator.writeTempFile("largest");
+        mSnapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testLargestOverall() throws Exception {
+        LargestObjects largest = LargestObjects.compute(mFile, 10,
+                LargestObjects.GroupBy.NONE);
+
+        assertEquals(1, largest.getGroupCount());
+        List<LargestObjects.Entry> entries = largest.getEntries(0);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (Heap heap : mSnapshot.getHeaps()) {
+            for (Instance instance : heap.getInstances()) {
+                expected.add(instance.getSize());
+            }
+        }
+        Collections.sort(expected, Collections.<Integer>reverseOrder());
+        assertEquals(10, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            LargestObjects.Entry entry = entries.get(i);
+            assertEquals((long) expected.get(i), entry.getSize());
+            Instance instance = entry.resolve(mSnapshot);
+            assertEquals(entry.getSize(), instance.getSize());
+            assertEquals(instance.getClassObj().getClassName(), entry.getClassName());
+            assertEquals(instance.getHeap().getId(), entry.getHeapId());
+        }
+    }
+
+    @org.junit.Test
+    public void testGroupedByClass() throws Exception {
+        LargestObjects largest = LargestObjects.compute(mFile, 3,
+                LargestObjects.GroupBy.CLASS);
+
+        for (int group = 0; group < largest.getGroupCount(); group++) {
+            ClassObj classObj = mSnapshot.findClass(largest.getGroupName(group));
+            assertEquals(classObj.getId(), largest.getGroupKey(group));
+            List<LargestObjects.Entry> entries = largest.getEntries(group);
+            assertEquals(Math.min(3, classObj.getInstanceCount()), entries.size());
+            for (LargestObjects.Entry entry : entries) {
+                assertEquals(classObj, entry.resolve(mSnapshot).getClassObj());
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testOffsets() throws Exception {
+        LargestObjects largest = LargestObjects.compute(mFile, 5,
+                LargestObjects.GroupBy.HEAP);
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(mFile);
+
+        for (LargestObjects.Entry entry : largest.getEntries()) {
+            buffer.setPosition(entry.getOffset());
+            int tag = buffer.readByte() & 0xff;
+            assertTrue(tag == HprofParser.ROOT_INSTANCE_DUMP
+                    || tag == HprofParser.ROOT_OBJECT_ARRAY_DUMP
+                    || tag == HprofParser.ROOT_PRIMITIVE_ARRAY_DUMP);
+            assertEquals(entry.getId(), buffer.readInt() & 0xffffffffL);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.StreamingHprofBuffer;
 
 import java.io.File;
 import java.util.Map;
@@ -28,14 +29,31 @@ public class Main {
     public static void main(String argv[]) {
         try {
             long start = System.nanoTime();
-            HprofBuffer buffer = new MemoryMappedFileBuffer(new File(argv[0]));
-            Snapshot snapshot = (new HprofParser(buffer)).parse();
+            if ("--histogram".equals(argv[0])) {
+                // Counts instances without building a snapshot.
+                ClassHistogram.compute(new File(argv[1])).dumpInstanceCounts();
+                System.out.println("Time: " + (System.nanoTime() - start) / 1000000 + "ms");
+                return;
+            }
+
+            Snapshot snapshot;
+            if ("-".equals(argv[0])) {
+                // Read the dump from stdin, e.g. piped from adb shell am dumpheap.
+                File spillFile = File.createTempFile("hprof", ".spill");
+                spillFile.deleteOnExit();
+                StreamingHprofBuffer stream = new StreamingHprofBuffer(System.in);
+                snapshot = (new HprofParser(stream, spillFile)).parse();
+            } else {
+                HprofBuffer buffer = new MemoryMappedFileBuffer(new File(argv[0]));
+                snapshot = (new HprofParser(buffer)).parse();
+            }
 
             testClassesQuery(snapshot);
             testAllClassesQuery(snapshot);
             testFindInstancesOf(snapshot);
             testFindAllInstancesOf(snapshot);
 
+            System.out.print(snapshot.getMetrics());
             System.out.println("Memory stats: free=" + Runtime.getRuntime().freeMemory()
                     + " / total=" + Runtime.getRuntime().totalMemory());
             System.out.println("Time: " + (System.nanoTime() - start) / 1000000 + "ms");
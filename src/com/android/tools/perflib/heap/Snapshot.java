@@ -19,10 +19,16 @@ package com.android.tools.perflib.heap;
 import com.android.tools.perflib.heap.analysis.Dominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
+import com.android.tools.perflib.heap.io.ColumnStorage;
 import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.android.tools.perflib.heap.io.HprofBufferStats;
+import com.android.tools.perflib.heap.io.InstrumentedHprofBuffer;
 import com.google.common.collect.ImmutableList;
 import gnu.trove.THashSet;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.util.*;
 
 /*
@@ -39,10 +45,10 @@ public class Snapshot {
     //  Special root object used in dominator computation for objects reachable via multiple roots.
     public static final Instance SENTINEL_ROOT = new RootObj(RootType.UNKNOWN);
 
-    private static final int DEFAULT_HEAP_ID = 0;
+    static final int DEFAULT_HEAP_ID = 0;
 
 
-    final HprofBuffer mBuffer;
+    HprofBuffer mBuffer;
 
 
     ArrayList<Heap> mHeaps = new ArrayList<Heap>();
@@ -54,6 +60,8 @@ public class Snapshot {
 
     private Dominators mDominators;
 
+    private final HeapMetrics mMetrics = new HeapMetrics();
+
     //  The set of all classes that are (sub)class(es) of java.lang.ref.Reference.
     private THashSet<ClassObj> mReferenceClasses = new THashSet<ClassObj>();
 
@@ -61,12 +69,169 @@ public class Snapshot {
 
     private long mIdSizeMask = 0x00000000ffffffffl;
 
+    private int mIdSize = 8;
+
+    //  The classes of primitive arrays, by type id, once resolved.
+    private ClassObj[] mPrimitiveArrayClasses;
+
+    //  Every instance and class of every heap, by id.
+    private IdMap<Instance> mObjects = IdMap.create(8);
+
+    private ColumnStorage mColumnStorage = new ColumnStorage();
+
+    //  The number of instances and classes added so far, and so of rows in the analysis columns.
+    private int mInstanceCount;
+
+    //  The instances and classes by storage index, built on demand.
+    private Instance[] mObjectsByIndex;
+
+    ColumnStorage.IntColumn mTopologicalOrders;
+
+    ColumnStorage.IntColumn mDistancesToGcRoot;
+
+    ColumnStorage.LongColumn mRetainedSizes;
+
+    //  The number of retained sizes per instance, i.e. the number of heaps.
+    int mRetainedSizesWidth;
+
+    private long mSpillThreshold = -1;
+
+    private File mSpillDirectory;
+
+    SpilledReferences mSpilledReferences;
+
     public Snapshot(HprofBuffer buffer) {
         mBuffer = buffer;
         setToDefaultHeap();
     }
 
 
+    /**
+     * Replaces the buffer instances read their values from, e.g. once a stream has been parsed
+     * and its payloads are available from a random-access file.
+     */
+    void setBuffer(HprofBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Returns the timings and record counts collected while parsing and analyzing this snapshot.
+     */
+    public HeapMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the access counters of the buffer backing this snapshot, or null if the buffer is
+     * not an {@link InstrumentedHprofBuffer}.
+     */
+    public HprofBufferStats getBufferStats() {
+        if (mBuffer instanceof InstrumentedHprofBuffer) {
+            return ((InstrumentedHprofBuffer) mBuffer).getStats();
+        }
+        return null;
+    }
+
+    /**
+     * Sets where the per-instance analysis state (topological order, distance to the GC roots
+     * and retained sizes) is kept once {@link #computeDominators()} runs. By default it is kept
+     * on the Java heap; a {@link ColumnStorage} with a smaller heap budget moves it to direct
+     * buffers or mapped files. Must be called before the analysis, and the storage closed by the
+     * caller once the snapshot is no longer used.
+     *
+     * The class, size, offset, immediate dominator and references of an instance stay fields of
+     * the {@link Instance}, on the Java heap and outside of the budget, as every accessor of the
+     * object model reads them and resolving them from columns would take a table from row to
+     * instance as large as the fields.
+     */
+    public void setColumnStorage(ColumnStorage storage) {
+        if (mTopologicalOrders != null) {
+            throw new IllegalStateException("Analysis columns have already been allocated");
+        }
+        mColumnStorage = storage;
+    }
+
+    public ColumnStorage getColumnStorage() {
+        return mColumnStorage;
+    }
+
+    /**
+     * Allocates the analysis columns, or reallocates them if instances or heaps were added since,
+     * giving the previous ones back to the storage.
+     */
+    void ensureColumns() {
+        if (mTopologicalOrders != null && mTopologicalOrders.size() >= mInstanceCount
+                && mRetainedSizesWidth == mHeaps.size()) {
+            return;
+        }
+        try {
+            ColumnStorage.IntColumn orders = mColumnStorage.allocateInts(mInstanceCount, 0);
+            ColumnStorage.IntColumn distances =
+                    mColumnStorage.allocateInts(mInstanceCount, Integer.MAX_VALUE);
+            int width = mHeaps.size();
+            ColumnStorage.LongColumn retainedSizes =
+                    mColumnStorage.allocateLongs((long) mInstanceCount * width);
+            if (mTopologicalOrders != null) {
+                for (long i = 0; i < mTopologicalOrders.size(); i++) {
+                    orders.set(i, mTopologicalOrders.get(i));
+                    distances.set(i, mDistancesToGcRoot.get(i));
+                    for (int j = 0; j < mRetainedSizesWidth; j++) {
+                        retainedSizes.set(i * width + j,
+                                mRetainedSizes.get(i * mRetainedSizesWidth + j));
+                    }
+                }
+            }
+            if (mTopologicalOrders != null) {
+                mColumnStorage.free(mTopologicalOrders);
+                mColumnStorage.free(mDistancesToGcRoot);
+                mColumnStorage.free(mRetainedSizes);
+            }
+            mTopologicalOrders = orders;
+            mDistancesToGcRoot = distances;
+            mRetainedSizes = retainedSizes;
+            mRetainedSizesWidth = width;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not allocate the analysis columns", e);
+        }
+    }
+
+    /**
+     * Makes hard references between instances be collected in sorted runs, spilled to temporary
+     * files in {@code directory} whenever they take more than {@code memoryThreshold} bytes, then
+     * merged into columns of the {@link ColumnStorage} once the graph has been sorted
+     * topologically. Together with a bounded storage, this lets dominators be computed on graphs
+     * whose edges do not fit in memory. Must be called before the analysis.
+     */
+    public void setReferenceSpilling(long memoryThreshold, File directory) {
+        if (mSpilledReferences != null) {
+            throw new IllegalStateException("References have already been collected");
+        }
+        mSpillThreshold = memoryThreshold;
+        mSpillDirectory = directory;
+    }
+
+    /**
+     * Records a hard reference in the spilled runs, if references are spilled and the runs have
+     * not been merged yet.
+     */
+    boolean spillReference(Instance target, Instance source) {
+        if (mSpillThreshold < 0 || target.mStorageIndex < 0 || source.mStorageIndex < 0) {
+            return false;
+        }
+        if (mSpilledReferences == null) {
+            mSpilledReferences =
+                    new SpilledReferences(mInstanceCount, mSpillThreshold, mSpillDirectory);
+        } else if (mSpilledReferences.isFinished()) {
+            return false;
+        }
+        try {
+            mSpilledReferences.add(target.mStorageIndex, source.mStorageIndex);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not spill references", e);
+        }
+        return true;
+    }
+
     public Heap setToDefaultHeap() {
         return setHeapTo(DEFAULT_HEAP_ID, "default");
     }
@@ -78,6 +243,7 @@ public class Snapshot {
         if (heap == null) {
             heap = new Heap(id, name);
             heap.mSnapshot = this;
+            heap.setIdSize(mIdSize);
             mHeaps.add(heap);
         }
 
@@ -168,6 +334,13 @@ public class Snapshot {
         }
         mTypeSizes[Type.OBJECT.getTypeId()] = size;
         mIdSizeMask = 0xffffffffffffffffl >>> ((8 - size) * 8);
+
+        // Must be called before any object is added, ids of up to 4 bytes are then kept as ints.
+        mIdSize = size;
+        mObjects = IdMap.create(size);
+        for (Heap heap : mHeaps) {
+            heap.setIdSize(size);
+        }
     }
 
     public final int getTypeSize(Type type) {
@@ -179,30 +352,73 @@ public class Snapshot {
     }
 
     public final void addInstance(long id, Instance instance) {
+        instance.mStorageIndex = mInstanceCount++;
+        mObjectsByIndex = null;
         mCurrentHeap.addInstance(id, instance);
         instance.setHeap(mCurrentHeap);
     }
 
     public final void addClass(long id, ClassObj theClass) {
+        theClass.mStorageIndex = mInstanceCount++;
+        mObjectsByIndex = null;
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
     }
 
-    public final Instance findInstance(long id) {
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < mHeaps.size(); i++) {
-            Instance instance = mHeaps.get(i).getInstance(id);
+    /**
+     * Returns the number of instances and classes in all heaps, the bound of
+     * {@link Instance#getObjectIndex()}.
+     */
+    public final int getObjectCount() {
+        return mInstanceCount;
+    }
 
-            if (instance != null) {
-                return instance;
+    /**
+     * Returns the instance or class whose {@link Instance#getObjectIndex()} is {@code index}.
+     */
+    public final Instance getObject(int index) {
+        if (mObjectsByIndex == null) {
+            Instance[] objects = new Instance[mInstanceCount];
+            for (Heap heap : mHeaps) {
+                for (Instance instance : heap.mInstances) {
+                    objects[instance.mStorageIndex] = instance;
+                }
+                for (ClassObj classObj : heap.getClasses()) {
+                    objects[classObj.mStorageIndex] = classObj;
+                }
             }
+            mObjectsByIndex = objects;
         }
+        return mObjectsByIndex[index];
+    }
+
+    /**
+     * Adds an instance or a class to the index of all objects. When several objects share an id,
+     * instances are preferred over classes, then the first one added, as when heaps were looked
+     * up one after the other.
+     */
+    final void indexObject(long id, Instance instance) {
+        Instance previous = mObjects.put(id, instance);
+        if (previous != null
+                && !(previous instanceof ClassObj && !(instance instanceof ClassObj))) {
+            mObjects.put(id, previous);
+        }
+    }
 
-        //  Couldn't find an instance of a class, look for a class object
-        return findClass(id);
+    /**
+     * Returns the instance with this id in any heap or, if there is none, the class object.
+     */
+    public final Instance findInstance(long id) {
+        return mObjects.get(id);
     }
 
     public final ClassObj findClass(long id) {
+        Instance instance = mObjects.get(id);
+        if (instance == null || instance instanceof ClassObj) {
+            return (ClassObj) instance;
+        }
+
+        //  An instance shares the id, look for a class object in each heap.
         //noinspection ForLoopReplaceableByForEach
         for (int i = 0; i < mHeaps.size(); i++) {
             ClassObj theClass = mHeaps.get(i).getClass(id);
@@ -234,6 +450,16 @@ public class Snapshot {
         return null;
     }
 
+    /**
+     * Finds the class of the arrays of a primitive type, such as <code>byte[]</code>.
+     */
+    final ClassObj findPrimitiveArrayClass(Type type) {
+        if (mPrimitiveArrayClasses != null) {
+            return mPrimitiveArrayClasses[type.getTypeId()];
+        }
+        return findClass(Type.getClassNameOfPrimitiveArray(type));
+    }
+
     /**
      * Finds all <code>ClassObj</code>s with class name that match the given <code>name</code>.
      *
@@ -252,10 +478,22 @@ public class Snapshot {
         return classObjs;
     }
 
+    /**
+     * Links classes to their super classes and instances to their classes. Both are looked up
+     * once here and kept on the objects, as is the class of each primitive array type.
+     */
     public void resolveClasses() {
         ClassObj clazz = findClass(JAVA_LANG_CLASS);
         int javaLangClassSize = clazz != null ? clazz.getInstanceSize() : 0;
 
+        mPrimitiveArrayClasses = new ClassObj[Type.LONG.getTypeId() + 1];
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT) {
+                mPrimitiveArrayClasses[type.getTypeId()] =
+                        findClass(Type.getClassNameOfPrimitiveArray(type));
+            }
+        }
+
         for (Heap heap : mHeaps) {
             for (ClassObj classObj : heap.getClasses()) {
                 ClassObj superClass = classObj.getSuperClassObj();
@@ -301,12 +539,23 @@ public class Snapshot {
     // TODO: Break dominator computation into fixed chunks, because it can be unbounded/expensive.
     public void computeDominators() {
         if (mDominators == null) {
+            ensureColumns();
+            mMetrics.startPhase(HeapMetrics.Phase.TOPOLOGICAL_SORT);
             mTopSort = TopologicalSort.compute(getGCRoots());
+            if (mSpilledReferences != null) {
+                try {
+                    mSpilledReferences.finish(mColumnStorage, mTopologicalOrders);
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not merge spilled references", e);
+                }
+            }
             mDominators = new Dominators(this, mTopSort);
             mDominators.computeRetainedSizes();
 
+            mMetrics.startPhase(HeapMetrics.Phase.GC_ROOT_DISTANCES);
             ShortestDistanceVisitor shortestDistanceVisitor = new ShortestDistanceVisitor();
             shortestDistanceVisitor.doVisit(getGCRoots());
+            mMetrics.endPhase();
         }
     }
 
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.ColumnStorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The hard references between instances, collected as (target, source) pairs of storage indices
+ * rather than as lists on each instance, for snapshots whose edges do not fit in memory.
+ *
+ * Pairs are buffered in a long array of bounded size. Whenever it fills up, it is sorted by target
+ * and written to a temporary file as a run. {@link #finish} merges the runs into a compressed
+ * sparse row layout: for each target, in the columns of a {@link ColumnStorage}, the offset of
+ * its first source, then the sources themselves. Sources are stored by topological order, so that
+ * they can be looked up in {@link Snapshot#getTopologicalOrdering()}; sources the topological sort
+ * did not reach are dropped, as they cannot dominate anything.
+ */
+class SpilledReferences {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int mNodeCount;
+
+    private final File mDirectory;
+
+    //  Pairs packed as target << 32 | source, grown up to mMaxPairCount.
+    private long[] mPairs;
+
+    private final int mMaxPairCount;
+
+    private int mPairCount;
+
+    private long mTotalPairCount;
+
+    private final List<File> mRuns = new ArrayList<File>();
+
+    private int mRunCount;
+
+    //  Filled in by finish(): sources of target i are at mOffsets[i] to mOffsets[i + 1].
+    private ColumnStorage.LongColumn mOffsets;
+
+    private ColumnStorage.IntColumn mSources;
+
+    /**
+     * @param nodeCount the number of storage indices.
+     * @param memoryThreshold the number of bytes pairs may take in memory before being spilled.
+     * @param directory where to write the runs.
+     */
+    SpilledReferences(int nodeCount, long memoryThreshold, File directory) {
+        mNodeCount = nodeCount;
+        mDirectory = directory;
+        mMaxPairCount = (int) Math.max(1, Math.min(memoryThreshold / 8, Integer.MAX_VALUE - 8));
+        mPairs = new long[Math.min(1024, mMaxPairCount)];
+    }
+
+    boolean isFinished() {
+        return mOffsets != null;
+    }
+
+    /**
+     * Returns the number of runs written to disk so far.
+     */
+    int getRunCount() {
+        return mRunCount;
+    }
+
+    void add(int target, int source) throws IOException {
+        if (mPairCount == mPairs.length) {
+            if (mPairCount < mMaxPairCount) {
+                mPairs = Arrays.copyOf(mPairs, (int) Math.min(mMaxPairCount, 2L * mPairCount));
+            } else {
+                spill();
+            }
+        }
+        mPairs[mPairCount++] = ((long) target << 32) | source;
+        mTotalPairCount++;
+    }
+
+    /**
+     * Builds the sparse rows, then deletes the runs. No pair may be added afterwards.
+     *
+     * @param topologicalOrders the topological order of each storage index, which sources are
+     *                          translated to.
+     */
+    void finish(ColumnStorage storage, ColumnStorage.IntColumn topologicalOrders)
+            throws IOException {
+        mOffsets = storage.allocateLongs(mNodeCount + 1L);
+        mSources = storage.allocateInts(mTotalPairCount, 0);
+        if (mRuns.isEmpty()) {
+            Arrays.sort(mPairs, 0, mPairCount);
+            long position = 0;
+            for (int i = 0; i < mPairCount; i++) {
+                if (append(position, mPairs[i], topologicalOrders)) {
+                    position++;
+                }
+            }
+        } else {
+            spill();
+            merge(topologicalOrders);
+        }
+        mPairs = null;
+        for (int target = 0; target < mNodeCount; target++) {
+            // Targets without sources start where the next one does.
+            mOffsets.set(target + 1, mOffsets.get(target + 1) + mOffsets.get(target));
+        }
+    }
+
+    int getSourceCount(int target) {
+        return (int) (mOffsets.get(target + 1) - mOffsets.get(target));
+    }
+
+    /**
+     * Returns the topological order of the {@code i}th source of {@code target}.
+     */
+    int getSource(int target, int i) {
+        return mSources.get(mOffsets.get(target) + i);
+    }
+
+    private boolean append(long position, long pair,
+            ColumnStorage.IntColumn topologicalOrders) {
+        int order = topologicalOrders.get((int) pair);
+        if (order == 0) {
+            return false;
+        }
+        mSources.set(position, order);
+        // Count the sources of each target for now, finish() sums them into offsets.
+        mOffsets.add((pair >>> 32) + 1, 1);
+        return true;
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(mPairs, 0, mPairCount);
+        File run = File.createTempFile("references", ".run", mDirectory);
+        run.deleteOnExit();
+        mRuns.add(run);
+        mRunCount++;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+        try {
+            for (int i = 0; i < mPairCount; i++) {
+                out.writeLong(mPairs[i]);
+            }
+        } finally {
+            out.close();
+        }
+        mPairCount = 0;
+    }
+
+    private void merge(ColumnStorage.IntColumn topologicalOrders) throws IOException {
+        int runCount = mRuns.size();
+        DataInputStream[] inputs = new DataInputStream[runCount];
+        // A min-heap of run indices, ordered by the pair at the head of each run.
+        long[] heads = new long[runCount];
+        int[] heap = new int[runCount];
+        int heapSize = 0;
+        try {
+            for (int i = 0; i < runCount; i++) {
+                inputs[i] = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mRuns.get(i)), BUFFER_SIZE));
+                if (readHead(inputs[i], heads, i)) {
+                    heap[heapSize++] = i;
+                    siftUp(heap, heads, heapSize - 1);
+                }
+            }
+            long position = 0;
+            while (heapSize > 0) {
+                int run = heap[0];
+                if (append(position, heads[run], topologicalOrders)) {
+                    position++;
+                }
+                if (!readHead(inputs[run], heads, run)) {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(heap, heads, heapSize);
+            }
+        } finally {
+            for (int i = 0; i < runCount; i++) {
+                if (inputs[i] != null) {
+                    inputs[i].close();
+                }
+                mRuns.get(i).delete();
+            }
+            mRuns.clear();
+        }
+    }
+
+    private static boolean readHead(DataInputStream in, long[] heads, int run)
+            throws IOException {
+        try {
+            heads[run] = in.readLong();
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static void siftUp(int[] heap, long[] heads, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heads[heap[parent]] <= heads[heap[i]]) {
+                return;
+            }
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, long[] heads, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heads[heap[left]] < heads[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && heads[heap[right]] < heads[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(heap, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int run = heap[i];
+        heap[i] = heap[j];
+        heap[j] = run;
+    }
+}
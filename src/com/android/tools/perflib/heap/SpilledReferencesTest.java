@@ -0,0 +1,88 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.ColumnStorage;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpilledReferencesTest {
+
+    private File mFile;
+
+    private File mDirectory;
+
+    private ColumnStorage mStorage;
+
+    @Before
+    public void runBefore() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(7, 400);
+        generator.addLeak("retained-key", true);
+        mFile = generator.writeTempFile("spilled");
+        mDirectory = File.createTempFile("spilled", "");
+        mDirectory.delete();
+        mDirectory.mkdir();
+    }
+
+    @After
+    public void runAfter() {
+        if (mStorage != null) {
+            mStorage.close();
+        }
+        mFile.delete();
+        delete(mDirectory);
+    }
+
+    @org.junit.Test
+    public void testSameDominatorsAsInMemory() throws Exception {
+        Snapshot expected = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        expected.computeDominators();
+
+        Snapshot actual = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        mStorage = new ColumnStorage(0, mDirectory);
+        actual.setColumnStorage(mStorage);
+        // 128 pairs per run.
+        actual.setReferenceSpilling(1024, mDirectory);
+        actual.computeDominators();
+
+        assertTrue(actual.mSpilledReferences.getRunCount() > 10);
+        assertEquals(expected.getReachableInstances().size(),
+                actual.getReachableInstances().size());
+        for (Instance instance : expected.getReachableInstances()) {
+            Instance other = actual.findInstance(instance.getId());
+            assertEquals(instance.getImmediateDominator().getId(),
+                    other.getImmediateDominator().getId());
+            assertEquals(instance.getTotalRetainedSize(), other.getTotalRetainedSize());
+            assertEquals(ids(instance.getHardReferences()), ids(other.getHardReferences()));
+        }
+
+        mStorage.close();
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    private static List<Long> ids(List<Instance> instances) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Instance instance : instances) {
+            ids.add(instance.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
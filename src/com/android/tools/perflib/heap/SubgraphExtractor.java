@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TIntObjectHashMap;
+
+/**
+ * Writes the part of a {@link Snapshot} that matters for a handful of instances, typically a
+ * leaking instance, to a new HPROF file that {@link HprofParser} can read back.
+ *
+ * The file holds the instances themselves, everything they retain or reach (see {@link Scope}),
+ * and, unless disabled, the shortest path from each of them to a GC root. It also holds the
+ * classes and super classes of these objects, the roots that point to them, and for thread-bound
+ * roots the thread, its name and its stack trace. References to objects that are left out are
+ * written as null, and allocation stack traces are dropped.
+ */
+public class SubgraphExtractor {
+
+    public enum Scope {
+        /** The objects only reachable through the instances, which requires dominators. */
+        RETAINED,
+        /** All the objects reachable from the instances. */
+        REACHABLE
+    }
+
+    private final Snapshot mSnapshot;
+
+    private Scope mScope = Scope.RETAINED;
+
+    private boolean mIncludePathsToRoots = true;
+
+    private HprofWriter mWriter;
+
+    private Map<String, Long> mStringIds;
+
+    public SubgraphExtractor(Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    public void setScope(Scope scope) {
+        mScope = scope;
+    }
+
+    /**
+     * Whether to include the shortest path from each instance to a GC root, true by default. This
+     * requires the dominators of the snapshot, which are computed if needed.
+     */
+    public void setIncludePathsToRoots(boolean includePathsToRoots) {
+        mIncludePathsToRoots = includePathsToRoots;
+    }
+
+    /**
+     * Returns the objects that {@link #write(Collection, OutputStream)} would write for {@code
+     * instances}, not counting the classes, threads and roots that come with them.
+     */
+    public Set<Instance> getSubgraph(Collection<? extends Instance> instances) {
+        if (mScope == Scope.RETAINED || mIncludePathsToRoots) {
+            mSnapshot.computeDominators();
+        }
+
+        Set<Instance> subgraph = new LinkedHashSet<Instance>();
+        ArrayDeque<Instance> queue = new ArrayDeque<Instance>();
+        for (Instance instance : instances) {
+            if (subgraph.add(instance)) {
+                queue.add(instance);
+            }
+        }
+        while (!queue.isEmpty()) {
+            for (Instance reference : getReferences(queue.poll())) {
+                // A node dominated by one of the instances is dominated through a path of such
+                // nodes, so the breadth-first search never needs to go through other ones.
+                if ((mScope == Scope.REACHABLE
+                        || subgraph.contains(reference.getImmediateDominator()))
+                        && subgraph.add(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+
+        if (mIncludePathsToRoots) {
+            for (Instance instance : instances) {
+                for (Instance node = instance.getNextInstanceToGcRoot(); node != null;
+                        node = node.getNextInstanceToGcRoot()) {
+                    subgraph.add(node);
+                }
+            }
+        }
+        return subgraph;
+    }
+
+    public void write(Collection<? extends Instance> instances, File file) throws IOException {
+        write(instances, new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    /**
+     * Writes the subgraph of {@code instances} to {@code out}, then closes it.
+     */
+    public void write(Collection<? extends Instance> instances, OutputStream out)
+            throws IOException {
+        Set<Instance> objects = getSubgraph(instances);
+
+        List<RootObj> roots = new ArrayList<RootObj>();
+        TIntObjectHashMap<ThreadObj> threads = new TIntObjectHashMap<ThreadObj>();
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            if (root.getRootType() == RootType.SYSTEM_CLASS
+                    || !objects.contains(root.getReferredInstance())) {
+                // System classes are added below, with the other classes.
+                continue;
+            }
+            roots.add(root);
+            ThreadObj thread = isThreadBound(root.getRootType())
+                    ? root.getHeap().getThread(root.mThread) : null;
+            if (thread != null && !threads.containsKey(root.mThread)) {
+                threads.put(root.mThread, thread);
+                addThread(mSnapshot.findInstance(thread.mId), objects);
+            }
+        }
+
+        Set<ClassObj> classes = new LinkedHashSet<ClassObj>();
+        for (Instance instance : objects) {
+            ClassObj classObj = instance instanceof ClassObj
+                    ? (ClassObj) instance : instance.getClassObj();
+            for (; classObj != null; classObj = classObj.getSuperClassObj()) {
+                classes.add(classObj);
+            }
+        }
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            if (root.getRootType() == RootType.SYSTEM_CLASS
+                    && classes.contains(root.getReferredInstance())) {
+                roots.add(root);
+            }
+        }
+        objects.addAll(classes);
+
+        mStringIds = new HashMap<String, Long>();
+        mWriter = new HprofWriter(out, mSnapshot.getTypeSize(Type.OBJECT));
+        try {
+            writeClassesAndThreads(classes, threads);
+            writeRoots(roots, threads);
+
+            // Objects of the default heap go first, before any HEAP_DUMP_INFO sub-record, so that
+            // dumps of other VMs than Android's stay free of them.
+            Heap defaultHeap = mSnapshot.getHeap(Snapshot.DEFAULT_HEAP_ID);
+            writeHeap(defaultHeap, classes, objects);
+            for (Heap heap : mSnapshot.getHeaps()) {
+                if (heap != defaultHeap) {
+                    writeHeap(heap, classes, objects);
+                }
+            }
+        } finally {
+            mWriter.close();
+            mWriter = null;
+            mStringIds = null;
+        }
+    }
+
+    private void writeClassesAndThreads(Set<ClassObj> classes,
+            TIntObjectHashMap<ThreadObj> threads) throws IOException {
+        int serial = 1;
+        for (ClassObj classObj : classes) {
+            for (Field field : classObj.getFields()) {
+                stringId(field.getName());
+            }
+            for (Field field : classObj.mStaticFields) {
+                stringId(field.getName());
+            }
+            mWriter.writeLoadClass(serial++, classObj.getId(), 0,
+                    stringId(classObj.getClassName()));
+        }
+
+        for (int threadSerial : threads.keys()) {
+            ThreadObj thread = threads.get(threadSerial);
+            StackTrace trace = mSnapshot.getHeap(Snapshot.DEFAULT_HEAP_ID).getStackTrace(
+                    thread.mStackTrace);
+            if (trace == null) {
+                continue;
+            }
+            long[] frameIds = new long[trace.mFrames.length];
+            for (int i = 0; i < frameIds.length; i++) {
+                StackFrame frame = trace.mFrames[i];
+                mWriter.writeStackFrame(frame.mId, stringId(frame.mMethodName),
+                        stringId(frame.mSignature), stringId(frame.mFilename), 0,
+                        frame.mLineNumber);
+                frameIds[i] = frame.mId;
+            }
+            mWriter.writeStackTrace(trace.mSerialNumber, threadSerial, frameIds);
+        }
+
+        for (Heap heap : mSnapshot.getHeaps()) {
+            stringId(heap.getName());
+        }
+    }
+
+    private void writeRoots(List<RootObj> roots, TIntObjectHashMap<ThreadObj> threads)
+            throws IOException {
+        for (int threadSerial : threads.keys()) {
+            ThreadObj thread = threads.get(threadSerial);
+            mWriter.writeThreadObject(thread.mId, threadSerial, thread.mStackTrace);
+        }
+        for (RootObj root : roots) {
+            RootType type = root.getRootType();
+            if (!isThreadBound(type)) {
+                mWriter.writeRoot(type, root.getId());
+            } else if (threads.containsKey(root.mThread)) {
+                // Roots only keep the depth of their frame as the offset of their stack trace.
+                int frameNumber = root.mStack != null ? root.mStack.mOffset : 0;
+                mWriter.writeRoot(type, root.getId(), root.mThread, frameNumber);
+            } else {
+                // The parser needs the thread of a thread-bound root, which was not in the dump.
+                mWriter.writeRoot(RootType.UNKNOWN, root.getId());
+            }
+        }
+    }
+
+    private void writeHeap(Heap heap, Set<ClassObj> classes, Set<Instance> objects)
+            throws IOException {
+        boolean started = false;
+        for (ClassObj classObj : classes) {
+            if (classObj.getHeap() == heap) {
+                started = startHeap(heap, started);
+                writeClass(classObj, objects);
+            }
+        }
+        for (Instance instance : objects) {
+            if (instance.getHeap() != heap || instance instanceof ClassObj) {
+                continue;
+            }
+            started = startHeap(heap, started);
+            if (instance instanceof ClassInstance) {
+                writeInstance((ClassInstance) instance, objects);
+            } else if (instance instanceof ArrayInstance) {
+                writeArray((ArrayInstance) instance, objects);
+            }
+        }
+    }
+
+    private boolean startHeap(Heap heap, boolean started) throws IOException {
+        if (!started && heap.getId() != Snapshot.DEFAULT_HEAP_ID) {
+            mWriter.writeHeapDumpInfo(heap.getId(), stringId(heap.getName()));
+        }
+        return true;
+    }
+
+    private void writeClass(ClassObj classObj, Set<Instance> objects) throws IOException {
+        Field[] fields = classObj.getFields();
+        long[] fieldNameIds = new long[fields.length];
+        Type[] fieldTypes = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fieldNameIds[i] = stringId(fields[i].getName());
+            fieldTypes[i] = fields[i].getType();
+        }
+
+        Field[] statics = classObj.mStaticFields;
+        Map<Field, Object> staticValues = classObj.getStaticFieldValues();
+        long[] staticNameIds = new long[statics.length];
+        Type[] staticTypes = new Type[statics.length];
+        long[] staticBits = new long[statics.length];
+        for (int i = 0; i < statics.length; i++) {
+            staticNameIds[i] = stringId(statics[i].getName());
+            staticTypes[i] = statics[i].getType();
+            staticBits[i] = toBits(staticValues.get(statics[i]), objects);
+        }
+
+        ClassObj superClass = classObj.getSuperClassObj();
+        mWriter.writeClassDump(classObj.getId(), 0, superClass != null ? superClass.getId() : 0,
+                toBits(classObj.getClassLoader(), objects), classObj.getInstanceSize(),
+                staticNameIds, staticTypes, staticBits, fieldNameIds, fieldTypes);
+    }
+
+    private void writeInstance(ClassInstance instance, Set<Instance> objects)
+            throws IOException {
+        List<ClassInstance.FieldValue> values = instance.getValues();
+        Type[] types = new Type[values.size()];
+        long[] bits = new long[values.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = values.get(i).getField().getType();
+            bits[i] = toBits(values.get(i).getValue(), objects);
+        }
+        ClassObj classObj = instance.getClassObj();
+        mWriter.writeInstanceDump(instance.getId(), 0, classObj != null ? classObj.getId() : 0,
+                types, bits);
+    }
+
+    private void writeArray(ArrayInstance array, Set<Instance> objects) throws IOException {
+        Object[] values = array.getValues();
+        if (array.getArrayType() == Type.OBJECT) {
+            long[] ids = new long[values.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = toBits(values[i], objects);
+            }
+            ClassObj classObj = array.getClassObj();
+            mWriter.writeObjectArrayDump(array.getId(), 0,
+                    classObj != null ? classObj.getId() : 0, ids);
+        } else {
+            mWriter.writePrimitiveArrayDump(array.getId(), 0, array.getArrayType(),
+                    array.asRawByteArray(0, values.length));
+        }
+    }
+
+    /**
+     * Adds a thread with its name, so that tools can tell threads apart, e.g. LeakCanary's
+     * excluded thread names.
+     */
+    private static void addThread(Instance thread, Set<Instance> objects) {
+        if (thread == null) {
+            return;
+        }
+        objects.add(thread);
+        if (thread instanceof ClassInstance) {
+            for (ClassInstance.FieldValue name : ((ClassInstance) thread).getFields("name")) {
+                if (name.getValue() instanceof Instance) {
+                    objects.add((Instance) name.getValue());
+                }
+                if (name.getValue() instanceof ClassInstance) {
+                    for (ClassInstance.FieldValue value :
+                            ((ClassInstance) name.getValue()).getFields("value")) {
+                        if (value.getValue() instanceof Instance) {
+                            objects.add((Instance) value.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Instance> getReferences(Instance instance) {
+        List<Instance> references = new ArrayList<Instance>();
+        if (instance instanceof ClassInstance) {
+            for (ClassInstance.FieldValue value : ((ClassInstance) instance).getValues()) {
+                if (value.getValue() instanceof Instance) {
+                    references.add((Instance) value.getValue());
+                }
+            }
+        } else if (instance instanceof ArrayInstance) {
+            if (((ArrayInstance) instance).getArrayType() == Type.OBJECT) {
+                for (Object value : ((ArrayInstance) instance).getValues()) {
+                    if (value instanceof Instance) {
+                        references.add((Instance) value);
+                    }
+                }
+            }
+        } else if (instance instanceof ClassObj) {
+            for (Object value : ((ClassObj) instance).getStaticFieldValues().values()) {
+                if (value instanceof Instance) {
+                    references.add((Instance) value);
+                }
+            }
+        }
+        return references;
+    }
+
+    private static boolean isThreadBound(RootType type) {
+        switch (type) {
+            case NATIVE_LOCAL:
+            case JAVA_LOCAL:
+            case NATIVE_MONITOR:
+            case NATIVE_STACK:
+            case THREAD_BLOCK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the raw bits of a field value, see {@link HprofWriter}. References to objects
+     * that are not written become null.
+     */
+    private static long toBits(Object value, Set<Instance> objects) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Instance) {
+            return objects.contains(value) ? ((Instance) value).getId() : 0;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        } else if (value instanceof Character) {
+            return (Character) value;
+        } else if (value instanceof Float) {
+            return Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Double) {
+            return Double.doubleToRawLongBits((Double) value);
+        }
+        return ((Number) value).longValue();
+    }
+
+    private long stringId(String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        Long id = mStringIds.get(value);
+        if (id == null) {
+            id = (long) mStringIds.size() + 1;
+            mStringIds.put(value, id);
+            mWriter.writeString(id, value);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,78 @@
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SubgraphExtractorTest {
+
+    private SyntheticHprofGenerator mGenerator;
+
+    private File mInput;
+
+    private File mOutput;
+
+    private Snapshot mSnapshot;
+
+    @Before
+    public void runBefore() throws Exception {
+        mGenerator = new SyntheticHprofGenerator(42);
+        mGenerator.setAndroidHeaps(true);
+        mGenerator.addGraph(SyntheticHprofGenerator.Shape.CHAIN, 100);
+        mGenerator.addGraph(SyntheticHprofGenerator.Shape.RANDOM, 1000);
+        mGenerator.addLeak("some-key", true);
+        mInput = File.createTempFile("input", ".hprof");
+        mOutput = File.createTempFile("output", ".hprof");
+        mGenerator.write(mInput);
+        mSnapshot = new HprofParser(new MemoryMappedFileBuffer(mInput)).parse();
+    }
+
+    @After
+    public void runAfter() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @org.junit.Test
+    public void testRetainedWithPathToRoot() throws Exception {
+        Instance leaked = mSnapshot.findInstance(mGenerator.getLeakedId(0));
+        new SubgraphExtractor(mSnapshot).write(Collections.singleton(leaked), mOutput);
+        assertTrue(mOutput.length() < mInput.length() / 10);
+
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mOutput)).parse();
+        ClassInstance copy = (ClassInstance) snapshot.findInstance(leaked.getId());
+        assertNotNull(copy);
+        assertEquals("app", copy.getHeap().getName());
+        assertEquals("android.graphics.Bitmap", ((Instance) copy.getValues().get(0).getValue())
+                .getClassObj().getClassName());
+        assertEquals(1, snapshot.findClass("synthetic.LeakHolder").getInstanceCount());
+        assertNull(snapshot.findClass("synthetic.Node"));
+
+        // The path goes through synthetic.Roots.leaks, a system class root.
+        snapshot.computeDominators();
+        assertNotNull(snapshot.findInstance(leaked.getId()).getImmediateDominator());
+    }
+
+    @org.junit.Test
+    public void testReachable() throws Exception {
+        Instance first = mSnapshot.findInstance(mGenerator.getNodeId(0, 50));
+        SubgraphExtractor extractor = new SubgraphExtractor(mSnapshot);
+        extractor.setScope(SubgraphExtractor.Scope.REACHABLE);
+        extractor.setIncludePathsToRoots(false);
+        // The last 50 nodes of the chain and their payloads.
+        assertEquals(100, extractor.getSubgraph(Collections.singleton(first)).size());
+        extractor.write(Collections.singleton(first), mOutput);
+
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mOutput)).parse();
+        assertEquals(50, snapshot.findClass("synthetic.Node").getInstanceCount());
+        ClassInstance last = (ClassInstance) snapshot.findInstance(mGenerator.getNodeId(0, 99));
+        assertEquals(99, last.getValues().get(3).getValue());
+        assertNull(snapshot.findClass("synthetic.Roots"));
+    }
+}
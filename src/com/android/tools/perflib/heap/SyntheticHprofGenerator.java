@@ -0,0 +1,674 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates reproducible heap dumps of any size with {@link HprofWriter}, for benchmarks and
+ * tests that cannot use real dumps.
+ *
+ * A dump is made of graphs of {@code synthetic.Node} instances, each with a shape chosen from
+ * {@link Shape}, and of leaks: instances watched by a {@code KeyedWeakReference} with a given key,
+ * as written by LeakCanary's RefWatcher. Graphs are written as they are generated, so memory use
+ * does not grow with their size.
+ *
+ * Every dump also holds the classes the analyses look for ({@code java.lang.String}, {@code
+ * java.lang.Thread}, {@code java.lang.ref.Reference}, {@code android.graphics.Bitmap}...), a
+ * {@code main} thread with a stack trace, and a {@code synthetic.Roots} class whose static fields
+ * hold the graphs.
+ */
+public class SyntheticHprofGenerator {
+
+    public enum Shape {
+        /** Each node points to the next one. */
+        CHAIN,
+        /** A single array points to every node. */
+        FAN_OUT,
+        /** Nodes form rings of {@link #CYCLE_LENGTH}, the first node of each ring is held. */
+        CYCLES,
+        /**
+         * Every node is held by a WeakReference, and only one node in {@link
+         * #STRONG_INTERVAL} is also strongly held.
+         */
+        WEAK_REFERENCES,
+        /**
+         * Each node points to a random node and to the following one, so that they are all
+         * reachable from node 0, which is held. One node in {@link #RANDOM_ROOT_INTERVAL} is also
+         * held by a JNI global.
+         */
+        RANDOM
+    }
+
+    public static final int CYCLE_LENGTH = 16;
+
+    public static final int STRONG_INTERVAL = 10;
+
+    public static final int RANDOM_ROOT_INTERVAL = 1000;
+
+    private static final int ID_ALIGNMENT = 8;
+
+    //  Ids per graph node: the node, its payload and its weak reference, if any.
+    private static final int IDS_PER_NODE = 3;
+
+    private static final int THREAD_SERIAL = 1;
+
+    private static final int STACK_SERIAL = 1;
+
+    private static final int BITMAP_BUFFER_SIZE = 64;
+
+    private static final int APP_HEAP_ID = 'A';
+
+    private static final int ZYGOTE_HEAP_ID = 'Z';
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    private static final Type[] NO_TYPES = new Type[0];
+
+    private final long mSeed;
+
+    private int mIdSize = 4;
+
+    private boolean mAndroidHeaps;
+
+    private int mPayloadSize = 16;
+
+    private long mNextId = 0x1000;
+
+    private final List<Graph> mGraphs = new ArrayList<Graph>();
+
+    private final List<Leak> mLeaks = new ArrayList<Leak>();
+
+    private final ArrayList<ClassDef> mClasses = new ArrayList<ClassDef>();
+
+    private final ClassDef mObjectClass;
+
+    private final ClassDef mStringClass;
+
+    private final ClassDef mCharArrayClass;
+
+    private final ClassDef mByteArrayClass;
+
+    private final ClassDef mObjectArrayClass;
+
+    private final ClassDef mThreadClass;
+
+    private final ClassDef mWeakReferenceClass;
+
+    private final ClassDef mKeyedWeakReferenceClass;
+
+    private final ClassDef mBitmapClass;
+
+    private final ClassDef mNodeClass;
+
+    private final ClassDef mLeakHolderClass;
+
+    private final ClassDef mLeakedClass;
+
+    private final ClassDef mRootsClass;
+
+    private final long mThreadId;
+
+    private final long mThreadNameId;
+
+    private final long mThreadNameCharsId;
+
+    private final long mLeaksArrayId;
+
+    private final long mRefsArrayId;
+
+    private HprofWriter mWriter;
+
+    private Map<String, Long> mStringIds;
+
+    public SyntheticHprofGenerator(long seed) {
+        mSeed = seed;
+        mObjectClass = addClass("java.lang.Object", null, NO_FIELDS, NO_TYPES);
+        addClass("java.lang.Class", mObjectClass, NO_FIELDS, NO_TYPES);
+        mStringClass = addClass("java.lang.String", mObjectClass,
+                new String[]{"value", "count", "hash"},
+                new Type[]{Type.OBJECT, Type.INT, Type.INT});
+        mCharArrayClass = addClass("char[]", mObjectClass, NO_FIELDS, NO_TYPES);
+        mByteArrayClass = addClass("byte[]", mObjectClass, NO_FIELDS, NO_TYPES);
+        mObjectArrayClass = addClass("java.lang.Object[]", mObjectClass, NO_FIELDS, NO_TYPES);
+        mThreadClass = addClass("java.lang.Thread", mObjectClass, new String[]{"name"},
+                new Type[]{Type.OBJECT});
+        ClassDef referenceClass = addClass(ClassObj.getReferenceClassName(), mObjectClass,
+                new String[]{"referent", "queue"}, new Type[]{Type.OBJECT, Type.OBJECT});
+        mWeakReferenceClass = addClass("java.lang.ref.WeakReference", referenceClass, NO_FIELDS,
+                NO_TYPES);
+        mKeyedWeakReferenceClass = addClass("com.squareup.leakcanary.KeyedWeakReference",
+                mWeakReferenceClass, new String[]{"key", "name"},
+                new Type[]{Type.OBJECT, Type.OBJECT});
+        mBitmapClass = addClass("android.graphics.Bitmap", mObjectClass, new String[]{"mBuffer"},
+                new Type[]{Type.OBJECT});
+        mNodeClass = addClass("synthetic.Node", mObjectClass,
+                new String[]{"next", "other", "payload", "value"},
+                new Type[]{Type.OBJECT, Type.OBJECT, Type.OBJECT, Type.INT});
+        mLeakHolderClass = addClass("synthetic.LeakHolder", mObjectClass, new String[]{"leaked"},
+                new Type[]{Type.OBJECT});
+        mLeakedClass = addClass("synthetic.Leaked", mObjectClass,
+                new String[]{"bitmap", "payload"}, new Type[]{Type.OBJECT, Type.OBJECT});
+        mRootsClass = addClass("synthetic.Roots", mObjectClass, NO_FIELDS, NO_TYPES);
+
+        mThreadId = allocateIds(1);
+        mThreadNameId = allocateIds(1);
+        mThreadNameCharsId = allocateIds(1);
+        mLeaksArrayId = allocateIds(1);
+        mRefsArrayId = allocateIds(1);
+    }
+
+    /**
+     * Returns a generator that splits the dump in Android heaps, with a graph of {@code
+     * nodesPerShape} nodes of each {@link Shape}, in the order of {@link Shape#values()}, and no
+     * leaks yet.
+     */
+    public static SyntheticHprofGenerator withAllShapes(long seed, int nodesPerShape) {
+        SyntheticHprofGenerator generator = new SyntheticHprofGenerator(seed);
+        generator.setAndroidHeaps(true);
+        for (Shape shape : Shape.values()) {
+            generator.addGraph(shape, nodesPerShape);
+        }
+        return generator;
+    }
+
+    /**
+     * Sets the size of object ids, 4 (the default) or 8.
+     */
+    public void setIdSize(int idSize) {
+        if (idSize != 4 && idSize != 8) {
+            throw new IllegalArgumentException("Only 4 and 8 byte ids are supported");
+        }
+        mIdSize = idSize;
+    }
+
+    /**
+     * Whether to split the dump in a zygote heap, with the classes, and an app heap, with the
+     * graphs and leaks, as Android does. Everything goes in the default heap otherwise.
+     */
+    public void setAndroidHeaps(boolean androidHeaps) {
+        mAndroidHeaps = androidHeaps;
+    }
+
+    /**
+     * Sets the length of the byte array each node points to, 16 by default.
+     */
+    public void setPayloadSize(int payloadSize) {
+        mPayloadSize = payloadSize;
+    }
+
+    /**
+     * Adds a graph of {@code nodes} nodes.
+     *
+     * @return the index of the graph, see {@link #getNodeId(int, int)}.
+     */
+    public int addGraph(Shape shape, int nodes) {
+        Graph graph = new Graph(shape, nodes, allocateIds(1), allocateIds(nodes * IDS_PER_NODE));
+        mGraphs.add(graph);
+        mRootsClass.staticNames.add("graph" + (mGraphs.size() - 1));
+        return mGraphs.size() - 1;
+    }
+
+    /**
+     * Adds an instance of {@code synthetic.Leaked} watched by a KeyedWeakReference with the given
+     * key. If {@code retained}, it is also strongly reachable through a {@code
+     * synthetic.LeakHolder}, otherwise it is only weakly reachable.
+     *
+     * @return the index of the leak, see {@link #getLeakedId(int)}.
+     */
+    public int addLeak(String key, boolean retained) {
+        mLeaks.add(new Leak(key, retained ? Leak.RETAINED : Leak.WEAKLY_REACHABLE,
+                allocateIds(Leak.IDS)));
+        return mLeaks.size() - 1;
+    }
+
+    /**
+     * Adds a {@code java.lang.String} watched by a KeyedWeakReference with the given key, and
+     * strongly reachable through a {@code synthetic.LeakHolder}.
+     *
+     * @return the index of the leak, see {@link #getLeakedId(int)}.
+     */
+    public int addStringLeak(String key) {
+        mLeaks.add(new Leak(key, Leak.STRING, allocateIds(Leak.IDS)));
+        return mLeaks.size() - 1;
+    }
+
+    /**
+     * Adds a KeyedWeakReference with the given key whose referent has been cleared.
+     *
+     * @return the index of the leak.
+     */
+    public int addClearedReference(String key) {
+        mLeaks.add(new Leak(key, Leak.CLEARED, allocateIds(Leak.IDS)));
+        return mLeaks.size() - 1;
+    }
+
+    /**
+     * Also holds the bitmap of leak {@code leak} from an unknown, native, GC root, through a chain
+     * of {@code depth} {@code synthetic.Node} instances, the way layouts hold the bitmaps they
+     * display.
+     */
+    public void holdBitmapFromNativeRoot(int leak, int depth) {
+        Leak target = mLeaks.get(leak);
+        if (target.kind != Leak.RETAINED && target.kind != Leak.WEAKLY_REACHABLE) {
+            throw new IllegalArgumentException("Leak " + leak + " has no bitmap");
+        }
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Invalid depth " + depth);
+        }
+        target.nativeChainId = allocateIds(depth);
+        target.nativeChainDepth = depth;
+    }
+
+    public long getNodeId(int graph, int node) {
+        return mGraphs.get(graph).nodeId(node);
+    }
+
+    /**
+     * Returns the id of the array that holds graph {@code graph}, from the static field {@code
+     * synthetic.Roots.graph<graph>}.
+     */
+    public long getAnchorId(int graph) {
+        return mGraphs.get(graph).anchorId;
+    }
+
+    public long getLeakedId(int leak) {
+        return mLeaks.get(leak).leakedId();
+    }
+
+    public int getIdSize() {
+        return mIdSize;
+    }
+
+    /**
+     * Writes the dump to a new temporary file, which the caller deletes.
+     */
+    public File writeTempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".hprof");
+        write(file);
+        return file;
+    }
+
+    public void write(File file) throws IOException {
+        write(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    /**
+     * Writes the dump to {@code out}, then closes it.
+     */
+    public void write(OutputStream out) throws IOException {
+        mStringIds = new HashMap<String, Long>();
+        //  A fixed timestamp, so that the same generator always writes the same bytes.
+        mWriter = new HprofWriter(out, mIdSize, HprofWriter.DEFAULT_SEGMENT_SIZE, mSeed);
+        try {
+            writeStringsAndClasses();
+            writeRoots();
+
+            if (mAndroidHeaps) {
+                mWriter.writeHeapDumpInfo(ZYGOTE_HEAP_ID, stringId("zygote"));
+            }
+            for (ClassDef classDef : mClasses) {
+                writeClassDump(classDef);
+            }
+            mWriter.writeInstanceDump(mThreadId, STACK_SERIAL, mThreadClass.id,
+                    mThreadClass.fieldTypes, new long[]{mThreadNameId});
+            writeJavaString(mThreadNameId, mThreadNameCharsId, "main");
+
+            if (mAndroidHeaps) {
+                mWriter.writeHeapDumpInfo(APP_HEAP_ID, stringId("app"));
+            }
+            Random random = new Random(mSeed);
+            for (Graph graph : mGraphs) {
+                writeGraph(graph, random);
+            }
+            writeLeaks();
+        } finally {
+            mWriter.close();
+            mWriter = null;
+            mStringIds = null;
+        }
+    }
+
+    private void writeStringsAndClasses() throws IOException {
+        for (int i = 0; i < mClasses.size(); i++) {
+            ClassDef classDef = mClasses.get(i);
+            for (String name : classDef.fieldNames) {
+                stringId(name);
+            }
+            for (String name : classDef.staticNames) {
+                stringId(name);
+            }
+            mWriter.writeLoadClass(i + 1, classDef.id, STACK_SERIAL, stringId(classDef.name));
+        }
+
+        long frameId = allocateIds(1);
+        mWriter.writeStackFrame(frameId, stringId("run"), stringId("()V"),
+                stringId("Thread.java"), mClasses.indexOf(mThreadClass) + 1, 1);
+        mWriter.writeStackTrace(STACK_SERIAL, THREAD_SERIAL, new long[]{frameId});
+    }
+
+    private void writeRoots() throws IOException {
+        for (ClassDef classDef : mClasses) {
+            mWriter.writeRoot(RootType.SYSTEM_CLASS, classDef.id);
+        }
+        mWriter.writeThreadObject(mThreadId, THREAD_SERIAL, STACK_SERIAL);
+        if (!mGraphs.isEmpty()) {
+            mWriter.writeRoot(RootType.JAVA_LOCAL, mGraphs.get(0).anchorId, THREAD_SERIAL, 0);
+        }
+        for (Graph graph : mGraphs) {
+            if (graph.shape == Shape.RANDOM) {
+                for (int i = 0; i < graph.nodes; i += RANDOM_ROOT_INTERVAL) {
+                    mWriter.writeRoot(RootType.NATIVE_STATIC, graph.nodeId(i));
+                }
+            }
+        }
+        for (Leak leak : mLeaks) {
+            if (leak.nativeChainDepth > 0) {
+                mWriter.writeRoot(RootType.UNKNOWN, leak.nativeChainId);
+            }
+        }
+    }
+
+    private void writeClassDump(ClassDef classDef) throws IOException {
+        int instanceSize = 0;
+        long[] fieldNameIds = new long[classDef.fieldNames.length];
+        for (int i = 0; i < fieldNameIds.length; i++) {
+            fieldNameIds[i] = stringId(classDef.fieldNames[i]);
+            instanceSize += mWriter.getTypeSize(classDef.fieldTypes[i]);
+        }
+        int statics = classDef.staticNames.size();
+        long[] staticNameIds = new long[statics];
+        Type[] staticTypes = new Type[statics];
+        long[] staticValues = new long[statics];
+        for (int i = 0; i < statics; i++) {
+            staticNameIds[i] = stringId(classDef.staticNames.get(i));
+            staticTypes[i] = Type.OBJECT;
+            staticValues[i] = getStaticValue(classDef.staticNames.get(i));
+        }
+        mWriter.writeClassDump(classDef.id, STACK_SERIAL,
+                classDef.superClass != null ? classDef.superClass.id : 0, 0, instanceSize,
+                staticNameIds, staticTypes, staticValues, fieldNameIds, classDef.fieldTypes);
+    }
+
+    private long getStaticValue(String name) {
+        if (name.equals("leaks")) {
+            return mLeaksArrayId;
+        } else if (name.equals("refs")) {
+            return mRefsArrayId;
+        }
+        return mGraphs.get(Integer.parseInt(name.substring("graph".length()))).anchorId;
+    }
+
+    private void writeGraph(Graph graph, Random random) throws IOException {
+        int n = graph.nodes;
+        byte[] payload = new byte[mPayloadSize];
+        long[] values = new long[4];
+        for (int i = 0; i < n; i++) {
+            long next = 0;
+            long other = 0;
+            switch (graph.shape) {
+                case CHAIN:
+                    next = i + 1 < n ? graph.nodeId(i + 1) : 0;
+                    break;
+                case CYCLES:
+                    int ringStart = i - i % CYCLE_LENGTH;
+                    int ringEnd = Math.min(ringStart + CYCLE_LENGTH, n);
+                    next = graph.nodeId(i + 1 < ringEnd ? i + 1 : ringStart);
+                    break;
+                case RANDOM:
+                    next = graph.nodeId(random.nextInt(n));
+                    other = i + 1 < n ? graph.nodeId(i + 1) : 0;
+                    break;
+                default:
+                    break;
+            }
+            values[0] = next;
+            values[1] = other;
+            values[2] = graph.payloadId(i);
+            values[3] = i;
+            mWriter.writeInstanceDump(graph.nodeId(i), STACK_SERIAL, mNodeClass.id,
+                    mNodeClass.fieldTypes, values);
+            mWriter.writePrimitiveArrayDump(graph.payloadId(i), STACK_SERIAL, Type.BYTE, payload);
+            if (graph.shape == Shape.WEAK_REFERENCES) {
+                writeWeakReference(graph.referenceId(i), graph.nodeId(i));
+            }
+        }
+
+        long[] anchor;
+        switch (graph.shape) {
+            case FAN_OUT:
+                anchor = new long[n];
+                for (int i = 0; i < n; i++) {
+                    anchor[i] = graph.nodeId(i);
+                }
+                break;
+            case CYCLES:
+                anchor = new long[(n + CYCLE_LENGTH - 1) / CYCLE_LENGTH];
+                for (int i = 0; i < anchor.length; i++) {
+                    anchor[i] = graph.nodeId(i * CYCLE_LENGTH);
+                }
+                break;
+            case WEAK_REFERENCES:
+                int strong = (n + STRONG_INTERVAL - 1) / STRONG_INTERVAL;
+                anchor = new long[n + strong];
+                for (int i = 0; i < n; i++) {
+                    anchor[i] = graph.referenceId(i);
+                }
+                for (int i = 0; i < strong; i++) {
+                    anchor[n + i] = graph.nodeId(i * STRONG_INTERVAL);
+                }
+                break;
+            default:
+                anchor = n > 0 ? new long[]{graph.nodeId(0)} : new long[0];
+        }
+        mWriter.writeObjectArrayDump(graph.anchorId, STACK_SERIAL, mObjectArrayClass.id, anchor);
+    }
+
+    private void writeWeakReference(long id, long referent) throws IOException {
+        // WeakReference has no fields of its own, only those of Reference.
+        mWriter.writeInstanceDump(id, STACK_SERIAL, mWeakReferenceClass.id,
+                mWeakReferenceClass.superClass.fieldTypes, new long[]{referent, 0});
+    }
+
+    private void writeLeaks() throws IOException {
+        List<Long> holders = new ArrayList<Long>();
+        long[] refs = new long[mLeaks.size()];
+        for (int i = 0; i < mLeaks.size(); i++) {
+            Leak leak = mLeaks.get(i);
+            long id = leak.firstId;
+            long keyId = id + ID_ALIGNMENT;
+            long nameId = id + 3 * ID_ALIGNMENT;
+            long leakedId = leak.leakedId();
+            long payloadId = id + 6 * ID_ALIGNMENT;
+            long bitmapId = id + 7 * ID_ALIGNMENT;
+            long bufferId = id + 8 * ID_ALIGNMENT;
+            long holderId = id + 9 * ID_ALIGNMENT;
+
+            // KeyedWeakReference fields first, then Reference ones.
+            mWriter.writeInstanceDump(id, STACK_SERIAL, mKeyedWeakReferenceClass.id,
+                    new Type[]{Type.OBJECT, Type.OBJECT, Type.OBJECT, Type.OBJECT},
+                    new long[]{keyId, nameId, leak.kind != Leak.CLEARED ? leakedId : 0, 0});
+            writeJavaString(keyId, id + 2 * ID_ALIGNMENT, leak.key);
+            writeJavaString(nameId, id + 4 * ID_ALIGNMENT, "leak " + i);
+            if (leak.kind == Leak.STRING) {
+                writeJavaString(leakedId, payloadId, "leaked " + i);
+            } else if (leak.kind != Leak.CLEARED) {
+                mWriter.writeInstanceDump(leakedId, STACK_SERIAL, mLeakedClass.id,
+                        mLeakedClass.fieldTypes, new long[]{bitmapId, payloadId});
+                mWriter.writePrimitiveArrayDump(payloadId, STACK_SERIAL, Type.BYTE,
+                        new byte[mPayloadSize]);
+                mWriter.writeInstanceDump(bitmapId, STACK_SERIAL, mBitmapClass.id,
+                        mBitmapClass.fieldTypes, new long[]{bufferId});
+                mWriter.writePrimitiveArrayDump(bufferId, STACK_SERIAL, Type.BYTE,
+                        new byte[BITMAP_BUFFER_SIZE]);
+                for (int j = 0; j < leak.nativeChainDepth; j++) {
+                    long next = j + 1 < leak.nativeChainDepth
+                            ? leak.nativeChainId + (long) (j + 1) * ID_ALIGNMENT : bitmapId;
+                    mWriter.writeInstanceDump(leak.nativeChainId + (long) j * ID_ALIGNMENT,
+                            STACK_SERIAL, mNodeClass.id, mNodeClass.fieldTypes,
+                            new long[]{next, 0, 0, j});
+                }
+            }
+            if (leak.kind == Leak.RETAINED || leak.kind == Leak.STRING) {
+                mWriter.writeInstanceDump(holderId, STACK_SERIAL, mLeakHolderClass.id,
+                        mLeakHolderClass.fieldTypes, new long[]{leakedId});
+                holders.add(holderId);
+            }
+            refs[i] = id;
+        }
+        long[] leaks = new long[holders.size()];
+        for (int i = 0; i < leaks.length; i++) {
+            leaks[i] = holders.get(i);
+        }
+        mWriter.writeObjectArrayDump(mLeaksArrayId, STACK_SERIAL, mObjectArrayClass.id, leaks);
+        mWriter.writeObjectArrayDump(mRefsArrayId, STACK_SERIAL, mObjectArrayClass.id, refs);
+    }
+
+    private void writeJavaString(long id, long charsId, String value) throws IOException {
+        mWriter.writePrimitiveArrayDump(charsId, STACK_SERIAL, value.toCharArray());
+        mWriter.writeInstanceDump(id, STACK_SERIAL, mStringClass.id, mStringClass.fieldTypes,
+                new long[]{charsId, value.length(), 0});
+    }
+
+    private long stringId(String value) throws IOException {
+        Long id = mStringIds.get(value);
+        if (id == null) {
+            id = (long) mStringIds.size() + 1;
+            mStringIds.put(value, id);
+            mWriter.writeString(id, value);
+        }
+        return id;
+    }
+
+    private ClassDef addClass(String name, ClassDef superClass, String[] fieldNames,
+            Type[] fieldTypes) {
+        ClassDef classDef = new ClassDef(name, allocateIds(1), superClass, fieldNames, fieldTypes);
+        mClasses.add(classDef);
+        if (name.equals("synthetic.Roots")) {
+            classDef.staticNames.add("leaks");
+            classDef.staticNames.add("refs");
+        }
+        return classDef;
+    }
+
+    private long allocateIds(int count) {
+        long first = mNextId;
+        mNextId += (long) count * ID_ALIGNMENT;
+        return first;
+    }
+
+    private static class ClassDef {
+
+        final String name;
+
+        final long id;
+
+        final ClassDef superClass;
+
+        final String[] fieldNames;
+
+        final Type[] fieldTypes;
+
+        final List<String> staticNames = new ArrayList<String>();
+
+        ClassDef(String name, long id, ClassDef superClass, String[] fieldNames,
+                Type[] fieldTypes) {
+            this.name = name;
+            this.id = id;
+            this.superClass = superClass;
+            this.fieldNames = fieldNames;
+            this.fieldTypes = fieldTypes;
+        }
+    }
+
+    private static class Graph {
+
+        final Shape shape;
+
+        final int nodes;
+
+        final long anchorId;
+
+        final long firstId;
+
+        Graph(Shape shape, int nodes, long anchorId, long firstId) {
+            this.shape = shape;
+            this.nodes = nodes;
+            this.anchorId = anchorId;
+            this.firstId = firstId;
+        }
+
+        long nodeId(int node) {
+            return firstId + (long) node * IDS_PER_NODE * ID_ALIGNMENT;
+        }
+
+        long payloadId(int node) {
+            return nodeId(node) + ID_ALIGNMENT;
+        }
+
+        long referenceId(int node) {
+            return nodeId(node) + 2 * ID_ALIGNMENT;
+        }
+    }
+
+    private static class Leak {
+
+        //  The reference, key string and chars, name string and chars, leaked instance, its
+        //  payload, bitmap and bitmap buffer, and the holder.
+        static final int IDS = 10;
+
+        //  What the reference is to: a synthetic.Leaked only weakly reachable, or also held, a
+        //  held string, or nothing.
+        static final int WEAKLY_REACHABLE = 0;
+
+        static final int RETAINED = 1;
+
+        static final int STRING = 2;
+
+        static final int CLEARED = 3;
+
+        final String key;
+
+        final int kind;
+
+        final long firstId;
+
+        //  The synthetic.Node instances from a native root to the bitmap, if any.
+        long nativeChainId;
+
+        int nativeChainDepth;
+
+        Leak(String key, int kind, long firstId) {
+            this.key = key;
+            this.kind = kind;
+            this.firstId = firstId;
+        }
+
+        long leakedId() {
+            return firstId + 5 * ID_ALIGNMENT;
+        }
+    }
+}
@@ -64,13 +64,16 @@ public class Dominators {
             changed = false;
 
             for (int i = 0; i < mTopSort.size(); i++) {
+                if ((i & (HeapInterruptedException.CHECK_INTERVAL - 1)) == 0) {
+                    HeapInterruptedException.checkInterrupted();
+                }
                 Instance node = mTopSort.get(i);
                 // Root nodes and nodes immediately dominated by the SENTINEL_ROOT are skipped.
                 if (node.getImmediateDominator() != Snapshot.SENTINEL_ROOT) {
                     Instance dominator = null;
 
-                    for (int j = 0; j < node.getHardReferences().size(); j++) {
-                        Instance predecessor = node.getHardReferences().get(j);
+                    for (int j = 0; j < node.getHardReferenceCount(); j++) {
+                        Instance predecessor = node.getHardReference(j);
                         if (predecessor.getImmediateDominator() == null) {
                             // If we don't have a dominator/approximation for predecessor, skip it
                             continue;
@@ -104,6 +107,8 @@ public class Dominators {
      * Kicks off the computation of dominators and retained sizes.
      */
     public void computeRetainedSizes() {
+        HeapMetrics metrics = mSnapshot.getMetrics();
+        metrics.startPhase(HeapMetrics.Phase.DOMINATORS);
         // Initialize retained sizes for all classes and objects, including unreachable ones.
         for (Heap heap : mSnapshot.getHeaps()) {
             for (Instance instance : Iterables.concat(heap.getClasses(), heap.getInstances())) {
@@ -111,8 +116,13 @@ public class Dominators {
             }
         }
         computeDominators();
+        metrics.startPhase(HeapMetrics.Phase.RETAINED_SIZES);
         // We only update the retained sizes of objects in the dominator tree (i.e. reachable).
+        int nodes = 0;
         for (Instance node : mSnapshot.getReachableInstances()) {
+            if ((++nodes & (HeapInterruptedException.CHECK_INTERVAL - 1)) == 0) {
+                HeapInterruptedException.checkInterrupted();
+            }
             int heapIndex = mSnapshot.getHeapIndex(node.getHeap());
             // Add the size of the current node to the retained size of every dominator up to the
             // root, in the same heap.
@@ -121,5 +131,6 @@ public class Dominators {
                 dom.addRetainedSize(heapIndex, node.getSize());
             }
         }
+        metrics.endPhase();
     }
 }
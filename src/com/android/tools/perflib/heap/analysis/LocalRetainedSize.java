@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.HeapInterruptedException;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Computes the retained size of a single instance, without computing the dominators of the whole
+ * snapshot.
+ *
+ * The instance retains what is reachable from it but not from the GC roots once it is removed. So
+ * everything reachable from the GC roots is first marked while stepping around the instance, then
+ * what is reachable from the instance and not marked is added up. Both traversals follow the hard
+ * references {@link Dominators} does, and take time linear in the number of references, and a
+ * bit per instance. The result is the {@link Instance#getTotalRetainedSize()} that
+ * {@link Snapshot#computeDominators()} would give it.
+ */
+public final class LocalRetainedSize {
+
+    private final Snapshot mSnapshot;
+
+    private final Instance mInstance;
+
+    private final BitSet mMarked;
+
+    private int[] mStack = new int[1024];
+
+    private int mStackSize;
+
+    private boolean mInstanceReached;
+
+    private long mRetainedSize;
+
+    private LocalRetainedSize(Snapshot snapshot, Instance instance) {
+        mSnapshot = snapshot;
+        mInstance = instance;
+        mMarked = new BitSet(snapshot.getObjectCount());
+    }
+
+    public static long compute(Snapshot snapshot, Instance instance) {
+        return new LocalRetainedSize(snapshot, instance).compute();
+    }
+
+    private long compute() {
+        // Instances that are not reachable through hard references from the GC roots are not part
+        // of the dominator tree, and only retain themselves.
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            Instance referred = root.getReferredInstance();
+            if (referred == mInstance) {
+                mInstanceReached = true;
+            } else if (referred != null) {
+                mark(referred);
+            }
+        }
+        drain();
+        mRetainedSize = mInstance.getSize();
+        if (!mInstanceReached) {
+            return mRetainedSize;
+        }
+
+        mark(mInstance);
+        drain();
+        return mRetainedSize;
+    }
+
+    private void mark(Instance instance) {
+        int index = instance.getObjectIndex();
+        if (index < 0 || mMarked.get(index)) {
+            return;
+        }
+        mMarked.set(index);
+        if (mStackSize == mStack.length) {
+            mStack = Arrays.copyOf(mStack, mStackSize * 2);
+        }
+        mStack[mStackSize++] = index;
+    }
+
+    private void drain() {
+        int steps = 0;
+        while (mStackSize > 0) {
+            if ((++steps & (HeapInterruptedException.CHECK_INTERVAL - 1)) == 0) {
+                HeapInterruptedException.checkInterrupted();
+            }
+            Instance node = mSnapshot.getObject(mStack[--mStackSize]);
+            if (node instanceof ClassInstance) {
+                boolean isSoftReference = node.getIsSoftReference();
+                for (ClassInstance.FieldValue value : ((ClassInstance) node).getValues()) {
+                    if (value.getValue() instanceof Instance
+                            && !isSoftReferent(isSoftReference, value.getField())) {
+                        visit((Instance) value.getValue());
+                    }
+                }
+            } else if (node instanceof ArrayInstance) {
+                if (((ArrayInstance) node).getArrayType() == Type.OBJECT) {
+                    for (Object value : ((ArrayInstance) node).getValues()) {
+                        if (value instanceof Instance) {
+                            visit((Instance) value);
+                        }
+                    }
+                }
+            } else if (node instanceof ClassObj) {
+                boolean isSoftReference = node.getIsSoftReference();
+                for (Map.Entry<Field, Object> entry :
+                        ((ClassObj) node).getStaticFieldValues().entrySet()) {
+                    if (entry.getValue() instanceof Instance
+                            && !isSoftReferent(isSoftReference, entry.getKey())) {
+                        visit((Instance) entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private void visit(Instance child) {
+        if (child == mInstance) {
+            mInstanceReached = true;
+            return;
+        }
+        int index = child.getObjectIndex();
+        if (index >= 0 && !mMarked.get(index)) {
+            // Only counts in the second traversal, the first one never reaches past the instance.
+            mRetainedSize += child.getSize();
+            mark(child);
+        }
+    }
+
+    /**
+     * Whether the reference is the referent of a soft, weak or phantom reference, which
+     * {@link Instance#addReference} does not count as a hard reference.
+     */
+    private static boolean isSoftReferent(boolean isSoftReference, Field field) {
+        return isSoftReference && field.getName().equals("referent");
+    }
+}
@@ -0,0 +1,62 @@
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class LocalRetainedSizeTest {
+
+    private SyntheticHprofGenerator mGenerator;
+
+    private File mFile;
+
+    @Before
+    public void runBefore() throws Exception {
+        mGenerator = SyntheticHprofGenerator.withAllShapes(11, 300);
+        mGenerator.addLeak("retained-key", true);
+        mGenerator.addLeak("weakly-reachable-key", false);
+        mFile = mGenerator.writeTempFile("retained");
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testSameRetainedSizesAsDominators() throws Exception {
+        Snapshot local = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        Snapshot expected = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        expected.computeDominators();
+
+        int retainingOthers = 0;
+        for (int i = 0; i < expected.getObjectCount(); i++) {
+            Instance instance = expected.getObject(i);
+            long retainedSize = LocalRetainedSize.compute(local, local.getObject(i));
+            assertEquals(instance.toString(), instance.getTotalRetainedSize(), retainedSize);
+            if (retainedSize > instance.getSize()) {
+                retainingOthers++;
+            }
+        }
+        assertTrue(retainingOthers > 100);
+    }
+
+    @org.junit.Test
+    public void testWeaklyReachableInstanceOnlyRetainsItself() throws Exception {
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(mFile)).parse();
+        Instance leaked = snapshot.findInstance(mGenerator.getLeakedId(1));
+        assertEquals(leaked.getSize(), LocalRetainedSize.compute(snapshot, leaked));
+
+        Instance retained = snapshot.findInstance(mGenerator.getLeakedId(0));
+        assertTrue(LocalRetainedSize.compute(snapshot, retained) > retained.getSize());
+    }
+}
@@ -16,10 +16,10 @@
 
 package com.android.tools.perflib.heap.analysis;
 
+import com.android.tools.perflib.heap.HeapInterruptedException;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.NonRecursiveVisitor;
 import com.android.tools.perflib.heap.RootObj;
-import com.android.tools.perflib.heap.Snapshot;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
@@ -35,9 +35,9 @@ public class TopologicalSort {
         visitor.doVisit(roots);
         ImmutableList<Instance> instances = visitor.getOrderedInstances();
 
-        // We add the special sentinel node as the single root of the object graph, to ensure the
-        // dominator algorithm terminates when having to choose between two GC roots.
-        Snapshot.SENTINEL_ROOT.setTopologicalOrder(0);
+        // The special sentinel node is the single root of the object graph, to ensure the
+        // dominator algorithm terminates when having to choose between two GC roots. It has no row
+        // in the analysis columns, so its topological order is always 0.
 
         // Set localIDs in the range 1..keys.size(). This simplifies the algorithm & data structures
         // for dominator computation.
@@ -81,7 +81,11 @@ public class TopologicalSort {
             for (Instance node : startNodes) {
                 node.accept(this);
             }
+            int steps = 0;
             while (!mStack.isEmpty()) {
+                if ((++steps & (HeapInterruptedException.CHECK_INTERVAL - 1)) == 0) {
+                    HeapInterruptedException.checkInterrupted();
+                }
                 Instance node = mStack.peek();
                 if (mSeen.add(node.getId())) {
                     node.accept(this);
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates fixed-size columns of ints and longs, indexed by object, either as Java arrays or
+ * outside of the Java heap.
+ *
+ * Columns are kept on the Java heap as long as their total size fits in the heap budget. Past it,
+ * they are allocated in direct buffers, or, if a directory is given, in memory-mapped temporary
+ * files there, which only cost address space and page cache, at the price of slower accesses.
+ *
+ * Only the columns count against the budget. The snapshot uses them for the topological order,
+ * the distance to the GC roots and the retained sizes of each object; the objects themselves,
+ * with their size, immediate dominator and references, stay on the Java heap, so the parsed
+ * dump must still fit in -Xmx.
+ *
+ * A column that is no longer needed can be given back with {@link #free(IntColumn)}. Closing the
+ * storage deletes its temporary files; columns must not be used after that.
+ */
+public class ColumnStorage implements Closeable {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    // Off-heap columns are split in chunks of 1 << 30 bytes, the most a buffer can hold.
+    private static final int CHUNK_SHIFT = 30;
+
+    private final long mHeapBudget;
+
+    private final File mDirectory;
+
+    private long mHeapBytes;
+
+    private long mOffHeapBytes;
+
+    private final List<File> mFiles = new ArrayList<File>();
+
+    /**
+     * Creates a storage that keeps every column on the Java heap.
+     */
+    public ColumnStorage() {
+        this(UNLIMITED, null);
+    }
+
+    /**
+     * @param heapBudget the number of bytes columns may take on the Java heap.
+     * @param directory where to map the columns that do not fit in the budget, or null to
+     *                  allocate them in direct buffers.
+     */
+    public ColumnStorage(long heapBudget, File directory) {
+        mHeapBudget = heapBudget;
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the number of bytes of the columns allocated on the Java heap.
+     */
+    public long getHeapBytes() {
+        return mHeapBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the columns allocated in direct buffers or mapped files.
+     */
+    public long getOffHeapBytes() {
+        return mOffHeapBytes;
+    }
+
+    /**
+     * Allocates a column of {@code size} ints, all set to {@code initialValue}.
+     */
+    public IntColumn allocateInts(long size, int initialValue) throws IOException {
+        IntColumn column;
+        if (reserveHeap(size * 4, size)) {
+            column = new IntArrayColumn((int) size);
+            column.mAllocation = new Allocation(size * 4, true, null);
+        } else {
+            File file = createFile();
+            column = new IntBufferColumn(allocateOffHeap(size * 4, file));
+            column.mAllocation = new Allocation(size * 4, false, file);
+        }
+        if (initialValue != 0) {
+            column.fill(0, size, initialValue);
+        }
+        return column;
+    }
+
+    /**
+     * Allocates a column of {@code size} longs, all set to 0.
+     */
+    public LongColumn allocateLongs(long size) throws IOException {
+        LongColumn column;
+        if (reserveHeap(size * 8, size)) {
+            column = new LongArrayColumn((int) size);
+            column.mAllocation = new Allocation(size * 8, true, null);
+        } else {
+            File file = createFile();
+            column = new LongBufferColumn(allocateOffHeap(size * 8, file));
+            column.mAllocation = new Allocation(size * 8, false, file);
+        }
+        return column;
+    }
+
+    /**
+     * Gives back a column of this storage: its bytes no longer count against the heap budget, and
+     * its temporary file, if any, is deleted. Arrays and direct buffers are reclaimed by the
+     * garbage collector. The column must not be used after that.
+     */
+    public void free(IntColumn column) {
+        release(column.mAllocation);
+        column.mAllocation = null;
+    }
+
+    /**
+     * Gives back a column of this storage, see {@link #free(IntColumn)}.
+     */
+    public void free(LongColumn column) {
+        release(column.mAllocation);
+        column.mAllocation = null;
+    }
+
+    @Override
+    public void close() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+        mFiles.clear();
+    }
+
+    private boolean reserveHeap(long bytes, long size) {
+        if (size > Integer.MAX_VALUE - 8 || bytes > mHeapBudget - mHeapBytes) {
+            return false;
+        }
+        mHeapBytes += bytes;
+        return true;
+    }
+
+    private void release(Allocation allocation) {
+        if (allocation == null) {
+            return;
+        }
+        if (allocation.mOnHeap) {
+            mHeapBytes -= allocation.mBytes;
+        } else {
+            mOffHeapBytes -= allocation.mBytes;
+        }
+        if (allocation.mFile != null) {
+            // Mappings stay valid once their file is deleted, until they are collected.
+            allocation.mFile.delete();
+            mFiles.remove(allocation.mFile);
+        }
+    }
+
+    /**
+     * Creates the temporary file of an off-heap column, or returns null if columns are allocated
+     * in direct buffers.
+     */
+    private File createFile() throws IOException {
+        if (mDirectory == null) {
+            return null;
+        }
+        File file = File.createTempFile("columns", ".bin", mDirectory);
+        file.deleteOnExit();
+        mFiles.add(file);
+        return file;
+    }
+
+    private ByteBuffer[] allocateOffHeap(long bytes, File file) throws IOException {
+        int chunkSize = 1 << CHUNK_SHIFT;
+        ByteBuffer[] chunks = new ByteBuffer[(int) ((bytes + chunkSize - 1) >>> CHUNK_SHIFT)];
+        if (file == null) {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ByteBuffer.allocateDirect(
+                        (int) Math.min(chunkSize, bytes - ((long) i << CHUNK_SHIFT)));
+            }
+        } else {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(bytes);
+                FileChannel channel = randomAccessFile.getChannel();
+                for (int i = 0; i < chunks.length; i++) {
+                    long offset = (long) i << CHUNK_SHIFT;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset,
+                            Math.min(chunkSize, bytes - offset));
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        for (ByteBuffer chunk : chunks) {
+            chunk.order(ByteOrder.nativeOrder());
+        }
+        mOffHeapBytes += bytes;
+        return chunks;
+    }
+
+    //  What a column takes from its storage, until it is freed.
+    private static final class Allocation {
+
+        private final long mBytes;
+
+        private final boolean mOnHeap;
+
+        private final File mFile;
+
+        Allocation(long bytes, boolean onHeap, File file) {
+            mBytes = bytes;
+            mOnHeap = onHeap;
+            mFile = file;
+        }
+    }
+
+    public static abstract class IntColumn {
+
+        private Allocation mAllocation;
+
+        public abstract long size();
+
+        public abstract int get(long index);
+
+        public abstract void set(long index, int value);
+
+        public void fill(long from, long to, int value) {
+            for (long i = from; i < to; i++) {
+                set(i, value);
+            }
+        }
+    }
+
+    public static abstract class LongColumn {
+
+        private Allocation mAllocation;
+
+        public abstract long size();
+
+        public abstract long get(long index);
+
+        public abstract void set(long index, long value);
+
+        public void add(long index, long delta) {
+            set(index, get(index) + delta);
+        }
+
+        public void fill(long from, long to, long value) {
+            for (long i = from; i < to; i++) {
+                set(i, value);
+            }
+        }
+    }
+
+    private static final class IntArrayColumn extends IntColumn {
+
+        private final int[] mValues;
+
+        IntArrayColumn(int size) {
+            mValues = new int[size];
+        }
+
+        @Override
+        public long size() {
+            return mValues.length;
+        }
+
+        @Override
+        public int get(long index) {
+            return mValues[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            mValues[(int) index] = value;
+        }
+    }
+
+    private static final class IntBufferColumn extends IntColumn {
+
+        private static final int SHIFT = CHUNK_SHIFT - 2;
+
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private final IntBuffer[] mChunks;
+
+        private final long mSize;
+
+        IntBufferColumn(ByteBuffer[] chunks) {
+            mChunks = new IntBuffer[chunks.length];
+            long size = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                mChunks[i] = chunks[i].asIntBuffer();
+                size += mChunks[i].capacity();
+            }
+            mSize = size;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public int get(long index) {
+            return mChunks[(int) (index >>> SHIFT)].get((int) (index & MASK));
+        }
+
+        @Override
+        public void set(long index, int value) {
+            mChunks[(int) (index >>> SHIFT)].put((int) (index & MASK), value);
+        }
+    }
+
+    private static final class LongArrayColumn extends LongColumn {
+
+        private final long[] mValues;
+
+        LongArrayColumn(int size) {
+            mValues = new long[size];
+        }
+
+        @Override
+        public long size() {
+            return mValues.length;
+        }
+
+        @Override
+        public long get(long index) {
+            return mValues[(int) index];
+        }
+
+        @Override
+        public void set(long index, long value) {
+            mValues[(int) index] = value;
+        }
+
+        @Override
+        public void add(long index, long delta) {
+            mValues[(int) index] += delta;
+        }
+    }
+
+    private static final class LongBufferColumn extends LongColumn {
+
+        private static final int SHIFT = CHUNK_SHIFT - 3;
+
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private final LongBuffer[] mChunks;
+
+        private final long mSize;
+
+        LongBufferColumn(ByteBuffer[] chunks) {
+            mChunks = new LongBuffer[chunks.length];
+            long size = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                mChunks[i] = chunks[i].asLongBuffer();
+                size += mChunks[i].capacity();
+            }
+            mSize = size;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public long get(long index) {
+            return mChunks[(int) (index >>> SHIFT)].get((int) (index & MASK));
+        }
+
+        @Override
+        public void set(long index, long value) {
+            mChunks[(int) (index >>> SHIFT)].put((int) (index & MASK), value);
+        }
+    }
+}
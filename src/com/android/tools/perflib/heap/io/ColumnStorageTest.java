@@ -0,0 +1,150 @@
+package com.android.tools.perflib.heap.io;
+
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ColumnStorageTest {
+
+    private File mDirectory;
+
+    private ColumnStorage mStorage;
+
+    @Before
+    public void runBefore() throws Exception {
+        mDirectory = File.createTempFile("columns", "");
+        mDirectory.delete();
+        mDirectory.mkdir();
+    }
+
+    @After
+    public void runAfter() {
+        if (mStorage != null) {
+            mStorage.close();
+        }
+        delete(mDirectory);
+    }
+
+    @org.junit.Test
+    public void testBudget() throws Exception {
+        mStorage = new ColumnStorage(1000, mDirectory);
+        ColumnStorage.IntColumn onHeap = mStorage.allocateInts(200, 7);
+        ColumnStorage.LongColumn mapped = mStorage.allocateLongs(100);
+        // Still fits in what is left of the budget.
+        ColumnStorage.IntColumn small = mStorage.allocateInts(10, -1);
+        assertEquals(840, mStorage.getHeapBytes());
+        assertEquals(800, mStorage.getOffHeapBytes());
+        assertEquals(1, mDirectory.list().length);
+
+        assertEquals(7, onHeap.get(199));
+        assertEquals(-1, small.get(9));
+        mapped.set(99, Long.MIN_VALUE);
+        mapped.add(0, 5);
+        mapped.add(0, 6);
+        assertEquals(Long.MIN_VALUE, mapped.get(99));
+        assertEquals(11, mapped.get(0));
+        assertEquals(100, mapped.size());
+
+        mStorage.close();
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @org.junit.Test
+    public void testFree() throws Exception {
+        mStorage = new ColumnStorage(1000, mDirectory);
+        ColumnStorage.IntColumn onHeap = mStorage.allocateInts(200, 0);
+        ColumnStorage.LongColumn mapped = mStorage.allocateLongs(100);
+        assertEquals(1, mDirectory.list().length);
+
+        mStorage.free(onHeap);
+        mStorage.free(mapped);
+        // Freeing twice gives nothing back.
+        mStorage.free(onHeap);
+        assertEquals(0, mStorage.getHeapBytes());
+        assertEquals(0, mStorage.getOffHeapBytes());
+        assertEquals(0, mDirectory.list().length);
+
+        // The budget is available again.
+        mStorage.allocateInts(250, 0);
+        assertEquals(1000, mStorage.getHeapBytes());
+        mStorage.close();
+    }
+
+    @org.junit.Test
+    public void testDirectBuffers() throws Exception {
+        mStorage = new ColumnStorage(0, null);
+        ColumnStorage.IntColumn column = mStorage.allocateInts(1000, 0);
+        for (int i = 0; i < 1000; i++) {
+            column.set(i, i * i);
+        }
+        assertEquals(999 * 999, column.get(999));
+        assertEquals(0, mStorage.getHeapBytes());
+        assertEquals(4000, mStorage.getOffHeapBytes());
+    }
+
+    @org.junit.Test
+    public void testSnapshotOffHeap() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 300);
+        generator.addLeak("retained-key", true);
+        File file = generator.writeTempFile("columns");
+
+        Snapshot expected = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+        expected.computeDominators();
+        Snapshot actual = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+        mStorage = new ColumnStorage(0, mDirectory);
+        actual.setColumnStorage(mStorage);
+        actual.computeDominators();
+
+        assertEquals(0, mStorage.getHeapBytes());
+        for (Heap heap : expected.getHeaps()) {
+            for (Instance instance : heap.getInstances()) {
+                Instance other = actual.findInstance(instance.getId());
+                assertEquals(instance.getTopologicalOrder(), other.getTopologicalOrder());
+                assertEquals(instance.getDistanceToGcRoot(), other.getDistanceToGcRoot());
+                assertEquals(instance.getTotalRetainedSize(), other.getTotalRetainedSize());
+            }
+        }
+        Instance node = actual.findInstance(generator.getNodeId(0, 0));
+        assertEquals(300 * node.getSize() + 300 * 16, node.getTotalRetainedSize());
+
+        mStorage.close();
+        file.delete();
+    }
+
+    @org.junit.Test
+    public void testRetainedSizesBeforeAnalysis() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 10);
+        File file = generator.writeTempFile("columns");
+        Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+        Instance node = snapshot.findInstance(generator.getNodeId(0, 0));
+        int heapIndex = snapshot.getHeapIndex(node.getHeap());
+
+        assertEquals(0, node.getRetainedSize(heapIndex));
+        assertEquals(0, node.getTotalRetainedSize());
+
+        node.addRetainedSize(heapIndex, 10);
+        assertEquals(10, node.getRetainedSize(heapIndex));
+        assertEquals(10, node.getTotalRetainedSize());
+
+        file.delete();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads a file that is still being written, like {@code tail -f}.
+ *
+ * When a read catches up with the writer, it waits for more bytes to be appended. The stream only
+ * ends once the file has not grown for a whole quiet period.
+ */
+public class GrowingFileInputStream extends InputStream {
+
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private final RandomAccessFile mFile;
+
+    private final long mQuietPeriodMs;
+
+    public GrowingFileInputStream(File file, long quietPeriodMs) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mQuietPeriodMs = quietPeriodMs;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long lastProgress = System.nanoTime();
+        while (true) {
+            int read = mFile.read(b, off, len);
+            if (read > 0) {
+                return read;
+            }
+            long quietMs = (System.nanoTime() - lastProgress) / 1000000;
+            if (quietMs >= mQuietPeriodMs) {
+                return -1;
+            }
+            try {
+                Thread.sleep(Math.min(POLL_INTERVAL_MS, mQuietPeriodMs - quietMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + len
+                        + " bytes");
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Never skip past what has been written so far, the skipped bytes must exist.
+        long skip = Math.min(n, mFile.length() - mFile.getFilePointer());
+        if (skip <= 0) {
+            return 0;
+        }
+        mFile.seek(mFile.getFilePointer() + skip);
+        return skip;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, mFile.length() - mFile.getFilePointer());
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,174 @@
+package com.android.tools.perflib.heap.io;
+
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HeapInterruptedException;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GrowingFileInputStreamTest {
+
+    private static final long QUIET_PERIOD_MS = 300;
+
+    private File mFile;
+
+    @Before
+    public void runBefore() throws Exception {
+        mFile = File.createTempFile("growing", ".hprof");
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testEndsAfterQuietPeriod() throws Exception {
+        Files.write(new byte[]{1, 2, 3}, mFile);
+        GrowingFileInputStream in = new GrowingFileInputStream(mFile, QUIET_PERIOD_MS);
+        try {
+            byte[] b = new byte[10];
+            assertEquals(3, in.read(b, 0, b.length));
+
+            long start = System.nanoTime();
+            assertEquals(-1, in.read(b, 0, b.length));
+            long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Waited " + waitedMs + " ms", waitedMs >= QUIET_PERIOD_MS);
+        } finally {
+            in.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testReturnsBytesAppendedWhileWaiting() throws Exception {
+        Files.write(new byte[]{1}, mFile);
+        GrowingFileInputStream in = new GrowingFileInputStream(mFile, 10000);
+        try {
+            assertEquals(1, in.read());
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    pause(50);
+                    append(new byte[]{2, 3});
+                }
+            };
+            writer.start();
+            byte[] b = new byte[2];
+            int read = in.read(b, 0, 2);
+            writer.join();
+            if (read == 1) {
+                read += in.read(b, 1, 1);
+            }
+            assertEquals(2, read);
+            assertArrayEquals(new byte[]{2, 3}, b);
+        } finally {
+            in.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testParsesFileWhileItIsWritten() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(3, 500);
+        generator.addLeak("key", true);
+        File complete = generator.writeTempFile("complete");
+        try {
+            final byte[] bytes = Files.toByteArray(complete);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int start = 0; start < bytes.length; start += 4096) {
+                        append(Arrays.copyOfRange(bytes, start,
+                                Math.min(start + 4096, bytes.length)));
+                        pause(2);
+                    }
+                }
+            };
+            writer.start();
+
+            Snapshot followed =
+                    HprofParser.followGrowingFile(mFile, QUIET_PERIOD_MS).parse();
+            writer.join();
+
+            Snapshot expected = new HprofParser(new MemoryMappedFileBuffer(complete)).parse();
+            assertEquals(bytes.length, mFile.length());
+            assertEquals(instanceCount(expected), instanceCount(followed));
+            assertNotNull(followed.findInstance(generator.getLeakedId(0)));
+        } finally {
+            complete.delete();
+        }
+    }
+
+    @org.junit.Test
+    public void testInterruptWhileWaitingStopsParsing() throws Exception {
+        SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(3, 50);
+        File complete = generator.writeTempFile("complete");
+        // The header and the start of the first record, the rest never comes.
+        Files.write(Arrays.copyOf(Files.toByteArray(complete), 100), mFile);
+        complete.delete();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread parser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    HprofParser.followGrowingFile(mFile, 10000).parse();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+                done.countDown();
+            }
+        };
+        parser.start();
+        Thread.sleep(100);
+        parser.interrupt();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(failure.get()),
+                failure.get() instanceof HeapInterruptedException);
+    }
+
+    private void append(byte[] bytes) {
+        try {
+            OutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int instanceCount(Snapshot snapshot) {
+        int count = 0;
+        for (Heap heap : snapshot.getHeaps()) {
+            count += heap.getInstancesCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the counters kept by an {@link InstrumentedHprofBuffer}.
+ */
+public final class HprofBufferStats {
+
+    private final long mByteReads;
+
+    private final long mShortReads;
+
+    private final long mIntReads;
+
+    private final long mLongReads;
+
+    private final long mBulkReads;
+
+    private final long mBytesRead;
+
+    private final long mSeeks;
+
+    private final long mBackwardSeeks;
+
+    private final long[] mSeekDistanceHistogram;
+
+    private final long mShardSwitches;
+
+    private final long mReadNanos;
+
+    HprofBufferStats(long byteReads, long shortReads, long intReads, long longReads,
+            long bulkReads, long bytesRead, long seeks, long backwardSeeks,
+            long[] seekDistanceHistogram, long shardSwitches, long readNanos) {
+        mByteReads = byteReads;
+        mShortReads = shortReads;
+        mIntReads = intReads;
+        mLongReads = longReads;
+        mBulkReads = bulkReads;
+        mBytesRead = bytesRead;
+        mSeeks = seeks;
+        mBackwardSeeks = backwardSeeks;
+        mSeekDistanceHistogram = seekDistanceHistogram.clone();
+        mShardSwitches = shardSwitches;
+        mReadNanos = readNanos;
+    }
+
+    /** Number of single byte reads. */
+    public long getByteReads() {
+        return mByteReads;
+    }
+
+    /** Number of 2-byte reads: shorts and chars. */
+    public long getShortReads() {
+        return mShortReads;
+    }
+
+    /** Number of 4-byte reads: ints and floats. */
+    public long getIntReads() {
+        return mIntReads;
+    }
+
+    /** Number of 8-byte reads: longs and doubles. */
+    public long getLongReads() {
+        return mLongReads;
+    }
+
+    /** Number of reads into byte arrays. */
+    public long getBulkReads() {
+        return mBulkReads;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Number of calls to setPosition() that actually moved the position. */
+    public long getSeeks() {
+        return mSeeks;
+    }
+
+    public long getBackwardSeeks() {
+        return mBackwardSeeks;
+    }
+
+    /**
+     * Returns how many seeks moved by a given distance, in either direction. Bucket <i>i</i>
+     * counts the seeks whose distance <i>d</i> satisfies
+     * 2<sup>i-1</sup> &lt;= d &lt; 2<sup>i</sup>.
+     */
+    public long[] getSeekDistanceHistogram() {
+        return mSeekDistanceHistogram.clone();
+    }
+
+    /** Number of reads that started in a different shard of the buffer than the previous one. */
+    public long getShardSwitches() {
+        return mShardSwitches;
+    }
+
+    /** Wall time spent in reads, or 0 if reads were not timed. */
+    public long getReadNanos() {
+        return mReadNanos;
+    }
+
+    @Override
+    public String toString() {
+        // Trim the empty tail of the histogram.
+        int buckets = mSeekDistanceHistogram.length;
+        while (buckets > 0 && mSeekDistanceHistogram[buckets - 1] == 0) {
+            buckets--;
+        }
+        return "reads: " + mByteReads + " x1, " + mShortReads + " x2, " + mIntReads + " x4, "
+                + mLongReads + " x8, " + mBulkReads + " bulk, " + mBytesRead + " bytes"
+                + ", seeks: " + mSeeks + " (" + mBackwardSeeks + " backward)"
+                + ", seek distance log2 histogram: "
+                + Arrays.toString(Arrays.copyOf(mSeekDistanceHistogram, buckets))
+                + ", shard switches: " + mShardSwitches
+                + ", read time: " + mReadNanos / 1000000 + "ms";
+    }
+}
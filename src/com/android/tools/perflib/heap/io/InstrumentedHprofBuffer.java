@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+/**
+ * An {@link HprofBuffer} that counts how another buffer is accessed: reads by width, bytes read,
+ * seeks and their distances, and switches between the shards of a {@link MemoryMappedFileBuffer}.
+ * Reads can optionally be timed as well.
+ *
+ * Instrumentation is opt-in: an uninstrumented buffer pays nothing, so wrap a buffer only when the
+ * access pattern is being investigated. Like the buffers it wraps, this class is not thread-safe.
+ */
+public class InstrumentedHprofBuffer implements HprofBuffer {
+
+    // One bucket per possible bit length of a seek distance, including 0.
+    private static final int SEEK_BUCKETS = 65;
+
+    private final HprofBuffer mDelegate;
+
+    // Shard size of the delegate, or 0 if it is not sharded.
+    private final long mShardSize;
+
+    private final boolean mTimeReads;
+
+    private long mByteReads;
+
+    private long mShortReads;
+
+    private long mIntReads;
+
+    private long mLongReads;
+
+    private long mBulkReads;
+
+    private long mBytesRead;
+
+    private long mSeeks;
+
+    private long mBackwardSeeks;
+
+    private final long[] mSeekDistances = new long[SEEK_BUCKETS];
+
+    private long mShardSwitches;
+
+    private long mLastShard = -1;
+
+    private long mReadNanos;
+
+    public InstrumentedHprofBuffer(HprofBuffer delegate) {
+        this(delegate, false);
+    }
+
+    /**
+     * @param timeReads whether to measure the time spent in each read. This costs two calls to
+     *                  {@link System#nanoTime()} per read, which is significant for small reads.
+     */
+    public InstrumentedHprofBuffer(HprofBuffer delegate, boolean timeReads) {
+        mDelegate = delegate;
+        mTimeReads = timeReads;
+        mShardSize = delegate instanceof MemoryMappedFileBuffer
+                ? ((MemoryMappedFileBuffer) delegate).getShardSize() : 0;
+    }
+
+    public HprofBuffer getDelegate() {
+        return mDelegate;
+    }
+
+    public HprofBufferStats getStats() {
+        return new HprofBufferStats(mByteReads, mShortReads, mIntReads, mLongReads, mBulkReads,
+                mBytesRead, mSeeks, mBackwardSeeks, mSeekDistances, mShardSwitches, mReadNanos);
+    }
+
+    /**
+     * Clears all counters, e.g. to separate the accesses made while parsing from those made by a
+     * later analysis.
+     */
+    public void resetStats() {
+        mByteReads = 0;
+        mShortReads = 0;
+        mIntReads = 0;
+        mLongReads = 0;
+        mBulkReads = 0;
+        mBytesRead = 0;
+        mSeeks = 0;
+        mBackwardSeeks = 0;
+        for (int i = 0; i < mSeekDistances.length; i++) {
+            mSeekDistances[i] = 0;
+        }
+        mShardSwitches = 0;
+        mLastShard = -1;
+        mReadNanos = 0;
+    }
+
+    @Override
+    public byte readByte() {
+        long start = beforeRead();
+        byte result = mDelegate.readByte();
+        afterRead(start, 1);
+        mByteReads++;
+        return result;
+    }
+
+    @Override
+    public void read(byte[] b) {
+        long start = beforeRead();
+        mDelegate.read(b);
+        afterRead(start, b.length);
+        mBulkReads++;
+    }
+
+    @Override
+    public void readSubSequence(byte[] b, int sourceStart, int length) {
+        // The delegate skips sourceStart bytes first, account for it as a seek.
+        recordSeek(sourceStart);
+        long start = beforeRead();
+        mDelegate.readSubSequence(b, sourceStart, length);
+        afterRead(start, Math.min(b.length, length));
+        mBulkReads++;
+    }
+
+    @Override
+    public char readChar() {
+        long start = beforeRead();
+        char result = mDelegate.readChar();
+        afterRead(start, 2);
+        mShortReads++;
+        return result;
+    }
+
+    @Override
+    public short readShort() {
+        long start = beforeRead();
+        short result = mDelegate.readShort();
+        afterRead(start, 2);
+        mShortReads++;
+        return result;
+    }
+
+    @Override
+    public int readInt() {
+        long start = beforeRead();
+        int result = mDelegate.readInt();
+        afterRead(start, 4);
+        mIntReads++;
+        return result;
+    }
+
+    @Override
+    public long readLong() {
+        long start = beforeRead();
+        long result = mDelegate.readLong();
+        afterRead(start, 8);
+        mLongReads++;
+        return result;
+    }
+
+    @Override
+    public float readFloat() {
+        long start = beforeRead();
+        float result = mDelegate.readFloat();
+        afterRead(start, 4);
+        mIntReads++;
+        return result;
+    }
+
+    @Override
+    public double readDouble() {
+        long start = beforeRead();
+        double result = mDelegate.readDouble();
+        afterRead(start, 8);
+        mLongReads++;
+        return result;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        recordSeek(position - mDelegate.position());
+        mDelegate.setPosition(position);
+    }
+
+    @Override
+    public long position() {
+        return mDelegate.position();
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return mDelegate.hasRemaining();
+    }
+
+    @Override
+    public long remaining() {
+        return mDelegate.remaining();
+    }
+
+    private void recordSeek(long distance) {
+        if (distance == 0) {
+            return;
+        }
+        mSeeks++;
+        if (distance < 0) {
+            mBackwardSeeks++;
+            distance = -distance;
+        }
+        mSeekDistances[64 - Long.numberOfLeadingZeros(distance)]++;
+    }
+
+    private long beforeRead() {
+        if (mShardSize > 0) {
+            long shard = mDelegate.position() / mShardSize;
+            if (shard != mLastShard) {
+                if (mLastShard >= 0) {
+                    mShardSwitches++;
+                }
+                mLastShard = shard;
+            }
+        }
+        return mTimeReads ? System.nanoTime() : 0;
+    }
+
+    private void afterRead(long start, int bytes) {
+        if (mTimeReads) {
+            mReadNanos += System.nanoTime() - start;
+        }
+        mBytesRead += bytes;
+    }
+}
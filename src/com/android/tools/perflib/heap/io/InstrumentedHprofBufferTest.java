@@ -0,0 +1,124 @@
+package com.android.tools.perflib.heap.io;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class InstrumentedHprofBufferTest {
+
+    private static final int SHARD_SIZE = 64;
+
+    private File mFile;
+
+    private ByteBuffer mExpected;
+
+    private MemoryMappedFileBuffer mDelegate;
+
+    private InstrumentedHprofBuffer mBuffer;
+
+    @Before
+    public void runBefore() throws Exception {
+        byte[] data = new byte[4 * SHARD_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        mExpected = ByteBuffer.wrap(data).order(HprofBuffer.HPROF_BYTE_ORDER);
+        mFile = File.createTempFile("instrumented", ".bin");
+        Files.write(data, mFile);
+        mDelegate = new MemoryMappedFileBuffer(mFile, SHARD_SIZE, 16);
+        mBuffer = new InstrumentedHprofBuffer(mDelegate);
+    }
+
+    @After
+    public void runAfter() {
+        mFile.delete();
+    }
+
+    @org.junit.Test
+    public void testCountsReadsByWidth() throws Exception {
+        assertEquals(mExpected.get(0), mBuffer.readByte());
+        assertEquals(mExpected.getShort(1), mBuffer.readShort());
+        assertEquals(mExpected.getChar(3), mBuffer.readChar());
+        assertEquals(mExpected.getInt(5), mBuffer.readInt());
+        assertEquals(mExpected.getFloat(9), mBuffer.readFloat(), 0);
+        assertEquals(mExpected.getLong(13), mBuffer.readLong());
+        assertEquals(mExpected.getDouble(21), mBuffer.readDouble(), 0);
+        byte[] bulk = new byte[10];
+        mBuffer.read(bulk);
+        assertArrayEquals(Arrays.copyOfRange(mExpected.array(), 29, 39), bulk);
+
+        HprofBufferStats stats = mBuffer.getStats();
+        assertEquals(1, stats.getByteReads());
+        assertEquals(2, stats.getShortReads());
+        assertEquals(2, stats.getIntReads());
+        assertEquals(2, stats.getLongReads());
+        assertEquals(1, stats.getBulkReads());
+        assertEquals(39, stats.getBytesRead());
+        assertEquals(0, stats.getSeeks());
+        assertEquals(0, stats.getShardSwitches());
+        assertEquals(0, stats.getReadNanos());
+    }
+
+    @org.junit.Test
+    public void testSeekDistanceHistogram() throws Exception {
+        mBuffer.setPosition(0);   // 0: not a seek
+        mBuffer.setPosition(1);   // 1: bucket 1
+        mBuffer.setPosition(3);   // 2: bucket 2
+        mBuffer.setPosition(6);   // 3: bucket 2
+        mBuffer.setPosition(2);   // -4: bucket 3
+        mBuffer.setPosition(9);   // 7: bucket 3
+        mBuffer.setPosition(17);  // 8: bucket 4
+        byte[] b = new byte[4];
+        mBuffer.readSubSequence(b, 15, 4);  // 15: bucket 4
+
+        HprofBufferStats stats = mBuffer.getStats();
+        assertEquals(7, stats.getSeeks());
+        assertEquals(1, stats.getBackwardSeeks());
+        long[] histogram = stats.getSeekDistanceHistogram();
+        assertEquals(65, histogram.length);
+        assertEquals("[0, 1, 2, 2, 2, 0]", Arrays.toString(Arrays.copyOf(histogram, 6)));
+        for (int i = 6; i < histogram.length; i++) {
+            assertEquals(0, histogram[i]);
+        }
+        assertEquals(1, stats.getBulkReads());
+        assertEquals(4, stats.getBytesRead());
+    }
+
+    @org.junit.Test
+    public void testShardSwitches() throws Exception {
+        mBuffer.readInt();  // Shard 0, the first read is not a switch.
+        mBuffer.setPosition(SHARD_SIZE - 1);
+        mBuffer.readByte();  // Still shard 0.
+        mBuffer.readByte();  // Shard 1.
+        mBuffer.setPosition(3 * SHARD_SIZE);
+        mBuffer.readLong();  // Shard 3.
+        mBuffer.setPosition(10);
+        mBuffer.readShort();  // Shard 0.
+
+        assertEquals(3, mBuffer.getStats().getShardSwitches());
+
+        mBuffer.resetStats();
+        mBuffer.readShort();  // Shard 0 again, but the first read after a reset.
+        HprofBufferStats stats = mBuffer.getStats();
+        assertEquals(0, stats.getShardSwitches());
+        assertEquals(0, stats.getSeeks());
+        assertEquals(1, stats.getShortReads());
+        assertEquals(2, stats.getBytesRead());
+    }
+
+    @org.junit.Test
+    public void testTimesReadsOnlyWhenAsked() throws Exception {
+        InstrumentedHprofBuffer timed = new InstrumentedHprofBuffer(mDelegate, true);
+        for (int i = 0; i < 100; i++) {
+            timed.readByte();
+        }
+        assertTrue(timed.getStats().getReadNanos() > 0);
+    }
+}
@@ -91,6 +91,13 @@ public class MemoryMappedFileBuffer implements HprofBuffer {
         }
     }
 
+    /**
+     * Returns the size of each mapped shard; reads crossing a multiple of it may be wrapped.
+     */
+    int getShardSize() {
+        return mBufferSize;
+    }
+
     @Override
     public byte readByte() {
         byte result = mByteBuffers[getIndex()].get(getOffset());
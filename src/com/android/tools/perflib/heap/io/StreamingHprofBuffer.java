@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * A forward-only {@link HprofBuffer} over an {@link InputStream}, such as the output of
+ * {@code adb shell am dumpheap} or a local socket.
+ *
+ * {@link #setPosition(long)} may only move forward; skipped bytes are discarded. While a copy is
+ * in progress (see {@link #startCopy(OutputStream)}), every byte that is read or skipped is also
+ * written to the copy target, which lets a parser keep the parts of the stream it needs to revisit
+ * later without ever seeking backwards.
+ *
+ * I/O failures and a premature end of stream are reported as {@link UncheckedIOException}, since
+ * the {@link HprofBuffer} accessors cannot throw checked exceptions.
+ */
+public class StreamingHprofBuffer implements HprofBuffer {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mInput;
+
+    private final byte[] mBuffer;
+
+    // Total length of the stream, or -1 if unknown.
+    private final long mLength;
+
+    // Stream offset of mBuffer[0].
+    private long mBufferStart;
+
+    private int mBufferPosition;
+
+    private int mBufferLimit;
+
+    private boolean mEndOfStream;
+
+    // Set once the stream failed to skip, as pipes do, after which bytes are read and discarded.
+    private boolean mSkipUnsupported;
+
+    private OutputStream mCopyTarget;
+
+    // Index in mBuffer of the first byte not yet written to mCopyTarget.
+    private int mCopyMark;
+
+    private long mCopiedBytes;
+
+    public StreamingHprofBuffer(InputStream input) {
+        this(input, -1, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param length the total number of bytes the stream will deliver, used by {@link
+     *               #remaining()}, or -1 if unknown.
+     */
+    public StreamingHprofBuffer(InputStream input, long length) {
+        this(input, length, DEFAULT_BUFFER_SIZE);
+    }
+
+    StreamingHprofBuffer(InputStream input, long length, int bufferSize) {
+        // Room for the widest primitive read.
+        assert bufferSize >= 8;
+        mInput = input;
+        mLength = length;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Starts copying every byte consumed from now on, read or skipped, to {@code target}.
+     */
+    public void startCopy(OutputStream target) {
+        if (mCopyTarget != null) {
+            throw new IllegalStateException("A copy is already in progress");
+        }
+        mCopyTarget = target;
+        mCopyMark = mBufferPosition;
+        mCopiedBytes = 0;
+    }
+
+    /**
+     * Stops the copy started by {@link #startCopy(OutputStream)}.
+     *
+     * @return the number of bytes written to the copy target.
+     */
+    public long stopCopy() {
+        if (mCopyTarget == null) {
+            throw new IllegalStateException("No copy in progress");
+        }
+        flushCopy();
+        mCopyTarget = null;
+        return mCopiedBytes;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    public void close() throws IOException {
+        mInput.close();
+    }
+
+    @Override
+    public byte readByte() {
+        ensure(1);
+        return mBuffer[mBufferPosition++];
+    }
+
+    @Override
+    public void read(byte[] b) {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readSubSequence(byte[] b, int sourceStart, int length) {
+        skip(sourceStart);
+        readFully(b, 0, Math.min(b.length, length));
+    }
+
+    @Override
+    public char readChar() {
+        return (char) readShort();
+    }
+
+    @Override
+    public short readShort() {
+        ensure(2);
+        int result = ((mBuffer[mBufferPosition] & 0xff) << 8)
+                | (mBuffer[mBufferPosition + 1] & 0xff);
+        mBufferPosition += 2;
+        return (short) result;
+    }
+
+    @Override
+    public int readInt() {
+        ensure(4);
+        int result = ((mBuffer[mBufferPosition] & 0xff) << 24)
+                | ((mBuffer[mBufferPosition + 1] & 0xff) << 16)
+                | ((mBuffer[mBufferPosition + 2] & 0xff) << 8)
+                | (mBuffer[mBufferPosition + 3] & 0xff);
+        mBufferPosition += 4;
+        return result;
+    }
+
+    @Override
+    public long readLong() {
+        ensure(8);
+        long high = readInt();
+        return (high << 32) | (readInt() & 0xffffffffL);
+    }
+
+    @Override
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Moves forward to {@code position}, discarding the bytes in between.
+     *
+     * @throws UnsupportedOperationException if {@code position} is behind the current position.
+     */
+    @Override
+    public void setPosition(long position) {
+        long current = position();
+        if (position < current) {
+            throw new UnsupportedOperationException("Cannot seek backwards in a stream from "
+                    + current + " to " + position);
+        }
+        skip(position - current);
+    }
+
+    @Override
+    public long position() {
+        return mBufferStart + mBufferPosition;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return mBufferPosition < mBufferLimit || fill() > 0;
+    }
+
+    /**
+     * Returns the number of bytes left in the stream, or -1 if the stream length is unknown.
+     */
+    @Override
+    public long remaining() {
+        return mLength < 0 ? -1 : mLength - position();
+    }
+
+    private void skip(long numBytes) {
+        while (numBytes > 0) {
+            if (mBufferPosition == mBufferLimit) {
+                if (mCopyTarget == null && !mSkipUnsupported) {
+                    // Nothing buffered and nothing to copy, let the stream skip if it can.
+                    numBytes -= skipUnbuffered(numBytes);
+                    if (numBytes == 0) {
+                        break;
+                    }
+                }
+                ensure(1);
+            }
+            int chunk = (int) Math.min(numBytes, mBufferLimit - mBufferPosition);
+            mBufferPosition += chunk;
+            numBytes -= chunk;
+        }
+    }
+
+    private long skipUnbuffered(long numBytes) {
+        long skipped;
+        try {
+            skipped = mInput.skip(numBytes);
+        } catch (IOException e) {
+            // FileInputStream cannot seek in a pipe, such as stdin. A real I/O failure shows up
+            // again on the next read.
+            mSkipUnsupported = true;
+            return 0;
+        }
+        if (skipped > 0) {
+            mBufferStart += skipped;
+            return skipped;
+        }
+        return 0;
+    }
+
+    private void readFully(byte[] b, int offset, int length) {
+        while (length > 0) {
+            if (mBufferPosition == mBufferLimit) {
+                ensure(1);
+            }
+            int chunk = Math.min(length, mBufferLimit - mBufferPosition);
+            System.arraycopy(mBuffer, mBufferPosition, b, offset, chunk);
+            mBufferPosition += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void ensure(int numBytes) {
+        while (mBufferLimit - mBufferPosition < numBytes) {
+            if (fill() <= 0) {
+                throw new UncheckedIOException(new EOFException(
+                        "Unexpected end of stream at " + position()));
+            }
+        }
+    }
+
+    /**
+     * Compacts the buffer and reads more data into it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    private int fill() {
+        if (mEndOfStream) {
+            return -1;
+        }
+        flushCopy();
+        int unread = mBufferLimit - mBufferPosition;
+        System.arraycopy(mBuffer, mBufferPosition, mBuffer, 0, unread);
+        mBufferStart += mBufferPosition;
+        mBufferPosition = 0;
+        mBufferLimit = unread;
+        mCopyMark = 0;
+        try {
+            int read = mInput.read(mBuffer, mBufferLimit, mBuffer.length - mBufferLimit);
+            if (read < 0) {
+                mEndOfStream = true;
+                return -1;
+            }
+            mBufferLimit += read;
+            return read;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushCopy() {
+        if (mCopyTarget == null || mCopyMark == mBufferPosition) {
+            return;
+        }
+        try {
+            mCopyTarget.write(mBuffer, mCopyMark, mBufferPosition - mCopyMark);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mCopiedBytes += mBufferPosition - mCopyMark;
+        mCopyMark = mBufferPosition;
+    }
+}
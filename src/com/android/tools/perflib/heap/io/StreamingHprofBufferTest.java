@@ -0,0 +1,128 @@
+package com.android.tools.perflib.heap.io;
+
+import org.junit.Before;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingHprofBufferTest {
+
+    private static final int DATA_SIZE = 10000;
+
+    // Small enough that most reads straddle a refill.
+    private static final int BUFFER_SIZE = 13;
+
+    private byte[] mData;
+
+    private ByteBuffer mExpected;
+
+    private StreamingHprofBuffer mBuffer;
+
+    @Before
+    public void runBefore() {
+        mData = new byte[DATA_SIZE];
+        new Random(42).nextBytes(mData);
+        mExpected = ByteBuffer.wrap(mData).order(HprofBuffer.HPROF_BYTE_ORDER);
+        mBuffer = new StreamingHprofBuffer(new ByteArrayInputStream(mData), DATA_SIZE,
+                BUFFER_SIZE);
+    }
+
+    @org.junit.Test
+    public void testMixedReads() throws Exception {
+        Random r = new Random(7);
+        while (mExpected.remaining() > 8) {
+            assertEquals(mExpected.position(), mBuffer.position());
+            switch (r.nextInt(6)) {
+                case 0:
+                    assertEquals(mExpected.get(), mBuffer.readByte());
+                    break;
+                case 1:
+                    assertEquals(mExpected.getChar(), mBuffer.readChar());
+                    break;
+                case 2:
+                    assertEquals(mExpected.getShort(), mBuffer.readShort());
+                    break;
+                case 3:
+                    assertEquals(mExpected.getInt(), mBuffer.readInt());
+                    break;
+                case 4:
+                    assertEquals(mExpected.getLong(), mBuffer.readLong());
+                    break;
+                default:
+                    byte[] expected = new byte[Math.min(r.nextInt(40), mExpected.remaining())];
+                    byte[] actual = new byte[expected.length];
+                    mExpected.get(expected);
+                    mBuffer.read(actual);
+                    assertArrayEquals(expected, actual);
+            }
+        }
+        assertEquals(mExpected.remaining(), mBuffer.remaining());
+    }
+
+    @org.junit.Test
+    public void testSkipForward() throws Exception {
+        mBuffer.setPosition(5);
+        assertEquals(mExpected.getInt(5), mBuffer.readInt());
+        mBuffer.setPosition(DATA_SIZE - 4);
+        assertEquals(mExpected.getInt(DATA_SIZE - 4), mBuffer.readInt());
+        assertFalse(mBuffer.hasRemaining());
+    }
+
+    @org.junit.Test
+    public void testSeekBackwardFails() throws Exception {
+        mBuffer.setPosition(100);
+        try {
+            mBuffer.setPosition(99);
+            fail("Seeking backwards should not be supported");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @org.junit.Test
+    public void testCopyIncludesSkippedBytes() throws Exception {
+        mBuffer.setPosition(10);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        mBuffer.startCopy(copy);
+        mBuffer.readInt();
+        mBuffer.setPosition(1000);
+        mBuffer.readByte();
+        assertEquals(991, mBuffer.stopCopy());
+
+        byte[] expected = new byte[991];
+        System.arraycopy(mData, 10, expected, 0, expected.length);
+        assertArrayEquals(expected, copy.toByteArray());
+    }
+
+    @org.junit.Test
+    public void testSkipOnStreamThatCannotSkip() throws Exception {
+        mBuffer = new StreamingHprofBuffer(new PipeInputStream(mData), DATA_SIZE, BUFFER_SIZE);
+        assertEquals(mExpected.getInt(0), mBuffer.readInt());
+        // Skips well past the buffered bytes, as for a large unknown record.
+        mBuffer.setPosition(5000);
+        assertEquals(mExpected.getInt(5000), mBuffer.readInt());
+        mBuffer.setPosition(DATA_SIZE - 4);
+        assertEquals(mExpected.getInt(DATA_SIZE - 4), mBuffer.readInt());
+        assertFalse(mBuffer.hasRemaining());
+    }
+
+    /**
+     * Fails to skip the way {@link java.io.FileInputStream} does when reading from a pipe.
+     */
+    private static class PipeInputStream extends FilterInputStream {
+
+        PipeInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("Illegal seek");
+        }
+    }
+}
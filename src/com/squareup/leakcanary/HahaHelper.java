@@ -114,6 +114,10 @@ public final class HahaHelper {
 
 
 
+  static boolean isWrapperType(String className) {
+    return WRAPPER_TYPES.contains(className);
+  }
+
   public static boolean isPrimitiveWrapper(Object value) {
     if (!(value instanceof ClassInstance)) {
       return false;
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.HeapMetrics;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Analyzes {@link HeapDump}s with a {@link HeapAnalyzer} on a bounded pool of worker threads.
+ *
+ * <p>Every analysis reserves an estimate of the heap it needs, proportional to the size of its
+ * heap dump file, from a heap budget. Dumps are analyzed in the order they were submitted, each
+ * one as soon as a worker is free and its reservation fits in what is left of the budget, or when
+ * nothing else runs if it does not fit at all. The reservation is released once the analysis
+ * actually stops running.
+ *
+ * <p>Each analysis is returned as a future, which can be cancelled, and which fails with a
+ * {@link TimeoutException} if the analysis runs for longer than the timeout. In both cases the
+ * worker is interrupted: the parser and the searches check for it as they go and stop with a
+ * {@link com.android.tools.perflib.heap.HeapInterruptedException}, so the worker and its
+ * reservation are freed early, and the result is discarded.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class HeapAnalysisService implements HeapDump.Listener, Closeable {
+
+  /** How many bytes of heap the analysis of a heap dump needs, per byte of the dump file. */
+  public static final double DEFAULT_HEAP_BYTES_PER_DUMP_BYTE = 2;
+
+  private final int maxConcurrentAnalyses;
+  private final long heapBudgetBytes;
+  private final double heapBytesPerDumpByte;
+  private final long timeoutMs;
+  private final HeapMetrics.Listener metricsListener;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService timeouts;
+
+  // Guarded by this.
+  private final Deque<Job> pendingJobs = new ArrayDeque<>();
+  private final List<Job> runningJobs = new ArrayList<>();
+  private long reservedBytes;
+  private boolean closed;
+
+  /**
+   * Creates a service whose heap budget is the heap that is not in use yet, out of the maximum
+   * heap size.
+   *
+   * @param timeoutMs how long an analysis may run before it fails, 0 for no limit.
+   */
+  public HeapAnalysisService(int maxConcurrentAnalyses, long timeoutMs) {
+    this(maxConcurrentAnalyses, availableHeapBytes(), DEFAULT_HEAP_BYTES_PER_DUMP_BYTE, timeoutMs,
+        null);
+  }
+
+  /**
+   * @param heapBudgetBytes the heap the analyses running at the same time may take.
+   * @param heapBytesPerDumpByte the heap an analysis takes per byte of its heap dump file.
+   * @param timeoutMs how long an analysis may run before it fails, 0 for no limit.
+   * @param metricsListener notified of the time and memory spent in each phase of every analysis,
+   * may be null.
+   */
+  public HeapAnalysisService(int maxConcurrentAnalyses, long heapBudgetBytes,
+      double heapBytesPerDumpByte, long timeoutMs, HeapMetrics.Listener metricsListener) {
+    if (maxConcurrentAnalyses < 1) {
+      throw new IllegalArgumentException(
+          "maxConcurrentAnalyses must be positive: " + maxConcurrentAnalyses);
+    }
+    this.maxConcurrentAnalyses = maxConcurrentAnalyses;
+    this.heapBudgetBytes = heapBudgetBytes;
+    this.heapBytesPerDumpByte = heapBytesPerDumpByte;
+    this.timeoutMs = timeoutMs;
+    this.metricsListener = metricsListener;
+    workers = Executors.newFixedThreadPool(maxConcurrentAnalyses, threadFactory("analysis"));
+    timeouts = Executors.newSingleThreadScheduledExecutor(threadFactory("analysis-timeout"));
+  }
+
+  /**
+   * Submits the heap dump for the analysis of all its reference keys, and ignores the result.
+   * Prefer {@link #submitAll}.
+   */
+  @Override public void analyze(HeapDump heapDump) {
+    submitAll(heapDump);
+  }
+
+  /**
+   * Schedules the analysis of {@code heapDump}, looking for its reference key with its excluded
+   * refs. The other keys of a dump of several references are ignored, see {@link #submitAll}.
+   *
+   * @throws IllegalStateException if the service is closed.
+   */
+  public CompletableFuture<AnalysisResult> submit(HeapDump heapDump) {
+    final String referenceKey = heapDump.referenceKey;
+    final CompletableFuture<Map<String, AnalysisResult>> results =
+        schedule(heapDump, Collections.singletonList(referenceKey));
+    final CompletableFuture<AnalysisResult> result =
+        results.thenApply(new Function<Map<String, AnalysisResult>, AnalysisResult>() {
+          @Override public AnalysisResult apply(Map<String, AnalysisResult> results) {
+            return results.get(referenceKey);
+          }
+        });
+    result.whenComplete(new BiConsumer<AnalysisResult, Throwable>() {
+      @Override public void accept(AnalysisResult ignored, Throwable failure) {
+        if (result.isCancelled()) {
+          results.cancel(true);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Schedules the analysis of {@code heapDump}, looking for each of its reference keys with its
+   * excluded refs, in a single pass over the dump.
+   *
+   * @return the result for each reference key, in the order of {@link HeapDump#referenceKeys}.
+   *
+   * @throws IllegalStateException if the service is closed.
+   */
+  public CompletableFuture<Map<String, AnalysisResult>> submitAll(HeapDump heapDump) {
+    return schedule(heapDump, heapDump.referenceKeys);
+  }
+
+  private CompletableFuture<Map<String, AnalysisResult>> schedule(HeapDump heapDump,
+      List<String> referenceKeys) {
+    long estimatedBytes = (long) (heapDump.heapDumpFile.length() * heapBytesPerDumpByte);
+    final Job job = new Job(heapDump, referenceKeys, estimatedBytes);
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Service closed");
+      }
+      pendingJobs.add(job);
+    }
+    job.future.whenComplete(new BiConsumer<Map<String, AnalysisResult>, Throwable>() {
+      @Override public void accept(Map<String, AnalysisResult> results, Throwable failure) {
+        stop(job);
+      }
+    });
+    dispatch();
+    return job.future;
+  }
+
+  /** Returns the number of analyses waiting for a worker or for heap. */
+  public synchronized int getPendingCount() {
+    return pendingJobs.size();
+  }
+
+  /** Returns the number of analyses running. */
+  public synchronized int getRunningCount() {
+    return runningJobs.size();
+  }
+
+  /** Returns the heap reserved by the analyses running. */
+  public synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * Cancels the analyses that have not completed yet, and stops the workers.
+   */
+  @Override public void close() {
+    List<Job> jobs;
+    synchronized (this) {
+      closed = true;
+      jobs = new ArrayList<>(pendingJobs);
+      jobs.addAll(runningJobs);
+    }
+    for (Job job : jobs) {
+      job.future.cancel(true);
+    }
+    workers.shutdownNow();
+    timeouts.shutdownNow();
+  }
+
+  private void dispatch() {
+    List<Job> admitted = new ArrayList<>();
+    synchronized (this) {
+      while (!closed && runningJobs.size() < maxConcurrentAnalyses && !pendingJobs.isEmpty()) {
+        Job job = pendingJobs.peek();
+        // A dump larger than the whole budget still runs, alone.
+        if (!runningJobs.isEmpty() && reservedBytes + job.estimatedBytes > heapBudgetBytes) {
+          break;
+        }
+        pendingJobs.poll();
+        runningJobs.add(job);
+        reservedBytes += job.estimatedBytes;
+        admitted.add(job);
+      }
+    }
+    for (Job job : admitted) {
+      try {
+        workers.execute(job);
+      } catch (RejectedExecutionException e) {
+        // Closed in the meantime.
+        job.future.cancel(false);
+        finished(job);
+      }
+    }
+  }
+
+  /** Called when the future of {@code job} completes, whether the analysis is done or not. */
+  private void stop(Job job) {
+    boolean removed;
+    synchronized (this) {
+      removed = pendingJobs.remove(job);
+      if (job.thread != null && job.thread != Thread.currentThread()) {
+        // Cancelled or timed out: the reservation is released when the worker stops running.
+        job.thread.interrupt();
+      }
+    }
+    if (removed) {
+      dispatch();
+    }
+  }
+
+  private void finished(Job job) {
+    synchronized (this) {
+      runningJobs.remove(job);
+      reservedBytes -= job.estimatedBytes;
+    }
+    dispatch();
+  }
+
+  private static long availableHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "leakcanary-" + name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private final class Job implements Runnable {
+    final HeapDump heapDump;
+    final List<String> referenceKeys;
+    final long estimatedBytes;
+    final CompletableFuture<Map<String, AnalysisResult>> future = new CompletableFuture<>();
+    // Guarded by the service, set while the analysis runs.
+    Thread thread;
+
+    Job(HeapDump heapDump, List<String> referenceKeys, long estimatedBytes) {
+      this.heapDump = heapDump;
+      this.referenceKeys = referenceKeys;
+      this.estimatedBytes = estimatedBytes;
+    }
+
+    @Override public void run() {
+      ScheduledFuture<?> timeout = null;
+      try {
+        synchronized (HeapAnalysisService.this) {
+          if (future.isDone()) {
+            return;
+          }
+          thread = Thread.currentThread();
+        }
+        if (timeoutMs > 0) {
+          timeout = timeouts.schedule(new Runnable() {
+            @Override public void run() {
+              future.completeExceptionally(new TimeoutException(
+                  "Analysis of " + heapDump.heapDumpFile + " took more than " + timeoutMs + " ms"));
+            }
+          }, timeoutMs, MILLISECONDS);
+        }
+        HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs, metricsListener);
+        future.complete(heapAnalyzer.checkForLeaks(heapDump.heapDumpFile, referenceKeys));
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      } finally {
+        if (timeout != null) {
+          timeout.cancel(false);
+        }
+        synchronized (HeapAnalysisService.this) {
+          thread = null;
+        }
+        // Clears an interrupt that came too late to stop the analysis.
+        Thread.interrupted();
+        finished(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.HeapMetrics;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeapAnalysisServiceTest {
+
+  private File file;
+  private HeapAnalysisService service;
+  private final BlockingListener listener = new BlockingListener();
+
+  @Before public void setUp() throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(5, 200);
+    generator.addLeak("key", true);
+    generator.addLeak("other", true);
+    file = generator.writeTempFile("service");
+  }
+
+  @After public void tearDown() {
+    listener.release();
+    if (service != null) {
+      service.close();
+    }
+    file.delete();
+  }
+
+  @Test public void analyzesSubmittedDump() throws Exception {
+    service = new HeapAnalysisService(1, Long.MAX_VALUE, 1, 0, null);
+
+    AnalysisResult result = service.submit(heapDump()).get(10, SECONDS);
+
+    assertTrue(result.leakFound);
+    awaitIdle();
+  }
+
+  @Test public void analyzesEveryKeyOfSubmittedDump() throws Exception {
+    service = new HeapAnalysisService(1, Long.MAX_VALUE, 1, 0, null);
+    HeapDump heapDump = new HeapDump(file, Arrays.asList("other", "key"),
+        Arrays.asList("other name", "name"), ExcludedRefs.builder().build(), 0, 0, 0);
+
+    Map<String, AnalysisResult> results = service.submitAll(heapDump).get(10, SECONDS);
+
+    assertEquals(Arrays.asList("other", "key"), new ArrayList<>(results.keySet()));
+    assertTrue(results.get("other").leakFound);
+    assertTrue(results.get("key").leakFound);
+    awaitIdle();
+  }
+
+  @Test public void cancelStopsTheParser() throws Exception {
+    service = new HeapAnalysisService(1, Long.MAX_VALUE, 1, 0, listener);
+    CompletableFuture<AnalysisResult> future = service.submit(heapDump());
+    assertTrue(listener.started.await(10, SECONDS));
+
+    future.cancel(true);
+    listener.release();
+
+    awaitIdle();
+    assertStoppedWhileParsing();
+    try {
+      future.get();
+      fail("Expected the analysis to stop");
+    } catch (CancellationException expected) {
+    }
+  }
+
+  @Test public void timeoutStopsTheParser() throws Exception {
+    service = new HeapAnalysisService(1, Long.MAX_VALUE, 1, 50, listener);
+    CompletableFuture<Map<String, AnalysisResult>> future = service.submitAll(heapDump());
+    assertTrue(listener.started.await(10, SECONDS));
+
+    try {
+      future.get(10, SECONDS);
+      fail("Expected the analysis to stop");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof TimeoutException);
+    }
+    listener.release();
+
+    awaitIdle();
+    assertStoppedWhileParsing();
+  }
+
+  @Test public void secondDumpWaitsForHeapBudget() throws Exception {
+    service = new HeapAnalysisService(2, file.length() * 3 / 2, 1, 0, listener);
+    CompletableFuture<AnalysisResult> first = service.submit(heapDump());
+    CompletableFuture<AnalysisResult> second = service.submit(heapDump());
+
+    assertEquals(1, service.getRunningCount());
+    assertEquals(1, service.getPendingCount());
+    assertEquals(file.length(), service.getReservedBytes());
+
+    listener.release();
+    assertTrue(first.get(10, SECONDS).leakFound);
+    assertTrue(second.get(10, SECONDS).leakFound);
+    awaitIdle();
+    assertEquals(0, service.getPendingCount());
+  }
+
+  @Test public void dumpsAreAdmittedInSubmissionOrder() throws Exception {
+    File small = writeDump(20, "small");
+    try {
+      assertTrue(small.length() < file.length());
+      service = new HeapAnalysisService(3, file.length() + small.length(), 1, 0, listener);
+      CompletableFuture<AnalysisResult> first = service.submit(heapDump());
+      CompletableFuture<AnalysisResult> second = service.submit(heapDump());
+      // Would fit next to the first, but does not overtake the second.
+      CompletableFuture<AnalysisResult> third = service.submit(heapDump(small));
+
+      assertEquals(1, service.getRunningCount());
+      assertEquals(2, service.getPendingCount());
+      assertEquals(file.length(), service.getReservedBytes());
+
+      listener.release();
+      assertTrue(first.get(10, SECONDS).leakFound);
+      assertTrue(second.get(10, SECONDS).leakFound);
+      assertTrue(third.get(10, SECONDS).leakFound);
+      awaitIdle();
+      assertEquals(0, service.getPendingCount());
+    } finally {
+      small.delete();
+    }
+  }
+
+  @Test public void dumpLargerThanTheBudgetRunsAlone() throws Exception {
+    service = new HeapAnalysisService(2, file.length() / 2, 1, 0, listener);
+    CompletableFuture<AnalysisResult> first = service.submit(heapDump());
+
+    assertEquals(1, service.getRunningCount());
+    assertEquals(0, service.getPendingCount());
+    assertEquals(file.length(), service.getReservedBytes());
+
+    CompletableFuture<AnalysisResult> second = service.submit(heapDump());
+    assertEquals(1, service.getRunningCount());
+    assertEquals(1, service.getPendingCount());
+
+    listener.release();
+    assertTrue(first.get(10, SECONDS).leakFound);
+    assertTrue(second.get(10, SECONDS).leakFound);
+    awaitIdle();
+  }
+
+  @Test public void finishedAnalysisReleasesItsReservation() throws Exception {
+    service = new HeapAnalysisService(1, Long.MAX_VALUE, 1, 0, listener);
+    CompletableFuture<AnalysisResult> future = service.submit(heapDump());
+    assertTrue(listener.started.await(10, SECONDS));
+    assertEquals(file.length(), service.getReservedBytes());
+
+    listener.release();
+    assertTrue(future.get(10, SECONDS).leakFound);
+    awaitIdle();
+    assertEquals(0, service.getReservedBytes());
+    assertEquals(0, service.getRunningCount());
+    assertEquals(0, service.getPendingCount());
+  }
+
+  private HeapDump heapDump() {
+    return heapDump(file);
+  }
+
+  private HeapDump heapDump(File heapDumpFile) {
+    return new HeapDump(heapDumpFile, "key", "name", ExcludedRefs.builder().build(), 0, 0, 0);
+  }
+
+  private static File writeDump(int nodesPerShape, String prefix) throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(5, nodesPerShape);
+    generator.addLeak("key", true);
+    return generator.writeTempFile(prefix);
+  }
+
+  private void awaitIdle() throws InterruptedException {
+    long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (service.getRunningCount() > 0 || service.getReservedBytes() > 0) {
+      assertTrue("Analysis still running", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /** The analysis gave up at the first record after the interrupt, before the end of the dump. */
+  private void assertStoppedWhileParsing() {
+    assertEquals(0, listener.parseCompletedCount);
+    assertFalse(listener.phases.contains(HeapMetrics.Phase.SHORTEST_PATH));
+  }
+
+  /** Blocks the analysis once its header is read, until released, ignoring interrupts. */
+  private static final class BlockingListener implements HeapMetrics.Listener {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    final List<HeapMetrics.Phase> phases = new CopyOnWriteArrayList<>();
+    volatile int parseCompletedCount;
+
+    @Override public void onPhaseCompleted(HeapMetrics.Phase phase, long durationNanos,
+        long allocatedBytes) {
+      phases.add(phase);
+      if (phase == HeapMetrics.Phase.HEADER) {
+        started.countDown();
+        // Keeps the interrupt status set for the parser to see.
+        Uninterruptibles.awaitUninterruptibly(released);
+      }
+    }
+
+    @Override public void onParseCompleted(HeapMetrics metrics) {
+      parseCompletedCount++;
+    }
+
+    void release() {
+      released.countDown();
+    }
+  }
+}
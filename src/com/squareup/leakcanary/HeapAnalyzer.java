@@ -16,13 +16,19 @@
 package com.squareup.leakcanary;
 
 import com.android.tools.perflib.heap.*;
+import com.android.tools.perflib.heap.analysis.LocalRetainedSize;
 import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.squareup.leakcanary.AnalysisResult.failure;
 import static com.squareup.leakcanary.AnalysisResult.leakDetected;
@@ -47,9 +53,19 @@ public final class HeapAnalyzer {
   private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
 
   private final ExcludedRefs excludedRefs;
+  private final HeapMetrics.Listener metricsListener;
 
   public HeapAnalyzer(ExcludedRefs excludedRefs) {
+    this(excludedRefs, null);
+  }
+
+  /**
+   * @param metricsListener notified of the time and memory spent in each phase of every analysis,
+   * may be null.
+   */
+  public HeapAnalyzer(ExcludedRefs excludedRefs, HeapMetrics.Listener metricsListener) {
     this.excludedRefs = excludedRefs;
+    this.metricsListener = metricsListener;
   }
 
   /**
@@ -57,72 +73,154 @@ public final class HeapAnalyzer {
    * and then computes the shortest strong reference path from that instance to the GC roots.
    */
   public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey) {
+    return checkForLeaks(heapDumpFile, Collections.singletonList(referenceKey)).get(referenceKey);
+  }
+
+  /**
+   * Same as {@link #checkForLeak(File, String)} for each of {@code referenceKeys}, but the heap
+   * dump is parsed once, the {@link KeyedWeakReference} instances are scanned once, the paths to
+   * all the leaking instances are found in a single search and the dominators are computed once.
+   *
+   * @return the result for each key, in the iteration order of {@code referenceKeys}.
+   */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile,
+      Collection<String> referenceKeys) {
     long analysisStartNanoTime = System.nanoTime();
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
 
     if (!heapDumpFile.exists()) {
       Exception exception = new IllegalArgumentException("File does not exist: " + heapDumpFile);
-      return failure(exception, since(analysisStartNanoTime));
+      for (String referenceKey : referenceKeys) {
+        results.put(referenceKey, failure(exception, since(analysisStartNanoTime)));
+      }
+      return results;
     }
 
     try {
       HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
       HprofParser parser = new HprofParser(buffer);
+      parser.setMetricsListener(metricsListener);
       Snapshot snapshot = parser.parse();
 
-      Instance leakingRef = findLeakingReference(referenceKey, snapshot);
+      Map<String, Instance> leakingRefs = findLeakingReferences(referenceKeys, snapshot);
 
-      // False alarm, weak reference was cleared in between key check and heap dump.
-      if (leakingRef == null) {
-        return noLeak(since(analysisStartNanoTime));
+      List<String> leakingKeys = new ArrayList<>();
+      List<Instance> leakingInstances = new ArrayList<>();
+      for (String referenceKey : referenceKeys) {
+        if (!leakingRefs.containsKey(referenceKey)) {
+          Exception exception = new IllegalStateException(
+              "Could not find weak reference with key " + referenceKey + " in "
+                  + leakingRefs.keySet());
+          results.put(referenceKey, failure(exception, since(analysisStartNanoTime)));
+          continue;
+        }
+        Instance leakingRef = leakingRefs.get(referenceKey);
+        // False alarm, weak reference was cleared in between key check and heap dump.
+        if (leakingRef == null) {
+          results.put(referenceKey, noLeak(since(analysisStartNanoTime)));
+          continue;
+        }
+        results.put(referenceKey, null);
+        leakingKeys.add(referenceKey);
+        leakingInstances.add(leakingRef);
       }
 
-      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef);
+      if (!leakingKeys.isEmpty()) {
+        findLeakTraces(analysisStartNanoTime, snapshot, leakingKeys, leakingInstances, results);
+      }
     } catch (Throwable e) {
-      return failure(e, since(analysisStartNanoTime));
+      for (String referenceKey : referenceKeys) {
+        if (results.get(referenceKey) == null) {
+          results.put(referenceKey, failure(e, since(analysisStartNanoTime)));
+        }
+      }
     }
+    return results;
   }
 
-  private Instance findLeakingReference(String key, Snapshot snapshot) {
+  /**
+   * Returns the referent of the first {@link KeyedWeakReference} with each key in {@code keys},
+   * which may be null if it was cleared, and the keys of all the other ones, mapped to null.
+   */
+  private Map<String, Instance> findLeakingReferences(Collection<String> keys,
+      Snapshot snapshot) {
+    Set<String> keysToFind = new HashSet<>(keys);
     ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
-    List<String> keysFound = new ArrayList<>();
+    Map<String, Instance> leakingRefs = new LinkedHashMap<>();
     for (Instance instance : refClass.getInstancesList()) {
       List<ClassInstance.FieldValue> values = classInstanceValues(instance);
       String keyCandidate = asString(fieldValue(values, "key"));
-      if (keyCandidate.equals(key)) {
-        return fieldValue(values, "referent");
+      if (leakingRefs.containsKey(keyCandidate)) {
+        continue;
       }
-      keysFound.add(keyCandidate);
+      leakingRefs.put(keyCandidate,
+          keysToFind.contains(keyCandidate) ? fieldValue(values, "referent") : null);
     }
-    throw new IllegalStateException(
-        "Could not find weak reference with key " + key + " in " + keysFound);
+    return leakingRefs;
   }
 
-  private AnalysisResult findLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
-      Instance leakingRef) {
+  private void findLeakTraces(long analysisStartNanoTime, Snapshot snapshot,
+      List<String> leakingKeys, List<Instance> leakingRefs, Map<String, AnalysisResult> results) {
 
+    HeapMetrics metrics = snapshot.getMetrics();
+    metrics.startPhase(HeapMetrics.Phase.SHORTEST_PATH);
     ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
-    ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
+    List<ShortestPathFinder.Result> pathResults = pathFinder.findPaths(snapshot, leakingRefs);
+    metrics.endPhase();
 
-    // False alarm, no strong reference path to GC Roots.
-    if (result.leakingNode == null) {
-      return noLeak(since(analysisStartNanoTime));
+    int leakCount = 0;
+    for (ShortestPathFinder.Result result : pathResults) {
+      if (result.leakingNode != null) {
+        leakCount++;
+      }
     }
 
-    LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
-
-    String className = leakingRef.getClassObj().getClassName();
-
-    // Side effect: computes retained size.
-    snapshot.computeDominators();
+    // Without bitmaps, a single retained size is cheaper to compute locally than with the
+    // dominators of the whole heap. Bitmaps held by native roots need those dominators.
+    boolean computeLocally = leakCount == 1 && !hasBitmapInstances(snapshot);
+    boolean dominatorsComputed = false;
+    for (int i = 0; i < leakingKeys.size(); i++) {
+      String referenceKey = leakingKeys.get(i);
+      Instance leakingRef = leakingRefs.get(i);
+      ShortestPathFinder.Result result = pathResults.get(i);
+      try {
+        // False alarm, no strong reference path to GC Roots.
+        if (result.leakingNode == null) {
+          results.put(referenceKey, noLeak(since(analysisStartNanoTime)));
+          continue;
+        }
 
-    Instance leakingInstance = result.leakingNode.instance;
+        LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
 
-    long retainedSize = leakingInstance.getTotalRetainedSize();
+        String className = leakingRef.getClassObj().getClassName();
 
-    retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+        Instance leakingInstance = result.leakingNode.instance;
 
-    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
-        since(analysisStartNanoTime));
+        long retainedSize;
+        if (computeLocally) {
+          metrics.startPhase(HeapMetrics.Phase.RETAINED_SIZES);
+          retainedSize = LocalRetainedSize.compute(snapshot, leakingInstance);
+        } else {
+          if (!dominatorsComputed) {
+            // Side effect: computes retained size.
+            snapshot.computeDominators();
+            dominatorsComputed = true;
+          }
+          retainedSize = leakingInstance.getTotalRetainedSize();
+          metrics.startPhase(HeapMetrics.Phase.RETAINED_SIZES);
+          retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+        }
+        metrics.endPhase();
+
+        results.put(referenceKey, leakDetected(result.excludingKnownLeaks, className, leakTrace,
+            retainedSize, since(analysisStartNanoTime)));
+      } catch (HeapInterruptedException e) {
+        // The remaining keys fail with it rather than each starting over.
+        throw e;
+      } catch (Throwable e) {
+        results.put(referenceKey, failure(e, since(analysisStartNanoTime)));
+      }
+    }
   }
 
   /**
@@ -158,6 +256,11 @@ public final class HeapAnalyzer {
     return bitmapRetainedSize;
   }
 
+  private static boolean hasBitmapInstances(Snapshot snapshot) {
+    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
+    return bitmapClass != null && bitmapClass.getInstanceCount() > 0;
+  }
+
   private boolean isIgnoredDominator(Instance dominator, Instance instance) {
     boolean foundNativeRoot = false;
     while (true) {
@@ -179,7 +282,7 @@ public final class HeapAnalyzer {
     }
   }
 
-  private LeakTrace buildLeakTrace(LeakNode leakingNode) {
+  LeakTrace buildLeakTrace(LeakNode leakingNode) {
     List<LeakTraceElement> elements = new ArrayList<>();
     // We iterate from the leak to the GC root
     LeakNode node = new LeakNode(null, null, leakingNode, null, null);
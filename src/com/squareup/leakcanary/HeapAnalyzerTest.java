@@ -0,0 +1,166 @@
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.HeapMetrics;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HeapAnalyzerTest {
+
+  private static final ExcludedRefs EXCLUDED_REFS = ExcludedRefs.builder()
+      .instanceField("java.lang.ref.Reference", "referent").alwaysExclude()
+      .build();
+
+  private File file;
+
+  @Before public void setUp() throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(3, 200);
+    generator.addLeak("retained-1", true);
+    generator.addLeak("weak", false);
+    generator.addStringLeak("string");
+    generator.addClearedReference("cleared");
+    generator.addLeak("retained-2", true);
+    file = generator.writeTempFile("analyzer");
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void resultsFollowTheOrderOfTheKeys() {
+    List<String> keys = Arrays.asList("retained-2", "missing", "cleared", "retained-1", "weak");
+    Map<String, AnalysisResult> results =
+        new HeapAnalyzer(EXCLUDED_REFS).checkForLeaks(file, keys);
+
+    assertEquals(keys, new ArrayList<>(results.keySet()));
+  }
+
+  @Test public void missingKeyFailsWhileClearedReferenceFindsNoLeak() {
+    Map<String, AnalysisResult> results = new HeapAnalyzer(EXCLUDED_REFS)
+        .checkForLeaks(file, Arrays.asList("missing", "cleared", "weak", "retained-1"));
+
+    AnalysisResult missing = results.get("missing");
+    assertTrue(missing.failure instanceof IllegalStateException);
+    assertFalse(missing.leakFound);
+
+    AnalysisResult cleared = results.get("cleared");
+    assertNull(cleared.failure);
+    assertFalse(cleared.leakFound);
+
+    // Only reachable through the weak reference itself, which is an excluded ref.
+    AnalysisResult weak = results.get("weak");
+    assertNull(weak.failure);
+    assertTrue(weak.excludedLeak);
+
+    assertTrue(results.get("retained-1").leakFound);
+  }
+
+  @Test public void eachKeyGetsItsSingleKeyResult() {
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(EXCLUDED_REFS);
+    List<String> keys = Arrays.asList("retained-1", "string", "retained-2");
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(file, keys);
+
+    assertEquals("java.lang.String", results.get("string").className);
+    for (String key : keys) {
+      AnalysisResult expected = heapAnalyzer.checkForLeak(file, key);
+      AnalysisResult actual = results.get(key);
+      assertTrue(key, expected.leakFound);
+      assertTrue(key, actual.leakFound);
+      assertEquals(key, expected.className, actual.className);
+      assertEquals(key, expected.excludedLeak, actual.excludedLeak);
+      assertEquals(key, expected.leakTrace.toString(), actual.leakTrace.toString());
+      assertEquals(key, expected.retainedHeapSize, actual.retainedHeapSize);
+    }
+  }
+
+  @Test public void failureIsIsolatedToOneKey() {
+    final RuntimeException listenerFailure = new RuntimeException("listener failed");
+    // Fails once, while the retained sizes of the first leak are computed.
+    HeapMetrics.Listener failingListener = new HeapMetrics.Listener() {
+      boolean failed;
+
+      @Override public void onPhaseCompleted(HeapMetrics.Phase phase, long durationNanos,
+          long allocatedBytes) {
+        if (phase == HeapMetrics.Phase.RETAINED_SIZES && !failed) {
+          failed = true;
+          throw listenerFailure;
+        }
+      }
+
+      @Override public void onParseCompleted(HeapMetrics metrics) {
+      }
+    };
+    List<String> keys = Arrays.asList("retained-1", "retained-2", "cleared");
+    Map<String, AnalysisResult> results =
+        new HeapAnalyzer(EXCLUDED_REFS, failingListener).checkForLeaks(file, keys);
+
+    assertSame(listenerFailure, results.get("retained-1").failure);
+    AnalysisResult other = results.get("retained-2");
+    assertNull(other.failure);
+    assertTrue(other.leakFound);
+    assertEquals(new HeapAnalyzer(EXCLUDED_REFS).checkForLeak(file, "retained-2")
+        .leakTrace.toString(), other.leakTrace.toString());
+    assertFalse(results.get("cleared").leakFound);
+    assertNull(results.get("cleared").failure);
+  }
+
+  @Test public void singleLeakReportsRetainedSizesOnce() throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(4, 100);
+    generator.addStringLeak("string");
+    File stringFile = generator.writeTempFile("single");
+    final List<HeapMetrics.Phase> phases = new ArrayList<>();
+    HeapMetrics.Listener recordingListener = new HeapMetrics.Listener() {
+      @Override public void onPhaseCompleted(HeapMetrics.Phase phase, long durationNanos,
+          long allocatedBytes) {
+        phases.add(phase);
+      }
+
+      @Override public void onParseCompleted(HeapMetrics metrics) {
+      }
+    };
+    try {
+      AnalysisResult result =
+          new HeapAnalyzer(EXCLUDED_REFS, recordingListener).checkForLeak(stringFile, "string");
+
+      assertTrue(result.leakFound);
+      assertEquals(1, Collections.frequency(phases, HeapMetrics.Phase.RETAINED_SIZES));
+      assertFalse(phases.contains(HeapMetrics.Phase.DOMINATORS));
+    } finally {
+      stringFile.delete();
+    }
+  }
+
+  @Test public void singleLeakCountsBitmapHeldByNativeRoot() throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(5, 100);
+    // The path from the native root to the bitmap is longer than the one through the leak.
+    generator.holdBitmapFromNativeRoot(generator.addLeak("native", true), 5);
+    generator.addLeak("plain", true);
+    File nativeFile = generator.writeTempFile("native");
+    try {
+      HeapAnalyzer heapAnalyzer = new HeapAnalyzer(EXCLUDED_REFS);
+      AnalysisResult single = heapAnalyzer.checkForLeak(nativeFile, "native");
+      Map<String, AnalysisResult> results =
+          heapAnalyzer.checkForLeaks(nativeFile, Arrays.asList("native", "plain"));
+
+      assertTrue(single.leakFound);
+      assertEquals(results.get("native").retainedHeapSize, single.retainedHeapSize);
+      // Both leaks retain the same instances, bitmap included.
+      assertEquals(results.get("plain").retainedHeapSize, single.retainedHeapSize);
+    } finally {
+      nativeFile.delete();
+    }
+  }
+}
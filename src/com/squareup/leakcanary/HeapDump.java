@@ -17,11 +17,17 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 
 public final class HeapDump implements Serializable {
 
+  /** The computed value from before {@link #referenceKeys}, which older dumps were written with. */
+  private static final long serialVersionUID = 8800936613175367255L;
+
   public interface Listener {
     void analyze(HeapDump heapDump);
   }
@@ -43,6 +49,16 @@ public final class HeapDump implements Serializable {
    */
   public final String referenceName;
 
+  /**
+   * Keys of all the {@link KeyedWeakReference}s that were still retained when the heap was dumped,
+   * starting with {@link #referenceKey}. A single heap dump is taken for references found retained
+   * together, and each of them should be searched for.
+   */
+  public final List<String> referenceKeys;
+
+  /** The names of the references of {@link #referenceKeys}, in the same order. */
+  public final List<String> referenceNames;
+
   /** References that should be ignored when analyzing this heap dump. */
   public final ExcludedRefs excludedRefs;
 
@@ -53,12 +69,40 @@ public final class HeapDump implements Serializable {
 
   public HeapDump(File heapDumpFile, String referenceKey, String referenceName,
       ExcludedRefs excludedRefs, long watchDurationMs, long gcDurationMs, long heapDumpDurationMs) {
+    this(heapDumpFile, Collections.singletonList(checkNotNull(referenceKey, "referenceKey")),
+        Collections.singletonList(checkNotNull(referenceName, "referenceName")), excludedRefs,
+        watchDurationMs, gcDurationMs, heapDumpDurationMs);
+  }
+
+  /**
+   * @param watchDurationMs the longest time any of the references was watched before the GC was
+   * triggered.
+   */
+  public HeapDump(File heapDumpFile, List<String> referenceKeys, List<String> referenceNames,
+      ExcludedRefs excludedRefs, long watchDurationMs, long gcDurationMs, long heapDumpDurationMs) {
+    checkNotNull(referenceKeys, "referenceKeys");
+    checkNotNull(referenceNames, "referenceNames");
+    if (referenceKeys.isEmpty() || referenceKeys.size() != referenceNames.size()) {
+      throw new IllegalArgumentException("Expected as many names as keys, and at least one key, "
+          + "got " + referenceKeys.size() + " keys and " + referenceNames.size() + " names");
+    }
     this.heapDumpFile = checkNotNull(heapDumpFile, "heapDumpFile");
-    this.referenceKey = checkNotNull(referenceKey, "referenceKey");
-    this.referenceName = checkNotNull(referenceName, "referenceName");
+    this.referenceKeys = Collections.unmodifiableList(new ArrayList<>(referenceKeys));
+    this.referenceNames = Collections.unmodifiableList(new ArrayList<>(referenceNames));
+    this.referenceKey = checkNotNull(this.referenceKeys.get(0), "referenceKey");
+    this.referenceName = checkNotNull(this.referenceNames.get(0), "referenceName");
     this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
     this.watchDurationMs = watchDurationMs;
     this.gcDurationMs = gcDurationMs;
     this.heapDumpDurationMs = heapDumpDurationMs;
   }
+
+  /** Heap dumps serialized before {@link #referenceKeys} only have their single reference. */
+  private Object readResolve() {
+    if (referenceKeys == null || referenceNames == null) {
+      return new HeapDump(heapDumpFile, referenceKey, referenceName, excludedRefs, watchDurationMs,
+          gcDurationMs, heapDumpDurationMs);
+    }
+    return this;
+  }
 }
@@ -0,0 +1,67 @@
+package com.squareup.leakcanary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeapDumpTest {
+
+  @Test public void keepsTheSerialVersionOfSingleKeyDumps() {
+    assertEquals(8800936613175367255L,
+        ObjectStreamClass.lookup(HeapDump.class).getSerialVersionUID());
+  }
+
+  @Test public void readsDumpsSerializedWithoutKeyLists() throws Exception {
+    HeapDump heapDump = new HeapDump(new File("dump.hprof"), Arrays.asList("key", "other"),
+        Arrays.asList("name", "other name"), ExcludedRefs.builder().build(), 1, 2, 3);
+    // As read from a dump serialized before the lists were added.
+    setField(heapDump, "referenceKeys", null);
+    setField(heapDump, "referenceNames", null);
+
+    HeapDump read = serializeAndRead(heapDump);
+
+    assertEquals(Collections.singletonList("key"), read.referenceKeys);
+    assertEquals(Collections.singletonList("name"), read.referenceNames);
+    assertEquals("key", read.referenceKey);
+    assertEquals(heapDump.heapDumpFile, read.heapDumpFile);
+    assertEquals(1, read.watchDurationMs);
+    assertEquals(2, read.gcDurationMs);
+    assertEquals(3, read.heapDumpDurationMs);
+  }
+
+  @Test public void readsKeyLists() throws Exception {
+    HeapDump heapDump = new HeapDump(new File("dump.hprof"), Arrays.asList("key", "other"),
+        Arrays.asList("name", "other name"), ExcludedRefs.builder().build(), 1, 2, 3);
+
+    HeapDump read = serializeAndRead(heapDump);
+
+    assertEquals(heapDump.referenceKeys, read.referenceKeys);
+    assertEquals(heapDump.referenceNames, read.referenceNames);
+  }
+
+  private static HeapDump serializeAndRead(HeapDump heapDump) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(heapDump);
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      return (HeapDump) in.readObject();
+    }
+  }
+
+  private static void setField(HeapDump heapDump, String name, Object value) throws Exception {
+    Field field = HeapDump.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(heapDump, value);
+  }
+}
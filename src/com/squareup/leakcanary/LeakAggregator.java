@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Groups the {@link AnalysisResult}s that found the same leak, by {@link LeakTrace#signature()},
+ * so that a leak reported many times is looked at once.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class LeakAggregator {
+
+  /** A snapshot of the results that found one leak. */
+  public static final class Group {
+    /** The {@link LeakTrace#signature()} of the leak. */
+    public final String signature;
+
+    /** The first result added with this signature. */
+    public final AnalysisResult firstResult;
+
+    /** The number of results added with this signature. */
+    public final int count;
+
+    /** The number of those results that were {@link AnalysisResult#excludedLeak}. */
+    public final int excludedCount;
+
+    public final long minRetainedHeapSize;
+    public final long maxRetainedHeapSize;
+    public final long totalRetainedHeapSize;
+
+    Group(String signature, AnalysisResult firstResult, int count, int excludedCount,
+        long minRetainedHeapSize, long maxRetainedHeapSize, long totalRetainedHeapSize) {
+      this.signature = signature;
+      this.firstResult = firstResult;
+      this.count = count;
+      this.excludedCount = excludedCount;
+      this.minRetainedHeapSize = minRetainedHeapSize;
+      this.maxRetainedHeapSize = maxRetainedHeapSize;
+      this.totalRetainedHeapSize = totalRetainedHeapSize;
+    }
+
+    public long getMeanRetainedHeapSize() {
+      return totalRetainedHeapSize / count;
+    }
+  }
+
+  private static final class Stats {
+    final AnalysisResult firstResult;
+    int count;
+    int excludedCount;
+    long minRetainedHeapSize = Long.MAX_VALUE;
+    long maxRetainedHeapSize;
+    long totalRetainedHeapSize;
+
+    Stats(AnalysisResult firstResult) {
+      this.firstResult = firstResult;
+    }
+  }
+
+  // Guarded by this.
+  private final Map<String, Stats> statsBySignature = new LinkedHashMap<>();
+  private int noLeakCount;
+  private int failureCount;
+
+  /**
+   * Adds {@code result} to the group of its leak. Results that found no leak or failed are only
+   * counted.
+   *
+   * @return the signature of the leak, or null if no leak was found.
+   */
+  public String add(AnalysisResult result) {
+    checkNotNull(result, "result");
+    if (result.failure != null) {
+      synchronized (this) {
+        failureCount++;
+      }
+      return null;
+    }
+    if (!result.leakFound) {
+      synchronized (this) {
+        noLeakCount++;
+      }
+      return null;
+    }
+    // Hashed outside of the lock.
+    String signature = result.leakTrace.signature();
+    synchronized (this) {
+      Stats stats = statsBySignature.get(signature);
+      if (stats == null) {
+        stats = new Stats(result);
+        statsBySignature.put(signature, stats);
+      }
+      stats.count++;
+      if (result.excludedLeak) {
+        stats.excludedCount++;
+      }
+      stats.minRetainedHeapSize = Math.min(stats.minRetainedHeapSize, result.retainedHeapSize);
+      stats.maxRetainedHeapSize = Math.max(stats.maxRetainedHeapSize, result.retainedHeapSize);
+      stats.totalRetainedHeapSize += result.retainedHeapSize;
+    }
+    return signature;
+  }
+
+  /** Returns the group of the leak with {@code signature}, or null if none was added. */
+  public synchronized Group getGroup(String signature) {
+    Stats stats = statsBySignature.get(signature);
+    return stats != null ? group(signature, stats) : null;
+  }
+
+  /** Returns a snapshot of all the groups, the most reported leak first. */
+  public List<Group> getGroups() {
+    List<Group> groups = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<String, Stats> entry : statsBySignature.entrySet()) {
+        groups.add(group(entry.getKey(), entry.getValue()));
+      }
+    }
+    // Stable, so equally reported leaks stay in the order they were first seen.
+    Collections.sort(groups, new Comparator<Group>() {
+      @Override public int compare(Group lhs, Group rhs) {
+        return lhs.count < rhs.count ? 1 : (lhs.count == rhs.count ? 0 : -1);
+      }
+    });
+    return groups;
+  }
+
+  /** Returns the number of results added that found no leak. */
+  public synchronized int getNoLeakCount() {
+    return noLeakCount;
+  }
+
+  /** Returns the number of results added whose analysis failed. */
+  public synchronized int getFailureCount() {
+    return failureCount;
+  }
+
+  private static Group group(String signature, Stats stats) {
+    return new Group(signature, stats.firstResult, stats.count, stats.excludedCount,
+        stats.minRetainedHeapSize, stats.maxRetainedHeapSize, stats.totalRetainedHeapSize);
+  }
+}
@@ -0,0 +1,80 @@
+package com.squareup.leakcanary;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LeakAggregatorTest {
+
+  private final LeakAggregator aggregator = new LeakAggregator();
+
+  @Test public void groupsResultsBySignature() {
+    AnalysisResult first = leak("mListener", 100, false);
+    String signature = aggregator.add(first);
+    assertEquals(signature, aggregator.add(leak("mListener", 300, true)));
+    assertEquals(signature, aggregator.add(leak("mListener", 201, false)));
+
+    LeakAggregator.Group group = aggregator.getGroup(signature);
+    assertEquals(signature, group.signature);
+    assertSame(first, group.firstResult);
+    assertEquals(3, group.count);
+    assertEquals(1, group.excludedCount);
+    assertEquals(100, group.minRetainedHeapSize);
+    assertEquals(300, group.maxRetainedHeapSize);
+    assertEquals(601, group.totalRetainedHeapSize);
+    assertEquals(200, group.getMeanRetainedHeapSize());
+  }
+
+  @Test public void sortsGroupsByCountThenFirstSeen() {
+    String once = aggregator.add(leak("mOnce", 1, false));
+    String twiceFirst = aggregator.add(leak("mTwiceFirst", 1, false));
+    String thrice = aggregator.add(leak("mThrice", 1, false));
+    String twiceSecond = aggregator.add(leak("mTwiceSecond", 1, false));
+    aggregator.add(leak("mThrice", 1, false));
+    aggregator.add(leak("mTwiceSecond", 1, false));
+    aggregator.add(leak("mThrice", 1, false));
+    aggregator.add(leak("mTwiceFirst", 1, false));
+
+    List<LeakAggregator.Group> groups = aggregator.getGroups();
+
+    assertEquals(4, groups.size());
+    assertEquals(thrice, groups.get(0).signature);
+    assertEquals(twiceFirst, groups.get(1).signature);
+    assertEquals(twiceSecond, groups.get(2).signature);
+    assertEquals(once, groups.get(3).signature);
+  }
+
+  @Test public void onlyCountsNoLeaksAndFailures() {
+    assertNull(aggregator.add(AnalysisResult.noLeak(0)));
+    assertNull(aggregator.add(AnalysisResult.noLeak(0)));
+    assertNull(aggregator.add(AnalysisResult.failure(new RuntimeException(), 0)));
+
+    assertEquals(2, aggregator.getNoLeakCount());
+    assertEquals(1, aggregator.getFailureCount());
+    assertEquals(0, aggregator.getGroups().size());
+  }
+
+  @Test public void unknownSignatureHasNoGroup() {
+    aggregator.add(leak("mListener", 1, false));
+
+    assertNull(aggregator.getGroup("unknown"));
+  }
+
+  private static AnalysisResult leak(String referenceName, long retainedHeapSize,
+      boolean excludedLeak) {
+    List<String> noFields = Collections.emptyList();
+    LeakTrace leakTrace = new LeakTrace(Arrays.asList(
+        new LeakTraceElement(referenceName, INSTANCE_FIELD, OBJECT, "com.example.Holder", null,
+            null, noFields),
+        new LeakTraceElement(null, null, OBJECT, "com.example.Activity", null, null, noFields)));
+    return AnalysisResult.leakDetected(excludedLeak, "com.example.Activity", leakTrace,
+        retainedHeapSize, 0);
+  }
+}
@@ -16,6 +16,9 @@
 package com.squareup.leakcanary;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,6 +53,34 @@ public final class LeakTrace implements Serializable {
     return sb.toString();
   }
 
+  /**
+   * Returns a hash of the shape of this leak trace, as 40 hex digits, which is the same for the
+   * traces of the same leak in different heap dumps. It covers the holder, class name, reference
+   * type and reference name of every element, with the indices of anonymous classes, the suffixes
+   * of lambda classes and the indices of array entries left out, and ignores field values, extra
+   * information and exclusions.
+   */
+  public String signature() {
+    StringBuilder sb = new StringBuilder();
+    for (LeakTraceElement element : elements) {
+      element.appendSignature(sb);
+      sb.append('\n');
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    byte[] hash = digest.digest(sb.toString().getBytes(Charset.forName("UTF-8")));
+    StringBuilder signature = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      signature.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return signature.toString();
+  }
+
   public String toDetailedString() {
     String string = "";
     for (LeakTraceElement element : elements) {
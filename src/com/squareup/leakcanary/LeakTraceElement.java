@@ -18,6 +18,7 @@ package com.squareup.leakcanary;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
@@ -37,6 +38,18 @@ public final class LeakTraceElement implements Serializable {
     OBJECT, CLASS, THREAD, ARRAY
   }
 
+  /**
+   * Matches the index of an anonymous or local class. Only applied to class names: in field names
+   * such as this$0 the index is part of the name.
+   */
+  private static final Pattern CLASS_INDEX = Pattern.compile("\\$\\d+");
+
+  /** Matches the index of an array entry. */
+  private static final Pattern ARRAY_INDEX = Pattern.compile("\\[\\d+\\]");
+
+  /** Matches the suffix of a lambda class name, which differs from one run to the next. */
+  private static final Pattern LAMBDA_SUFFIX = Pattern.compile("/.*$");
+
   /** Null if this is the last element in the leak trace, ie the leaking object. */
   public final String referenceName;
 
@@ -95,6 +108,26 @@ public final class LeakTraceElement implements Serializable {
     return string;
   }
 
+  /** Appends what identifies this element in {@link LeakTrace#signature()}. */
+  void appendSignature(StringBuilder sb) {
+    sb.append(holder)
+        .append(' ')
+        .append(normalizeClassName(className))
+        .append(' ')
+        .append(type)
+        .append(' ')
+        .append(referenceName != null ? normalizeReferenceName(referenceName) : null);
+  }
+
+  static String normalizeClassName(String className) {
+    className = LAMBDA_SUFFIX.matcher(className).replaceFirst("");
+    return CLASS_INDEX.matcher(className).replaceAll("\\$");
+  }
+
+  static String normalizeReferenceName(String referenceName) {
+    return ARRAY_INDEX.matcher(referenceName).replaceAll("[]");
+  }
+
   public String toDetailedString() {
     String string = "* ";
     if (holder == ARRAY) {
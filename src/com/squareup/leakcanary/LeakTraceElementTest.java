@@ -0,0 +1,63 @@
+package com.squareup.leakcanary;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.normalizeClassName;
+import static com.squareup.leakcanary.LeakTraceElement.normalizeReferenceName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LeakTraceElementTest {
+
+  @Test public void anonymousAndLocalClassIndicesAreLeftOut() {
+    assertEquals("com.example.Activity$", normalizeClassName("com.example.Activity$1"));
+    assertEquals("com.example.Activity$$", normalizeClassName("com.example.Activity$12$3"));
+    assertEquals("com.example.Activity$Local", normalizeClassName("com.example.Activity$1Local"));
+    assertEquals("com.example.Activity$Inner", normalizeClassName("com.example.Activity$Inner"));
+  }
+
+  @Test public void lambdaSuffixesAreLeftOut() {
+    assertEquals("com.example.Activity$$Lambda$",
+        normalizeClassName("com.example.Activity$$Lambda$14/1607460018"));
+    assertEquals("com.example.Activity$$Lambda$",
+        normalizeClassName("com.example.Activity$$Lambda$3/0x0000000800c02a00"));
+  }
+
+  @Test public void arrayEntryIndicesAreLeftOut() {
+    assertEquals("[]", normalizeReferenceName("[0]"));
+    assertEquals("[]", normalizeReferenceName("[1234]"));
+  }
+
+  @Test public void fieldNamesKeepTheirIndices() {
+    assertEquals("this$0", normalizeReferenceName("this$0"));
+    assertEquals("val$listener", normalizeReferenceName("val$listener"));
+    assertEquals("mListeners", normalizeReferenceName("mListeners"));
+  }
+
+  @Test public void signatureIgnoresIndicesButNotOuterReferences() {
+    assertEquals(
+        signature(element("this$0", INSTANCE_FIELD, OBJECT, "com.example.Activity$1"),
+            element("[3]", ARRAY_ENTRY, ARRAY, "java.lang.Object[]")),
+        signature(element("this$0", INSTANCE_FIELD, OBJECT, "com.example.Activity$2"),
+            element("[7]", ARRAY_ENTRY, ARRAY, "java.lang.Object[]")));
+    // The outer instance of an inner class nested deeper is a different reference.
+    assertFalse(signature(element("this$0", INSTANCE_FIELD, OBJECT, "com.example.Activity$1"))
+        .equals(signature(element("this$1", INSTANCE_FIELD, OBJECT, "com.example.Activity$1"))));
+  }
+
+  private static LeakTraceElement element(String referenceName, LeakTraceElement.Type type,
+      LeakTraceElement.Holder holder, String className) {
+    return new LeakTraceElement(referenceName, type, holder, className, null, null,
+        Collections.<String>emptyList());
+  }
+
+  private static String signature(LeakTraceElement... elements) {
+    return new LeakTrace(Arrays.asList(elements)).signature();
+  }
+}
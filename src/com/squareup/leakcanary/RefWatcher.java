@@ -17,22 +17,53 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Watches references that should become weakly reachable. When the {@link RefWatcher} detects that
  * a reference might not be weakly reachable when it should, it triggers the {@link HeapDumper}.
  *
+ * <p>References found retained are checked in batches: the first one opens a batch, which stays
+ * open for the batch window before its check is executed on the watch {@link Executor}, and every
+ * reference found retained before that check runs joins it. The check runs the GC once, and dumps
+ * the heap once for all the references of the batch that are still retained.
+ *
+ * <p>Once the window is over, the check is handed to the watch executor from a background thread.
+ * With an executor that runs tasks on the calling thread, the check, GC and heap dump included,
+ * run on that background thread rather than in {@link #watch(Object)}, as they used to. A batch
+ * window of 0 keeps them on the thread of the executor.
+ *
+ * <p>When constructed with a check {@link ScheduledExecutorService}, watching a reference does not
+ * submit any task: a single periodic check drains the references that have been watched for at
+ * least the check interval, and checks them together. This keeps the cost of a watch low when
+ * references are watched at a high rate.
+ *
  * <p>This class is thread-safe: you can call {@link #watch(Object)} from any thread.
  */
 public final class RefWatcher {
 
+  /** How long a batch of references found retained waits for others to join it, by default. */
+  public static final long DEFAULT_BATCH_WINDOW_MS = 100;
+
   public static final RefWatcher DISABLED = new RefWatcher(new Executor() {
     @Override public void execute(Runnable command) {
     }
@@ -58,17 +89,83 @@ public final class RefWatcher {
   private final ReferenceQueue<Object> queue;
   private final HeapDump.Listener heapdumpListener;
   private final ExcludedRefs excludedRefs;
+  private final Queue<RetainedCheck> retainedChecks;
+  private final AtomicBoolean batchScheduled;
+  private final long batchWindowMs;
+  private final ScheduledExecutorService checkExecutor;
+  private final long checkIntervalNanos;
+  private final Queue<KeyedWeakReference> pendingWatches;
+  private final AtomicBoolean checksScheduled;
 
+  /** Unique across the watchers of the process, so that keys do not clash in a heap dump. */
+  private static final AtomicLong nextKey = new AtomicLong();
+
+  /**
+   * Creates a watcher that checks each watched reference with its own task on {@code
+   * watchExecutor}, with the {@link #DEFAULT_BATCH_WINDOW_MS default batch window}. The references
+   * found retained are no longer checked before {@link #watch(Object)} returns, even when {@code
+   * watchExecutor} runs tasks on the calling thread: use a window of 0 for that.
+   */
   public RefWatcher(Executor watchExecutor, DebuggerControl debuggerControl, GcTrigger gcTrigger,
       HeapDumper heapDumper, HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs) {
-    this.watchExecutor = checkNotNull(watchExecutor, "watchExecutor");
+    this(watchExecutor, DEFAULT_BATCH_WINDOW_MS, debuggerControl, gcTrigger, heapDumper,
+        heapdumpListener, excludedRefs);
+  }
+
+  /**
+   * Creates a watcher that checks each watched reference with its own task on {@code
+   * watchExecutor}.
+   *
+   * @param batchWindowMs how long the check of the references found retained waits for others to
+   * join it, 0 to check them as soon as the executor gets to it.
+   */
+  public RefWatcher(Executor watchExecutor, long batchWindowMs, DebuggerControl debuggerControl,
+      GcTrigger gcTrigger, HeapDumper heapDumper, HeapDump.Listener heapdumpListener,
+      ExcludedRefs excludedRefs) {
+    this(checkNotNull(watchExecutor, "watchExecutor"), batchWindowMs, null, 0, debuggerControl,
+        gcTrigger, heapDumper, heapdumpListener, excludedRefs);
+    if (batchWindowMs < 0) {
+      throw new IllegalArgumentException("batchWindowMs must not be negative: " + batchWindowMs);
+    }
+  }
+
+  /**
+   * Creates a watcher that checks the watched references in batches, with a single periodic task
+   * on {@code checkExecutor}, which is scheduled on the first watch. A check that fails is
+   * reported to the uncaught exception handler of its thread, and the next ones still run.
+   *
+   * @param checkIntervalMs how long a reference is watched before it is checked, and how often the
+   * check runs.
+   */
+  public RefWatcher(ScheduledExecutorService checkExecutor, long checkIntervalMs,
+      DebuggerControl debuggerControl, GcTrigger gcTrigger, HeapDumper heapDumper,
+      HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs) {
+    this(checkExecutor, 0, checkNotNull(checkExecutor, "checkExecutor"), checkIntervalMs,
+        debuggerControl, gcTrigger, heapDumper, heapdumpListener, excludedRefs);
+    if (checkIntervalMs <= 0) {
+      throw new IllegalArgumentException("checkIntervalMs must be positive: " + checkIntervalMs);
+    }
+  }
+
+  private RefWatcher(Executor watchExecutor, long batchWindowMs,
+      ScheduledExecutorService checkExecutor, long checkIntervalMs, DebuggerControl debuggerControl,
+      GcTrigger gcTrigger, HeapDumper heapDumper, HeapDump.Listener heapdumpListener,
+      ExcludedRefs excludedRefs) {
+    this.watchExecutor = watchExecutor;
+    this.batchWindowMs = batchWindowMs;
+    this.checkExecutor = checkExecutor;
+    this.checkIntervalNanos = MILLISECONDS.toNanos(checkIntervalMs);
     this.debuggerControl = checkNotNull(debuggerControl, "debuggerControl");
     this.gcTrigger = checkNotNull(gcTrigger, "gcTrigger");
     this.heapDumper = checkNotNull(heapDumper, "heapDumper");
     this.heapdumpListener = checkNotNull(heapdumpListener, "heapdumpListener");
     this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
-    retainedKeys = new CopyOnWriteArraySet<>();
+    retainedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     queue = new ReferenceQueue<>();
+    retainedChecks = new ConcurrentLinkedQueue<>();
+    batchScheduled = new AtomicBoolean();
+    pendingWatches = new ConcurrentLinkedQueue<>();
+    checksScheduled = new AtomicBoolean();
   }
 
   /**
@@ -82,7 +179,8 @@ public final class RefWatcher {
 
   /**
    * Watches the provided references and checks if it can be GCed. This method is non blocking,
-   * the check is done on the {@link Executor} this {@link RefWatcher} has been constructed with.
+   * the check is done on the {@link Executor} or the periodic check of the {@link
+   * ScheduledExecutorService} this {@link RefWatcher} has been constructed with.
    *
    * @param referenceName An logical identifier for the watched object.
    */
@@ -93,11 +191,28 @@ public final class RefWatcher {
       return;
     }
     final long watchStartNanoTime = System.nanoTime();
-    String key = UUID.randomUUID().toString();
+    String key = Long.toString(nextKey.incrementAndGet());
     retainedKeys.add(key);
     final KeyedWeakReference reference =
-        new KeyedWeakReference(watchedReference, key, referenceName, queue);
+        new KeyedWeakReference(watchedReference, key, referenceName, watchStartNanoTime, queue);
 
+    if (checkExecutor != null) {
+      pendingWatches.add(reference);
+      if (checksScheduled.compareAndSet(false, true)) {
+        checkExecutor.scheduleWithFixedDelay(new Runnable() {
+          @Override public void run() {
+            // A run that throws would suppress all the later ones.
+            try {
+              checkPendingWatches();
+            } catch (Throwable e) {
+              Thread thread = Thread.currentThread();
+              thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+          }
+        }, checkIntervalNanos, checkIntervalNanos, NANOSECONDS);
+      }
+      return;
+    }
     watchExecutor.execute(new Runnable() {
       @Override public void run() {
         ensureGone(reference, watchStartNanoTime);
@@ -105,17 +220,80 @@ public final class RefWatcher {
     });
   }
 
-  void ensureGone(KeyedWeakReference reference, long watchStartNanoTime) {
-    long gcStartNanoTime = System.nanoTime();
+  void checkPendingWatches() {
+    long checkNanoTime = System.nanoTime();
+    removeWeaklyReachableReferences();
+    boolean debuggerAttached = debuggerControl.isDebuggerAttached();
+    KeyedWeakReference reference;
+    // Watches are queued roughly in the order they started, this is the only consumer.
+    while ((reference = pendingWatches.peek()) != null
+        && checkNanoTime - reference.watchStartNanoTime >= checkIntervalNanos) {
+      pendingWatches.poll();
+      if (!gone(reference) && !debuggerAttached) {
+        long watchDurationMs = NANOSECONDS.toMillis(checkNanoTime - reference.watchStartNanoTime);
+        retainedChecks.add(new RetainedCheck(reference, watchDurationMs));
+      }
+    }
+    if (!retainedChecks.isEmpty()) {
+      ensureBatchGone();
+    }
+  }
 
-    long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - watchStartNanoTime);
+  void ensureGone(KeyedWeakReference reference, long watchStartNanoTime) {
+    long watchDurationMs = NANOSECONDS.toMillis(System.nanoTime() - watchStartNanoTime);
     removeWeaklyReachableReferences();
     if (gone(reference) || debuggerControl.isDebuggerAttached()) {
       return;
     }
+    retainedChecks.add(new RetainedCheck(reference, watchDurationMs));
+    if (batchScheduled.compareAndSet(false, true)) {
+      final Runnable batchCheck = new Runnable() {
+        @Override public void run() {
+          ensureBatchGone();
+        }
+      };
+      if (batchWindowMs == 0) {
+        // Runs after the checks already queued on the executor, which can join the batch.
+        watchExecutor.execute(batchCheck);
+        return;
+      }
+      final Runnable handOff = new Runnable() {
+        @Override public void run() {
+          try {
+            watchExecutor.execute(batchCheck);
+          } catch (RejectedExecutionException e) {
+            // The next reference found retained opens a batch, which these ones join.
+            batchScheduled.set(false);
+          }
+        }
+      };
+      // A plain executor cannot delay, and a direct one would otherwise check each reference
+      // alone. A direct one also runs the check where it is handed off, so not on the timer
+      // shared by all the watchers.
+      BatchTimer.INSTANCE.schedule(new Runnable() {
+        @Override public void run() {
+          BatchTimer.HAND_OFF.execute(handOff);
+        }
+      }, batchWindowMs, MILLISECONDS);
+    }
+  }
+
+  void ensureBatchGone() {
+    // References found retained from now on start the next batch.
+    batchScheduled.set(false);
+    List<RetainedCheck> batch = new ArrayList<>();
+    RetainedCheck check;
+    while ((check = retainedChecks.poll()) != null) {
+      batch.add(check);
+    }
+    long gcStartNanoTime = System.nanoTime();
+    removeWeaklyReachableReferences();
+    if (!removeGone(batch) || debuggerControl.isDebuggerAttached()) {
+      return;
+    }
     gcTrigger.runGc();
     removeWeaklyReachableReferences();
-    if (!gone(reference)) {
+    if (removeGone(batch)) {
       long startDumpHeap = System.nanoTime();
       long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
 
@@ -126,12 +304,30 @@ public final class RefWatcher {
         return;
       }
       long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
+      List<String> referenceKeys = new ArrayList<>(batch.size());
+      List<String> referenceNames = new ArrayList<>(batch.size());
+      long watchDurationMs = 0;
+      for (RetainedCheck retained : batch) {
+        referenceKeys.add(retained.reference.key);
+        referenceNames.add(retained.reference.name);
+        watchDurationMs = Math.max(watchDurationMs, retained.watchDurationMs);
+      }
       heapdumpListener.analyze(
-          new HeapDump(heapDumpFile, reference.key, reference.name, excludedRefs, watchDurationMs,
+          new HeapDump(heapDumpFile, referenceKeys, referenceNames, excludedRefs, watchDurationMs,
               gcDurationMs, heapDumpDurationMs));
     }
   }
 
+  /** Removes the references that are gone from {@code batch}, returns whether any is left. */
+  private boolean removeGone(List<RetainedCheck> batch) {
+    for (int i = batch.size() - 1; i >= 0; i--) {
+      if (gone(batch.get(i).reference)) {
+        batch.remove(i);
+      }
+    }
+    return !batch.isEmpty();
+  }
+
   private boolean gone(KeyedWeakReference reference) {
     return !retainedKeys.contains(reference.key);
   }
@@ -144,4 +340,37 @@ public final class RefWatcher {
       retainedKeys.remove(ref.key);
     }
   }
+
+  /**
+   * Closes the batches of all the watchers, and hands their checks to the watch executors from
+   * other threads, lazily started.
+   */
+  private static final class BatchTimer {
+    static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("leakcanary-batch-timer"));
+    static final ExecutorService HAND_OFF =
+        Executors.newCachedThreadPool(daemonThreads("leakcanary-batch-check"));
+
+    private static ThreadFactory daemonThreads(final String name) {
+      return new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+    }
+  }
+
+  private static final class RetainedCheck {
+    final KeyedWeakReference reference;
+    final long watchDurationMs;
+
+    RetainedCheck(KeyedWeakReference reference, long watchDurationMs) {
+      this.reference = reference;
+      this.watchDurationMs = watchDurationMs;
+    }
+  }
 }
@@ -0,0 +1,143 @@
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RefWatcherTest {
+
+  private static final Executor DIRECT = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private static final DebuggerControl NO_DEBUGGER = new DebuggerControl() {
+    @Override public boolean isDebuggerAttached() {
+      return false;
+    }
+  };
+
+  private static final GcTrigger NO_GC = new GcTrigger() {
+    @Override public void runGc() {
+    }
+  };
+
+  private final List<HeapDump> heapDumps = new CopyOnWriteArrayList<>();
+  private final CountDownLatch analyzed = new CountDownLatch(1);
+  private final HeapDumper heapDumper = new HeapDumper() {
+    @Override public File dumpHeap() {
+      return new File("dump.hprof");
+    }
+  };
+  private final HeapDump.Listener listener = new HeapDump.Listener() {
+    @Override public void analyze(HeapDump heapDump) {
+      heapDumps.add(heapDump);
+      analyzed.countDown();
+    }
+  };
+
+  @Test public void directExecutorBatchesWithinTheWindow() throws Exception {
+    RefWatcher refWatcher = new RefWatcher(DIRECT, 200, NO_DEBUGGER, NO_GC, heapDumper, listener,
+        ExcludedRefs.builder().build());
+    Object first = new Object();
+    Object second = new Object();
+
+    refWatcher.watch(first, "first");
+    refWatcher.watch(second, "second");
+
+    assertTrue(analyzed.await(10, SECONDS));
+    assertEquals(1, heapDumps.size());
+    assertEquals(Arrays.asList("first", "second"), heapDumps.get(0).referenceNames);
+  }
+
+  @Test public void directExecutorChecksOffTheSharedTimer() throws Exception {
+    final CountDownLatch gcStarted = new CountDownLatch(1);
+    final CountDownLatch gcReleased = new CountDownLatch(1);
+    GcTrigger blockingGc = new GcTrigger() {
+      @Override public void runGc() {
+        gcStarted.countDown();
+        try {
+          gcReleased.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    RefWatcher blocked = new RefWatcher(DIRECT, 20, NO_DEBUGGER, blockingGc, heapDumper,
+        new HeapDump.Listener() {
+          @Override public void analyze(HeapDump heapDump) {
+          }
+        }, ExcludedRefs.builder().build());
+    RefWatcher other = new RefWatcher(DIRECT, 20, NO_DEBUGGER, NO_GC, heapDumper, listener,
+        ExcludedRefs.builder().build());
+    Object blockedObject = new Object();
+    Object otherObject = new Object();
+
+    try {
+      blocked.watch(blockedObject, "blocked");
+      assertTrue(gcStarted.await(10, SECONDS));
+      // The check of the first watcher is still running its GC.
+      other.watch(otherObject, "other");
+      assertTrue(analyzed.await(10, SECONDS));
+      assertEquals(Arrays.asList("other"), heapDumps.get(0).referenceNames);
+    } finally {
+      gcReleased.countDown();
+    }
+  }
+
+  @Test public void periodicCheckSurvivesAFailure() throws Exception {
+    final RuntimeException failure = new RuntimeException("debugger check failed");
+    final List<Throwable> reported = new CopyOnWriteArrayList<>();
+    ScheduledExecutorService checkExecutor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+              @Override public void uncaughtException(Thread thread, Throwable e) {
+                reported.add(e);
+              }
+            });
+            return thread;
+          }
+        });
+    // Fails the first periodic check, after the check of the watch itself.
+    DebuggerControl failingOnce = new DebuggerControl() {
+      final AtomicInteger calls = new AtomicInteger();
+
+      @Override public boolean isDebuggerAttached() {
+        if (calls.incrementAndGet() == 2) {
+          throw failure;
+        }
+        return false;
+      }
+    };
+    RefWatcher refWatcher = new RefWatcher(checkExecutor, 20, failingOnce, NO_GC, heapDumper,
+        listener, ExcludedRefs.builder().build());
+    Object retained = new Object();
+
+    try {
+      refWatcher.watch(retained, "retained");
+
+      assertTrue(analyzed.await(10, SECONDS));
+      assertEquals(Arrays.asList("retained"), heapDumps.get(0).referenceNames);
+      assertEquals(1, reported.size());
+      assertSame(failure, reported.get(0));
+    } finally {
+      checkExecutor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import gnu.trove.TIntObjectHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link ExcludedRefs} resolved against the classes of a {@link Snapshot}: the class names and
+ * field names are matched once per class, the first time it is asked for, and the result is kept
+ * as exclusions by field position, so that visiting an object does no string work.
+ */
+final class ResolvedExclusions {
+
+  private final ExcludedRefs excludedRefs;
+  private final Snapshot snapshot;
+  private final TIntObjectHashMap<ClassExclusions> classes = new TIntObjectHashMap<>();
+
+  ResolvedExclusions(ExcludedRefs excludedRefs, Snapshot snapshot) {
+    this.excludedRefs = excludedRefs;
+    this.snapshot = snapshot;
+  }
+
+  boolean isResolvedFor(ExcludedRefs excludedRefs, Snapshot snapshot) {
+    return this.excludedRefs == excludedRefs && this.snapshot == snapshot;
+  }
+
+  ClassExclusions forClass(ClassObj classObj) {
+    int index = classObj.getObjectIndex();
+    if (index < 0) {
+      return new ClassExclusions(excludedRefs, classObj);
+    }
+    ClassExclusions classExclusions = classes.get(index);
+    if (classExclusions == null) {
+      classExclusions = new ClassExclusions(excludedRefs, classObj);
+      classes.put(index, classExclusions);
+    }
+    return classExclusions;
+  }
+
+  static final class ClassExclusions {
+    /** Excludes every field of the instances of the class, may be null. */
+    final Exclusion classExclusion;
+    /** Excludes the gc roots that hold an instance of the class, may be null. */
+    final Exclusion rootExclusion;
+    /** By position in the values of an instance, null if only the class exclusion applies. */
+    private final Exclusion[] fieldExclusions;
+    /** By position in the static field values of the class, null if none is excluded. */
+    private final Exclusion[] staticFieldExclusions;
+    /** By position in the static field values of the class, whether it may hold a reference. */
+    private final boolean[] staticFieldReferences;
+
+    ClassExclusions(ExcludedRefs excludedRefs, ClassObj classObj) {
+      Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
+      Exclusion classExclusion = null;
+      Exclusion rootExclusion = null;
+      int fieldCount = 0;
+      for (ClassObj superClassObj = classObj; superClassObj != null;
+          superClassObj = superClassObj.getSuperClassObj()) {
+        String className = superClassObj.getClassName();
+        Exclusion params = excludedRefs.classNames.get(className);
+        if (params != null) {
+          // true overrides null or false.
+          if (classExclusion == null || !classExclusion.alwaysExclude) {
+            classExclusion = params;
+          }
+        }
+        params = excludedRefs.rootClassNames.get(className);
+        if (params != null) {
+          // true overrides null or false.
+          if (rootExclusion == null || !rootExclusion.alwaysExclude) {
+            rootExclusion = params;
+          }
+        }
+        Map<String, Exclusion> classIgnoredFields =
+            excludedRefs.fieldNameByClassName.get(className);
+        if (classIgnoredFields != null) {
+          ignoredFields.putAll(classIgnoredFields);
+        }
+        fieldCount += fields(superClassObj).length;
+      }
+      this.classExclusion = classExclusion;
+      this.rootExclusion = rootExclusion;
+
+      Exclusion[] fieldExclusions = null;
+      if (!ignoredFields.isEmpty()) {
+        fieldExclusions = new Exclusion[fieldCount];
+        int slot = 0;
+        for (ClassObj superClassObj = classObj; superClassObj != null;
+            superClassObj = superClassObj.getSuperClassObj()) {
+          for (Field field : fields(superClassObj)) {
+            Exclusion fieldExclusion = classExclusion;
+            Exclusion params = ignoredFields.get(field.getName());
+            // If we found a field exclusion and it's stronger than a class exclusion
+            if (params != null && (fieldExclusion == null || (params.alwaysExclude
+                && !fieldExclusion.alwaysExclude))) {
+              fieldExclusion = params;
+            }
+            fieldExclusions[slot++] = fieldExclusion;
+          }
+        }
+      }
+      this.fieldExclusions = fieldExclusions;
+
+      Map<String, Exclusion> ignoredStaticFields =
+          excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
+      Map<Field, Object> staticFieldValues = classObj.getStaticFieldValues();
+      boolean[] staticFieldReferences = new boolean[staticFieldValues.size()];
+      Exclusion[] staticFieldExclusions =
+          ignoredStaticFields != null ? new Exclusion[staticFieldValues.size()] : null;
+      int slot = 0;
+      for (Field field : staticFieldValues.keySet()) {
+        String fieldName = field.getName();
+        staticFieldReferences[slot] =
+            field.getType() == Type.OBJECT && !fieldName.equals("$staticOverhead");
+        if (ignoredStaticFields != null) {
+          staticFieldExclusions[slot] = ignoredStaticFields.get(fieldName);
+        }
+        slot++;
+      }
+      this.staticFieldReferences = staticFieldReferences;
+      this.staticFieldExclusions = staticFieldExclusions;
+    }
+
+    /**
+     * Returns the exclusion of the field at {@code slot} in the values of an instance of the
+     * class, combined with the class exclusion, or null.
+     */
+    Exclusion fieldExclusion(int slot) {
+      return fieldExclusions != null ? fieldExclusions[slot] : classExclusion;
+    }
+
+    /**
+     * Returns whether the static field at {@code slot} in the static field values of the class
+     * is a reference that should be followed, at least with an exclusion.
+     */
+    boolean isStaticFieldReference(int slot) {
+      return staticFieldReferences[slot];
+    }
+
+    /** Returns the exclusion of the static field at {@code slot}, or null. */
+    Exclusion staticFieldExclusion(int slot) {
+      return staticFieldExclusions != null ? staticFieldExclusions[slot] : null;
+    }
+
+    private static Field[] fields(ClassObj classObj) {
+      Field[] fields = classObj.getFields();
+      return fields != null ? fields : new Field[0];
+    }
+  }
+}
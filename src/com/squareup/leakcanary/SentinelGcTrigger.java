@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A {@link GcTrigger} that waits for the GC to actually have cleared weak references, rather than
+ * sleeping for a fixed time like {@link GcTrigger#DEFAULT}.
+ *
+ * <p>Each run weakly references a new sentinel object, runs the GC, and waits for the sentinel
+ * reference to be enqueued: by then the GC has cleared the weak references to objects that were
+ * weakly reachable, and the reference queue daemon is enqueuing them. If the sentinel is not
+ * enqueued in time, the GC is requested again, until the timeout. Finalization then runs, whether
+ * the sentinel was enqueued or not.
+ */
+public final class SentinelGcTrigger implements GcTrigger {
+
+  /** Notified of the time every run took. */
+  public interface Listener {
+    /**
+     * @param gcDurationMs time spent requesting the GC.
+     * @param enqueueDurationMs time spent waiting for the sentinel to be enqueued after the GC.
+     * @param enqueued false if the sentinel was not enqueued before the timeout.
+     */
+    void onGcRun(long gcDurationMs, long enqueueDurationMs, boolean enqueued);
+  }
+
+  /** How long to wait for the sentinel after each GC request before requesting another one. */
+  private static final long RETRY_NANOS = MILLISECONDS.toNanos(20);
+
+  private final long timeoutNanos;
+  private final Listener listener;
+
+  /**
+   * @param timeoutMs how long to wait for the sentinel to be enqueued, across GC requests.
+   * @param listener notified of the time every run took, may be null.
+   */
+  public SentinelGcTrigger(long timeoutMs, Listener listener) {
+    if (timeoutMs <= 0) {
+      throw new IllegalArgumentException("timeoutMs must be positive: " + timeoutMs);
+    }
+    this.timeoutNanos = MILLISECONDS.toNanos(timeoutMs);
+    this.listener = listener;
+  }
+
+  @Override public void runGc() {
+    ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    WeakReference<Object> sentinel = new WeakReference<>(new Object(), queue);
+    long startNanoTime = System.nanoTime();
+    long gcNanos = 0;
+    boolean enqueued = false;
+    try {
+      long remainingNanos = timeoutNanos;
+      while (!enqueued && remainingNanos > 0) {
+        long gcStartNanoTime = System.nanoTime();
+        // System.gc() does not garbage collect every time. Runtime.gc() is more likely to perform
+        // a gc.
+        Runtime.getRuntime().gc();
+        gcNanos += System.nanoTime() - gcStartNanoTime;
+        long waitMs = NANOSECONDS.toMillis(Math.min(RETRY_NANOS, remainingNanos));
+        enqueued = queue.remove(Math.max(waitMs, 1)) != null;
+        remainingNanos = timeoutNanos - (System.nanoTime() - startNanoTime);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    long enqueueNanos = System.nanoTime() - startNanoTime - gcNanos;
+    // Even on timeout, as GcTrigger.DEFAULT does: the objects it frees may be about to be checked.
+    System.runFinalization();
+    // Keeps the sentinel reference itself reachable until the wait is over.
+    sentinel.clear();
+    if (listener != null) {
+      listener.onGcRun(NANOSECONDS.toMillis(gcNanos), NANOSECONDS.toMillis(enqueueNanos),
+          enqueued);
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SentinelGcTriggerTest {
+
+  @Test public void notifiesTheListenerOfTheEnqueuedSentinel() {
+    final List<Boolean> runs = new ArrayList<>();
+    SentinelGcTrigger gcTrigger = new SentinelGcTrigger(5000, new SentinelGcTrigger.Listener() {
+      @Override public void onGcRun(long gcDurationMs, long enqueueDurationMs, boolean enqueued) {
+        runs.add(enqueued);
+      }
+    });
+
+    gcTrigger.runGc();
+
+    assertEquals(1, runs.size());
+    assertTrue(runs.get(0));
+  }
+}
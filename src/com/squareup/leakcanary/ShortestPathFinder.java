@@ -17,14 +17,16 @@ package com.squareup.leakcanary;
 
 import com.android.tools.perflib.heap.*;
 import com.squareup.haha.perflib.HahaSpy;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import gnu.trove.TIntObjectHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
-import static com.squareup.leakcanary.HahaHelper.isPrimitiveOrWrapperArray;
-import static com.squareup.leakcanary.HahaHelper.isPrimitiveWrapper;
 import static com.squareup.leakcanary.HahaHelper.threadName;
 import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
@@ -37,24 +39,54 @@ import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
  * Finds the shortest path from a leaking reference to a gc root, ignoring excluded
  * refs first and then including the ones that are not "always ignorable" as needed if no path is
  * found.
+ *
+ * Objects are identified by their {@link Instance#getObjectIndex() index} in the snapshot, and
+ * the gc roots, which have none, by indices past the last object. The search state is kept in
+ * bitsets and arrays indexed that way: for each object, the object it was reached from and how,
+ * as the kind of reference and the position of the field or array entry. {@link LeakNode}s are
+ * only created for the path that is found. Exclusions are looked up through
+ * {@link ResolvedExclusions}, by class and field position.
  */
 final class ShortestPathFinder {
 
+  private static final LeakTraceElement.Type[] REFERENCE_TYPES = LeakTraceElement.Type.values();
+
+  private static final int NO_PARENT = -1;
+
+  private static final byte CLASS_FLAGS_COMPUTED = 1;
+  private static final byte CLASS_IS_WRAPPER = 2;
+  private static final byte CLASS_IS_STRING = 4;
+
   private final ExcludedRefs excludedRefs;
-  private final Queue<LeakNode> toVisitQueue;
-  private final Queue<LeakNode> toVisitIfNoPathQueue;
-  private final LinkedHashSet<Instance> toVisitSet;
-  private final LinkedHashSet<Instance> toVisitIfNoPathSet;
-  private final LinkedHashSet<Instance> visitedSet;
+  private ResolvedExclusions resolvedExclusions;
+  private final IntQueue toVisitQueue;
+  private final IntQueue toVisitIfNoPathQueue;
+  private final BitSet toVisitSet;
+  private final BitSet toVisitIfNoPathSet;
+  private final BitSet visitedSet;
+  private final TIntObjectHashMap<Exclusion> exclusions;
+  private final List<Instance> extraInstances;
+  private final Map<Instance, Integer> extraIndices;
+  private Snapshot snapshot;
+  private int objectCount;
+  private int[] parents;
+  // The LeakTraceElement.Type ordinal plus one, 0 for a reference from a root.
+  private byte[] referenceTypes;
+  // The position of the field in the values of its holder, or the index of the array entry.
+  private int[] referenceSlots;
+  private byte[] classFlags;
   private boolean canIgnoreStrings;
 
   ShortestPathFinder(ExcludedRefs excludedRefs) {
     this.excludedRefs = excludedRefs;
-    toVisitQueue = new LinkedList<>();
-    toVisitIfNoPathQueue = new LinkedList<>();
-    toVisitSet = new LinkedHashSet<>();
-    toVisitIfNoPathSet = new LinkedHashSet<>();
-    visitedSet = new LinkedHashSet<>();
+    toVisitQueue = new IntQueue();
+    toVisitIfNoPathQueue = new IntQueue();
+    toVisitSet = new BitSet();
+    toVisitIfNoPathSet = new BitSet();
+    visitedSet = new BitSet();
+    exclusions = new TIntObjectHashMap<>();
+    extraInstances = new ArrayList<>();
+    extraIndices = new IdentityHashMap<>();
   }
 
   static final class Result {
@@ -68,56 +100,124 @@ final class ShortestPathFinder {
   }
 
   Result findPath(Snapshot snapshot, Instance leakingRef) {
-    clearState();
-    canIgnoreStrings = !isString(leakingRef);
+    return findPaths(snapshot, Collections.singletonList(leakingRef)).get(0);
+  }
+
+  /**
+   * Finds the shortest path to each of {@code leakingRefs} in a single search, which stops once
+   * all of them are reached. Returns a result per leaking reference, in the same order, which is
+   * the one {@link #findPath} would return for it, unless some of them are strings while others
+   * are not: strings are then visited for all of them. Paths that go through the same objects
+   * share their {@link LeakNode}s, so scanning for many leaking references costs one search and
+   * one node per object on any of the paths.
+   */
+  List<Result> findPaths(Snapshot snapshot, List<Instance> leakingRefs) {
+    clearState(snapshot);
+    if (resolvedExclusions == null || !resolvedExclusions.isResolvedFor(excludedRefs, snapshot)) {
+      resolvedExclusions = new ResolvedExclusions(excludedRefs, snapshot);
+    }
+    canIgnoreStrings = true;
+    BitSet targetSet = new BitSet();
+    int[] targets = new int[leakingRefs.size()];
+    for (int i = 0; i < targets.length; i++) {
+      Instance leakingRef = leakingRefs.get(i);
+      if (isString(leakingRef)) {
+        canIgnoreStrings = false;
+      }
+      targets[i] = index(leakingRef);
+      targetSet.set(targets[i]);
+    }
+    int targetsLeft = targetSet.cardinality();
+    BitSet reachedSet = new BitSet();
+    BitSet reachedExcludingKnownLeaksSet = new BitSet();
 
     enqueueGcRoots(snapshot);
 
     boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
-    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
-      LeakNode node;
+    while (targetsLeft > 0 && (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty())) {
+      HeapInterruptedException.checkInterrupted();
+      int node;
       if (!toVisitQueue.isEmpty()) {
         node = toVisitQueue.poll();
       } else {
         node = toVisitIfNoPathQueue.poll();
-        if (node.exclusion == null) {
-          throw new IllegalStateException("Expected node to have an exclusion " + node);
-        }
         excludingKnownLeaks = true;
+        // Reached without an exclusion in the meantime, which overwrote how it was reached.
+        if (visitedSet.get(node)) {
+          continue;
+        }
+        if (exclusions.get(node) == null) {
+          throw new IllegalStateException("Expected node to have an exclusion " + instance(node));
+        }
       }
 
       // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
-        break;
+      if (targetSet.get(node) && !reachedSet.get(node)) {
+        reachedSet.set(node);
+        if (excludingKnownLeaks) {
+          reachedExcludingKnownLeaksSet.set(node);
+        }
+        if (--targetsLeft == 0) {
+          break;
+        }
       }
 
       if (checkSeen(node)) {
         continue;
       }
 
-      if (node.instance instanceof RootObj) {
-        visitRootObj(node);
-      } else if (node.instance instanceof ClassObj) {
-        visitClassObj(node);
-      } else if (node.instance instanceof ClassInstance) {
-        visitClassInstance(node);
-      } else if (node.instance instanceof ArrayInstance) {
-        visitArrayInstance(node);
+      Instance instance = instance(node);
+      if (instance instanceof RootObj) {
+        visitRootObj(node, (RootObj) instance);
+      } else if (instance instanceof ClassObj) {
+        visitClassObj(node, (ClassObj) instance);
+      } else if (instance instanceof ClassInstance) {
+        visitClassInstance(node, (ClassInstance) instance);
+      } else if (instance instanceof ArrayInstance) {
+        visitArrayInstance(node, (ArrayInstance) instance);
+      } else {
+        throw new IllegalStateException("Unexpected type for " + instance);
+      }
+    }
+
+    List<Result> results = new ArrayList<>(targets.length);
+    TIntObjectHashMap<LeakNode> builtNodes = new TIntObjectHashMap<>();
+    for (int target : targets) {
+      if (reachedSet.get(target)) {
+        LeakNode leakingNode = buildLeakNode(target, builtNodes);
+        results.add(new Result(leakingNode, reachedExcludingKnownLeaksSet.get(target)));
       } else {
-        throw new IllegalStateException("Unexpected type for " + node.instance);
+        results.add(new Result(null, excludingKnownLeaks));
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
+    clearState(null);
+    return results;
   }
 
-  private void clearState() {
+  private void clearState(Snapshot snapshot) {
     toVisitQueue.clear();
     toVisitIfNoPathQueue.clear();
     toVisitSet.clear();
     toVisitIfNoPathSet.clear();
     visitedSet.clear();
+    exclusions.clear();
+    extraInstances.clear();
+    extraIndices.clear();
+    this.snapshot = snapshot;
+    if (snapshot == null) {
+      objectCount = 0;
+      parents = null;
+      referenceTypes = null;
+      referenceSlots = null;
+      classFlags = null;
+    } else {
+      objectCount = snapshot.getObjectCount();
+      int capacity = objectCount + snapshot.getGCRoots().size();
+      parents = new int[capacity];
+      referenceTypes = new byte[capacity];
+      referenceSlots = new int[capacity];
+      classFlags = new byte[objectCount];
+    }
   }
 
   private void enqueueGcRoots(Snapshot snapshot) {
@@ -128,7 +228,7 @@ final class ShortestPathFinder {
           String threadName = threadName(thread);
           Exclusion params = excludedRefs.threadNames.get(threadName);
           if (params == null || !params.alwaysExclude) {
-            enqueue(params, null, rootObj, null, null);
+            enqueue(params, NO_PARENT, rootObj, null, 0);
           }
           break;
         case INTERNED_STRING:
@@ -155,7 +255,7 @@ final class ShortestPathFinder {
           // Input or output parameters in native code.
         case NATIVE_STACK:
         case JAVA_STATIC:
-          enqueue(null, null, rootObj, null, null);
+          enqueue(null, NO_PARENT, rootObj, null, 0);
           break;
         default:
           throw new UnsupportedOperationException("Unknown root type:" + rootObj.getRootType());
@@ -163,12 +263,15 @@ final class ShortestPathFinder {
     }
   }
 
-  private boolean checkSeen(LeakNode node) {
-    return !visitedSet.add(node.instance);
+  private boolean checkSeen(int node) {
+    if (visitedSet.get(node)) {
+      return true;
+    }
+    visitedSet.set(node);
+    return false;
   }
 
-  private void visitRootObj(LeakNode node) {
-    RootObj rootObj = (RootObj) node.instance;
+  private void visitRootObj(int node, RootObj rootObj) {
     Instance child = rootObj.getReferredInstance();
 
     Exclusion exclusion = rootSuperClassAlwaysIgnored(child);
@@ -178,158 +281,274 @@ final class ShortestPathFinder {
     }
 
     if (rootObj.getRootType() == RootType.JAVA_LOCAL) {
-      Instance holder = HahaSpy.allocatingThread(rootObj);
-      // We switch the parent node with the thread instance that holds
-      // the local reference.
-      LeakNode parent = new LeakNode(null, holder, null, null, null);
-      if (node.exclusion != null) {
-        exclusion = node.exclusion;
+      // The thread instance that holds the local reference replaces the root as the parent when
+      // the path is built.
+      Exclusion nodeExclusion = exclusions.get(node);
+      if (nodeExclusion != null) {
+        exclusion = nodeExclusion;
       }
-      enqueue(exclusion, parent, child, "<Java Local>", LOCAL);
+      enqueue(exclusion, node, child, LOCAL, 0);
     } else {
-      enqueue(exclusion, node, child, null, null);
+      enqueue(exclusion, node, child, null, 0);
     }
   }
 
   private Exclusion rootSuperClassAlwaysIgnored(Instance child) {
-    if (child == null) {
+    if (child == null || child.getClassObj() == null) {
       return null;
     }
-    Exclusion matchingParams = null;
-    ClassObj superClassObj = child.getClassObj();
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.rootClassNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (matchingParams == null || !matchingParams.alwaysExclude) {
-          matchingParams = params;
-        }
-      }
-      superClassObj = superClassObj.getSuperClassObj();
-    }
-    return matchingParams;
+    return resolvedExclusions.forClass(child.getClassObj()).rootExclusion;
   }
 
-  private void visitClassObj(LeakNode node) {
-    ClassObj classObj = (ClassObj) node.instance;
-    Map<String, Exclusion> ignoredStaticFields =
-        excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
-    for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-      Field field = entry.getKey();
-      if (field.getType() != Type.OBJECT) {
+  private void visitClassObj(int node, ClassObj classObj) {
+    ResolvedExclusions.ClassExclusions classExclusions = resolvedExclusions.forClass(classObj);
+    int slot = -1;
+    for (Object value : classObj.getStaticFieldValues().values()) {
+      slot++;
+      if (!classExclusions.isStaticFieldReference(slot)) {
         continue;
       }
-      String fieldName = field.getName();
-      if (fieldName.equals("$staticOverhead")) {
-        continue;
-      }
-      Instance child = (Instance) entry.getValue();
-      boolean visit = true;
-      if (ignoredStaticFields != null) {
-        Exclusion params = ignoredStaticFields.get(fieldName);
-        if (params != null) {
-          visit = false;
-          if (!params.alwaysExclude) {
-            enqueue(params, node, child, fieldName, STATIC_FIELD);
-          }
-        }
-      }
-      if (visit) {
-        enqueue(null, node, child, fieldName, STATIC_FIELD);
+      Instance child = (Instance) value;
+      Exclusion params = classExclusions.staticFieldExclusion(slot);
+      if (params == null) {
+        enqueue(null, node, child, STATIC_FIELD, slot);
+      } else if (!params.alwaysExclude) {
+        enqueue(params, node, child, STATIC_FIELD, slot);
       }
     }
   }
 
-  private void visitClassInstance(LeakNode node) {
-    ClassInstance classInstance = (ClassInstance) node.instance;
-    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
-    ClassObj superClassObj = classInstance.getClassObj();
-    Exclusion classExclusion = null;
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (classExclusion == null || !classExclusion.alwaysExclude) {
-          classExclusion = params;
-        }
-      }
-      Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
-      if (classIgnoredFields != null) {
-        ignoredFields.putAll(classIgnoredFields);
-      }
-      superClassObj = superClassObj.getSuperClassObj();
-    }
+  private void visitClassInstance(int node, ClassInstance classInstance) {
+    ClassObj classObj = classInstance.getClassObj();
+    ResolvedExclusions.ClassExclusions classExclusions =
+        classObj != null ? resolvedExclusions.forClass(classObj) : null;
 
-    if (classExclusion != null && classExclusion.alwaysExclude) {
+    if (classExclusions != null && classExclusions.classExclusion != null
+        && classExclusions.classExclusion.alwaysExclude) {
       return;
     }
 
-    for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
-      Exclusion fieldExclusion = classExclusion;
-      Field field = fieldValue.getField();
-      if (field.getType() != Type.OBJECT) {
+    List<ClassInstance.FieldValue> values = classInstance.getValues();
+    for (int slot = 0; slot < values.size(); slot++) {
+      ClassInstance.FieldValue fieldValue = values.get(slot);
+      if (fieldValue.getField().getType() != Type.OBJECT) {
         continue;
       }
       Instance child = (Instance) fieldValue.getValue();
-      String fieldName = field.getName();
-      Exclusion params = ignoredFields.get(fieldName);
-      // If we found a field exclusion and it's stronger than a class exclusion
-      if (params != null && (fieldExclusion == null || (params.alwaysExclude
-          && !fieldExclusion.alwaysExclude))) {
-        fieldExclusion = params;
-      }
-      enqueue(fieldExclusion, node, child, fieldName, INSTANCE_FIELD);
+      Exclusion fieldExclusion =
+          classExclusions != null ? classExclusions.fieldExclusion(slot) : null;
+      enqueue(fieldExclusion, node, child, INSTANCE_FIELD, slot);
     }
   }
 
-  private void visitArrayInstance(LeakNode node) {
-    ArrayInstance arrayInstance = (ArrayInstance) node.instance;
+  private void visitArrayInstance(int node, ArrayInstance arrayInstance) {
     Type arrayType = arrayInstance.getArrayType();
     if (arrayType == Type.OBJECT) {
       Object[] values = arrayInstance.getValues();
       for (int i = 0; i < values.length; i++) {
         Instance child = (Instance) values[i];
-        enqueue(null, node, child, "[" + i + "]", ARRAY_ENTRY);
+        enqueue(null, node, child, ARRAY_ENTRY, i);
       }
     }
   }
 
-  private void enqueue(Exclusion exclusion, LeakNode parent, Instance child, String referenceName,
-      LeakTraceElement.Type referenceType) {
+  private void enqueue(Exclusion exclusion, int parent, Instance child,
+      LeakTraceElement.Type referenceType, int referenceSlot) {
     if (child == null) {
       return;
     }
     if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
       return;
     }
+    int node = index(child);
     // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
+    if (toVisitSet.get(node)) {
       return;
     }
     boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
+    if (!visitNow && toVisitIfNoPathSet.get(node)) {
       return;
     }
     if (canIgnoreStrings && isString(child)) {
       return;
     }
-    if (visitedSet.contains(child)) {
+    if (visitedSet.get(node)) {
       return;
     }
-    LeakNode childNode = new LeakNode(exclusion, child, parent, referenceName, referenceType);
+    // A node to visit later may be enqueued again to visit now, which is then the way it is
+    // reached: it is visited before the first entry is polled.
+    parents[node] = parent;
+    referenceTypes[node] = (byte) (referenceType == null ? 0 : referenceType.ordinal() + 1);
+    referenceSlots[node] = referenceSlot;
     if (visitNow) {
-      toVisitSet.add(child);
-      toVisitQueue.add(childNode);
+      exclusions.remove(node);
+      toVisitSet.set(node);
+      toVisitQueue.add(node);
     } else {
-      toVisitIfNoPathSet.add(child);
-      toVisitIfNoPathQueue.add(childNode);
+      exclusions.put(node, exclusion);
+      toVisitIfNoPathSet.set(node);
+      toVisitIfNoPathQueue.add(node);
+    }
+  }
+
+  private int index(Instance instance) {
+    int index = instance.getObjectIndex();
+    if (index >= 0 && index < objectCount) {
+      return index;
     }
+    // Roots, and objects that are not part of the snapshot.
+    Integer extraIndex = extraIndices.get(instance);
+    if (extraIndex == null) {
+      extraIndex = objectCount + extraInstances.size();
+      extraInstances.add(instance);
+      extraIndices.put(instance, extraIndex);
+      if (extraIndex >= parents.length) {
+        int capacity = parents.length * 2 + 1;
+        parents = Arrays.copyOf(parents, capacity);
+        referenceTypes = Arrays.copyOf(referenceTypes, capacity);
+        referenceSlots = Arrays.copyOf(referenceSlots, capacity);
+      }
+    }
+    return extraIndex;
+  }
+
+  private Instance instance(int node) {
+    return node < objectCount ? snapshot.getObject(node) : extraInstances.get(node - objectCount);
+  }
+
+  /**
+   * Builds the path to {@code leakingNode}, reusing the nodes of {@code builtNodes}, the paths
+   * already built, as they share their prefixes with it when the search ran for several targets.
+   */
+  private LeakNode buildLeakNode(int leakingNode, TIntObjectHashMap<LeakNode> builtNodes) {
+    // Collects the path from the leaking node up to its root or to a node already built, then
+    // links it the other way.
+    List<Integer> path = new ArrayList<>();
+    LeakNode pathParent = null;
+    for (int node = leakingNode; node != NO_PARENT; node = parents[node]) {
+      LeakNode builtNode = builtNodes.get(node);
+      if (builtNode != null) {
+        pathParent = builtNode;
+        break;
+      }
+      path.add(node);
+      if (referenceTypes[node] == LOCAL.ordinal() + 1) {
+        Instance holder = HahaSpy.allocatingThread(instance(parents[node]));
+        pathParent = new LeakNode(null, holder, null, null, null);
+        break;
+      }
+    }
+    LeakNode leakNode = pathParent;
+    for (int i = path.size() - 1; i >= 0; i--) {
+      int node = path.get(i);
+      LeakTraceElement.Type referenceType = null;
+      String referenceName = null;
+      if (referenceTypes[node] != 0) {
+        referenceType = REFERENCE_TYPES[referenceTypes[node] - 1];
+        referenceName = referenceName(instance(parents[node]), referenceType, referenceSlots[node]);
+      }
+      leakNode = new LeakNode(exclusions.get(node), instance(node), leakNode, referenceName,
+          referenceType);
+      builtNodes.put(node, leakNode);
+    }
+    return leakNode;
+  }
+
+  private String referenceName(Instance parent, LeakTraceElement.Type referenceType, int slot) {
+    switch (referenceType) {
+      case INSTANCE_FIELD:
+        return ((ClassInstance) parent).getValues().get(slot).getField().getName();
+      case STATIC_FIELD:
+        Iterator<Field> fields = ((ClassObj) parent).getStaticFieldValues().keySet().iterator();
+        for (int i = 0; i < slot; i++) {
+          fields.next();
+        }
+        return fields.next().getName();
+      case ARRAY_ENTRY:
+        return "[" + slot + "]";
+      case LOCAL:
+        return "<Java Local>";
+      default:
+        throw new IllegalStateException("Unexpected reference type " + referenceType);
+    }
+  }
+
+  private boolean isPrimitiveWrapper(Instance instance) {
+    return instance instanceof ClassInstance && (classFlags(instance) & CLASS_IS_WRAPPER) != 0;
+  }
+
+  private boolean isPrimitiveOrWrapperArray(Instance instance) {
+    if (!(instance instanceof ArrayInstance)) {
+      return false;
+    }
+    return ((ArrayInstance) instance).getArrayType() != Type.OBJECT
+        || (classFlags(instance) & CLASS_IS_WRAPPER) != 0;
   }
 
   private boolean isString(Instance instance) {
-    return instance.getClassObj() != null && instance.getClassObj()
-        .getClassName()
-        .equals(String.class.getName());
+    return (classFlags(instance) & CLASS_IS_STRING) != 0;
+  }
+
+  /**
+   * Returns what the class name of {@code instance} says about it, looked up once per class
+   * rather than for every reference to one of its instances.
+   */
+  private int classFlags(Instance instance) {
+    ClassObj classObj = instance.getClassObj();
+    if (classObj == null) {
+      return 0;
+    }
+    int index = classObj.getObjectIndex();
+    if (index >= 0 && index < classFlags.length && classFlags[index] != 0) {
+      return classFlags[index];
+    }
+    String className = classObj.getClassName();
+    byte flags = CLASS_FLAGS_COMPUTED;
+    if (HahaHelper.isWrapperType(className)) {
+      flags |= CLASS_IS_WRAPPER;
+    }
+    if (className.equals(String.class.getName())) {
+      flags |= CLASS_IS_STRING;
+    }
+    if (index >= 0 && index < classFlags.length) {
+      classFlags[index] = flags;
+    }
+    return flags;
+  }
+
+  /** A growable ring buffer of ints. */
+  private static final class IntQueue {
+    private int[] elements = new int[16];
+    private int head;
+    private int size;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void add(int element) {
+      if (size == elements.length) {
+        int[] grown = new int[elements.length * 2];
+        int firstPart = elements.length - head;
+        System.arraycopy(elements, head, grown, 0, firstPart);
+        System.arraycopy(elements, 0, grown, firstPart, head);
+        elements = grown;
+        head = 0;
+      }
+      elements[(head + size) & (elements.length - 1)] = element;
+      size++;
+    }
+
+    int poll() {
+      int element = elements[head];
+      head = (head + 1) & (elements.length - 1);
+      size--;
+      return element;
+    }
+
+    void clear() {
+      head = 0;
+      size = 0;
+    }
   }
 }
@@ -0,0 +1,206 @@
+package com.squareup.leakcanary;
+
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SyntheticHprofGenerator;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShortestPathFinderTest {
+
+  private File file;
+
+  @After public void tearDown() {
+    if (file != null) {
+      file.delete();
+    }
+  }
+
+  @Test public void findsTheSamePathsAsTheLegacySearch() throws Exception {
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(ExcludedRefs.builder().build());
+    int pathCount = 0;
+    int excludingKnownLeaksCount = 0;
+    for (int seed = 1; seed <= 3; seed++) {
+      SyntheticHprofGenerator generator = new SyntheticHprofGenerator(seed);
+      generator.setAndroidHeaps(seed % 2 == 0);
+      SyntheticHprofGenerator.Shape[] shapes = SyntheticHprofGenerator.Shape.values();
+      generator.addGraph(shapes[seed % shapes.length], 1000);
+      generator.addGraph(SyntheticHprofGenerator.Shape.RANDOM, 1000);
+      for (int i = 0; i < 4; i++) {
+        generator.addLeak("key" + i, i % 2 == 0);
+      }
+      file = generator.writeTempFile("paths");
+      Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+      List<Instance> targets = targets(generator, snapshot, new Random(seed));
+
+      for (ExcludedRefs excludedRefs : excludedRefsToCompare()) {
+        LegacyShortestPathFinder legacyFinder = new LegacyShortestPathFinder(excludedRefs);
+        ShortestPathFinder finder = new ShortestPathFinder(excludedRefs);
+        List<ShortestPathFinder.Result> batch = finder.findPaths(snapshot, targets);
+        for (int i = 0; i < targets.size(); i++) {
+          LegacyShortestPathFinder.Result expected =
+              legacyFinder.findPath(snapshot, targets.get(i));
+          assertSameResult(heapAnalyzer, expected, finder.findPath(snapshot, targets.get(i)));
+          assertSameResult(heapAnalyzer, expected, batch.get(i));
+          if (expected.leakingNode != null) {
+            pathCount++;
+            if (expected.excludingKnownLeaks) {
+              excludingKnownLeaksCount++;
+            }
+          }
+        }
+      }
+      file.delete();
+    }
+    // The dumps have both paths and paths that only exist through excluded refs.
+    assertTrue(pathCount > 0);
+    assertTrue(excludingKnownLeaksCount > 0);
+  }
+
+  @Test public void resolvesFieldExclusionsBySlot() throws Exception {
+    SyntheticHprofGenerator generator = SyntheticHprofGenerator.withAllShapes(42, 50);
+    generator.addLeak("key", true);
+    file = generator.writeTempFile("exclusions");
+    Snapshot snapshot = new HprofParser(new MemoryMappedFileBuffer(file)).parse();
+
+    ClassObj classObj = snapshot.findClass(KeyedWeakReference.class.getName());
+
+    // Slots follow the values of an instance: its class fields first, then the super classes.
+    ClassInstance instance = (ClassInstance) classObj.getInstancesList().get(0);
+    List<String> fieldNames = new ArrayList<>();
+    for (ClassInstance.FieldValue value : instance.getValues()) {
+      fieldNames.add(value.getField().getName());
+    }
+    assertEquals(Arrays.asList("key", "name", "referent", "queue"), fieldNames);
+
+    ExcludedRefs fieldsOnly = ExcludedRefs.builder()
+        .instanceField("java.lang.ref.Reference", "referent")
+        .build();
+    ResolvedExclusions.ClassExclusions exclusions =
+        new ResolvedExclusions(fieldsOnly, snapshot).forClass(classObj);
+    assertNull(exclusions.fieldExclusion(0));
+    assertNull(exclusions.fieldExclusion(1));
+    assertEquals("field java.lang.ref.Reference#referent",
+        exclusions.fieldExclusion(2).matching);
+    assertNull(exclusions.fieldExclusion(3));
+
+    ExcludedRefs withClass = ExcludedRefs.builder()
+        .clazz("java.lang.ref.WeakReference")
+        .instanceField("java.lang.ref.Reference", "referent")
+        .instanceField(KeyedWeakReference.class.getName(), "name").alwaysExclude()
+        .build();
+    exclusions = new ResolvedExclusions(withClass, snapshot).forClass(classObj);
+    Exclusion classExclusion = exclusions.fieldExclusion(0);
+    assertEquals("any subclass of java.lang.ref.WeakReference", classExclusion.matching);
+    // Only an always excluded field is stronger than the class exclusion.
+    assertEquals("field " + KeyedWeakReference.class.getName() + "#name",
+        exclusions.fieldExclusion(1).matching);
+    assertSame(classExclusion, exclusions.fieldExclusion(2));
+    assertSame(classExclusion, exclusions.fieldExclusion(3));
+
+    ClassObj nodeClass = snapshot.findClass("synthetic.Node");
+    ResolvedExclusions.ClassExclusions nodeExclusions =
+        new ResolvedExclusions(withClass, snapshot).forClass(nodeClass);
+    for (int slot = 0; slot < nodeClass.getFields().length; slot++) {
+      assertNull(nodeExclusions.fieldExclusion(slot));
+    }
+  }
+
+  private static List<ExcludedRefs> excludedRefsToCompare() {
+    List<ExcludedRefs> excludedRefs = new ArrayList<>();
+    excludedRefs.add(ExcludedRefs.builder().build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .staticField("synthetic.Roots", "refs")
+        .instanceField("synthetic.Node", "next")
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .instanceField("java.lang.ref.Reference", "referent")
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .clazz("java.lang.ref.Reference")
+        .thread("main")
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .rootClass("synthetic.Node")
+        .staticField("synthetic.Roots", "refs").alwaysExclude()
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .thread("main").alwaysExclude()
+        .instanceField("synthetic.Node", "other")
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .clazz("java.lang.ref.WeakReference")
+        .instanceField("java.lang.ref.Reference", "referent").alwaysExclude()
+        .build());
+    excludedRefs.add(ExcludedRefs.builder()
+        .rootClass("java.lang.Object")
+        .staticField("synthetic.Roots", "leaks").alwaysExclude()
+        .build());
+    return excludedRefs;
+  }
+
+  /** The leaked instances, then random instances that are not strings. */
+  private static List<Instance> targets(SyntheticHprofGenerator generator, Snapshot snapshot,
+      Random random) {
+    List<Instance> targets = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      targets.add(snapshot.findInstance(generator.getLeakedId(i)));
+    }
+    List<Instance> instances = new ArrayList<>();
+    for (Heap heap : snapshot.getHeaps()) {
+      for (Instance instance : heap.getInstances()) {
+        if (!"java.lang.String".equals(instance.getClassObj().getClassName())) {
+          instances.add(instance);
+        }
+      }
+    }
+    for (int i = 0; i < 20; i++) {
+      targets.add(instances.get(random.nextInt(instances.size())));
+    }
+    return targets;
+  }
+
+  private static void assertSameResult(HeapAnalyzer heapAnalyzer,
+      LegacyShortestPathFinder.Result expected, ShortestPathFinder.Result actual) {
+    assertEquals(expected.excludingKnownLeaks, actual.excludingKnownLeaks);
+    if (expected.leakingNode == null) {
+      assertNull(actual.leakingNode);
+      return;
+    }
+    assertEquals(describe(expected.leakingNode), describe(actual.leakingNode));
+    LeakTrace expectedTrace = heapAnalyzer.buildLeakTrace(expected.leakingNode);
+    LeakTrace actualTrace = heapAnalyzer.buildLeakTrace(actual.leakingNode);
+    assertEquals(expectedTrace.toString(), actualTrace.toString());
+    assertEquals(expectedTrace.signature(), actualTrace.signature());
+  }
+
+  private static String describe(LeakNode node) {
+    StringBuilder sb = new StringBuilder();
+    for (; node != null; node = node.parent) {
+      sb.append(node.instance != null ? node.instance.getId() : "null")
+          .append(' ')
+          .append(node.referenceName)
+          .append(' ')
+          .append(node.referenceType)
+          .append(' ')
+          .append(node.exclusion != null ? node.exclusion.matching : null)
+          .append('\n');
+    }
+    return sb.toString();
+  }
+}